@@ -0,0 +1,79 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Generated test images for the benchmarks, so that they don't depend on a photo on somebody's disk.
+ *
+ * The pixels are smooth gradients in each channel with some noise on top, which gives the histogram stages a spread
+ * of values to work with, and the same seed is used every time so runs are comparable.
+ */
+class BenchmarkImages {
+
+	/**
+	 * A w by h image of the given type, with w and h given as "WxH".
+	 *
+	 * @param dims for example "4000x3000"
+	 * @param type INT_RGB, INT_ARGB or 3BYTE_BGR
+	 */
+	static BufferedImage generate(String dims, String type) {
+		int x = dims.indexOf('x');
+		int w = Integer.parseInt(dims.substring(0, x));
+		int h = Integer.parseInt(dims.substring(x + 1));
+		BufferedImage image = new BufferedImage(w, h, imageType(type));
+		Random random = new Random(5618);
+		int[] row = new int[w];
+		for (int y = 0; y < h; y++) {
+			for (int i = 0; i < w; i++) {
+				int red = clamp(255 * i / w + random.nextInt(32) - 16);
+				int green = clamp(255 * y / h + random.nextInt(32) - 16);
+				int blue = clamp(255 * (i + y) / (w + h) + random.nextInt(64) - 32);
+				row[i] = HW3Utils.makeRGBPixel(red, green, blue);
+			}
+			image.setRGB(0, y, w, 1, row, 0, w);
+		}
+		return image;
+	}
+
+	static int imageType(String type) {
+		switch (type) {
+		case "INT_RGB":
+			return BufferedImage.TYPE_INT_RGB;
+		case "INT_ARGB":
+			return BufferedImage.TYPE_INT_ARGB;
+		case "3BYTE_BGR":
+			return BufferedImage.TYPE_3BYTE_BGR;
+		default:
+			throw new IllegalArgumentException("unknown image type " + type);
+		}
+	}
+
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+
+	/**
+	 * A pool with the given number of workers, or one per processor for 0.
+	 */
+	static ForkJoinPool pool(int parallelism) {
+		return parallelism > 0 ? new ForkJoinPool(parallelism) : new ForkJoinPool();
+	}
+
+	/**
+	 * A copy of image as an FJBufferedImage whose operations run in pool.
+	 */
+	static FJBufferedImage fjCopy(BufferedImage image, ForkJoinPool pool) {
+		FJBufferedImage copy = new FJBufferedImage(image.getWidth(), image.getHeight(), image.getType());
+		copy.setData(image.getRaster());
+		copy.setPool(pool);
+		return copy;
+	}
+
+	static FJBufferedImage fjBlank(BufferedImage image, ForkJoinPool pool) {
+		FJBufferedImage blank = new FJBufferedImage(image.getWidth(), image.getHeight(), image.getType());
+		blank.setPool(pool);
+		return blank;
+	}
+}
@@ -0,0 +1,31 @@
+package cop5618;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line, and always runs the GC profiler, so that every
+ * result comes with gc.alloc.rate and gc.alloc.rate.norm (bytes allocated per operation) next to the time.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+				|| options.shouldListProfilers() || options.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(options);
+		boolean gcProfiler = options.getProfilers().stream()
+				.anyMatch(profiler -> profiler.getKlass().equals(GCProfiler.class.getName())
+						|| profiler.getKlass().equals("gc"));
+		if (!gcProfiler) {
+			builder.addProfiler(GCProfiler.class);
+		}
+		new Runner(builder.build()).run();
+	}
+}
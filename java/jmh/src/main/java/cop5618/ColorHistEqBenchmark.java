@@ -0,0 +1,48 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The serial ColorHistEq, the baseline for ColorHistEqFJBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ColorHistEqBenchmark {
+
+	@Param({ "640x480", "4000x3000", "16000x750", "750x16000" })
+	public String dims;
+
+	@Param({ "INT_RGB", "INT_ARGB", "3BYTE_BGR" })
+	public String type;
+
+	BufferedImage image;
+	BufferedImage newImage;
+
+	@Setup
+	public void setUp() {
+		image = BenchmarkImages.generate(dims, type);
+		newImage = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+	}
+
+	@Benchmark
+	public Timer colorHistEq_serial() {
+		return ColorHistEq.colorHistEq_serial(image, newImage);
+	}
+}
@@ -0,0 +1,72 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The parallel ColorHistEq versions on FJBufferedImages whose pool is sized by parallelism. colorHistEq_parallel only
+ * does getRGB and setRGB in that pool; its parallel streams run in the common pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ColorHistEqFJBenchmark {
+
+	@Param({ "640x480", "4000x3000", "16000x750", "750x16000" })
+	public String dims;
+
+	@Param({ "INT_RGB", "INT_ARGB", "3BYTE_BGR" })
+	public String type;
+
+	@Param({ "1", "0" })
+	public int parallelism;
+
+	ForkJoinPool pool;
+	FJBufferedImage image;
+	FJBufferedImage newImage;
+
+	@Setup
+	public void setUp() {
+		pool = BenchmarkImages.pool(parallelism);
+		BufferedImage generated = BenchmarkImages.generate(dims, type);
+		image = BenchmarkImages.fjCopy(generated, pool);
+		newImage = BenchmarkImages.fjBlank(generated, pool);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public Timer colorHistEq_parallel() {
+		return ColorHistEq.colorHistEq_parallel(image, newImage);
+	}
+
+	@Benchmark
+	public Timer colorHistEq_primitive() {
+		return ColorHistEq.colorHistEq_primitive(image, newImage);
+	}
+
+	@Benchmark
+	public Timer colorHistEq_lut() {
+		return ColorHistEq.colorHistEq_lut(image, newImage);
+	}
+}
@@ -0,0 +1,83 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole image getRGB and setRGB on an FJBufferedImage in a pool of the given size, next to the same calls on a plain
+ * BufferedImage. The pixel array is allocated once, so the allocation rate shows only what the calls themselves
+ * allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FJBufferedImageBenchmark {
+
+	@Param({ "640x480", "4000x3000", "16000x750", "750x16000" })
+	public String dims;
+
+	@Param({ "INT_RGB", "INT_ARGB", "3BYTE_BGR" })
+	public String type;
+
+	@Param({ "1", "0" })
+	public int parallelism;
+
+	ForkJoinPool pool;
+	BufferedImage image;
+	FJBufferedImage fjImage;
+	int[] pixels;
+
+	@Setup
+	public void setUp() {
+		pool = BenchmarkImages.pool(parallelism);
+		image = BenchmarkImages.generate(dims, type);
+		fjImage = BenchmarkImages.fjCopy(image, pool);
+		pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public int[] getRGB() {
+		int w = fjImage.getWidth();
+		return fjImage.getRGB(0, 0, w, fjImage.getHeight(), pixels, 0, w);
+	}
+
+	@Benchmark
+	public void setRGB() {
+		int w = fjImage.getWidth();
+		fjImage.setRGB(0, 0, w, fjImage.getHeight(), pixels, 0, w);
+	}
+
+	@Benchmark
+	public int[] bufferedImage_getRGB() {
+		int w = image.getWidth();
+		return image.getRGB(0, 0, w, image.getHeight(), pixels, 0, w);
+	}
+
+	@Benchmark
+	public void bufferedImage_setRGB() {
+		int w = image.getWidth();
+		image.setRGB(0, 0, w, image.getHeight(), pixels, 0, w);
+	}
+}
@@ -0,0 +1,76 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Gray variants that work on plain BufferedImages: serial and parallel streams, original and fused. The parallel
+ * streams run in the common pool, whose size can be set with
+ * -jvmArgsAppend -Djava.util.concurrent.ForkJoinPool.common.parallelism=N.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GrayBenchmark {
+
+	// a thumbnail, a 12 megapixel photo, a panorama and a tall strip
+	@Param({ "640x480", "4000x3000", "16000x750", "750x16000" })
+	public String dims;
+
+	@Param({ "INT_RGB", "INT_ARGB", "3BYTE_BGR" })
+	public String type;
+
+	BufferedImage image;
+	BufferedImage newImage;
+
+	@Setup
+	public void setUp() {
+		image = BenchmarkImages.generate(dims, type);
+		newImage = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+	}
+
+	@Benchmark
+	public Timer gray_SS() {
+		return Gray.gray_SS(image, newImage);
+	}
+
+	@Benchmark
+	public Timer gray_PS() {
+		return Gray.gray_PS(image, newImage);
+	}
+
+	@Benchmark
+	public Timer gray_fused_SS() {
+		return Gray.gray_fused_SS(image, newImage, false);
+	}
+
+	@Benchmark
+	public Timer gray_fused_SS_exact() {
+		return Gray.gray_fused_SS(image, newImage, true);
+	}
+
+	@Benchmark
+	public Timer gray_fused_PS() {
+		return Gray.gray_fused_PS(image, newImage, false);
+	}
+
+	@Benchmark
+	public Timer gray_fused_PS_exact() {
+		return Gray.gray_fused_PS(image, newImage, true);
+	}
+}
@@ -0,0 +1,83 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Gray variants on FJBufferedImages, with the images' fork/join pool sized by parallelism. gray_SS_FJ and
+ * gray_PS_FJ only do getRGB and setRGB in that pool; the parallel stream of gray_PS_FJ still runs in the common pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GrayFJBenchmark {
+
+	@Param({ "640x480", "4000x3000", "16000x750", "750x16000" })
+	public String dims;
+
+	@Param({ "INT_RGB", "INT_ARGB", "3BYTE_BGR" })
+	public String type;
+
+	// workers in the pool, 0 for one per processor. 1 shows what the fork/join machinery costs over the serial code.
+	@Param({ "1", "0" })
+	public int parallelism;
+
+	ForkJoinPool pool;
+	FJBufferedImage image;
+	FJBufferedImage newImage;
+
+	@Setup
+	public void setUp() {
+		pool = BenchmarkImages.pool(parallelism);
+		BufferedImage generated = BenchmarkImages.generate(dims, type);
+		image = BenchmarkImages.fjCopy(generated, pool);
+		newImage = BenchmarkImages.fjBlank(generated, pool);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public Timer gray_SS_FJ() {
+		return Gray.gray_SS_FJ(image, newImage);
+	}
+
+	@Benchmark
+	public Timer gray_PS_FJ() {
+		return Gray.gray_PS_FJ(image, newImage);
+	}
+
+	@Benchmark
+	public Timer gray_kernel_FJ() {
+		return Gray.gray_kernel_FJ(image, newImage);
+	}
+
+	@Benchmark
+	public Timer gray_fused_FJ() {
+		return Gray.gray_fused_FJ(image, newImage, false);
+	}
+
+	@Benchmark
+	public Timer gray_fused_FJ_exact() {
+		return Gray.gray_fused_FJ(image, newImage, true);
+	}
+}
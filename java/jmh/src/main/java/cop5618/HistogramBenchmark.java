@@ -0,0 +1,79 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ParallelHistogram against the groupingBy collector that colorHistEq_parallel used for its brightness histogram.
+ * Pixels are binned by brightness with bins of 256 or fewer and by their 24 bit color beyond that, so the large bin
+ * counts have as many distinct bins in use as the image has colors. Everything runs in the common pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class HistogramBenchmark {
+
+	@Param({ "640x480", "4000x3000" })
+	public String dims;
+
+	// 256 is ColorHistEq.binNum; 1 << 24 bins is one per color and takes the striped counters
+	@Param({ "256", "65536", "16777216" })
+	public int bins;
+
+	int[] pixels;
+
+	@Setup
+	public void setUp() {
+		BufferedImage image = BenchmarkImages.generate(dims, "INT_RGB");
+		int w = image.getWidth();
+		pixels = image.getRGB(0, 0, w, image.getHeight(), null, 0, w);
+	}
+
+	int bin(int i) {
+		int pixel = pixels[i];
+		return bins <= 256 ? ColorHistEq.brightnessBin(pixel, bins) : (int) ((pixel & 0xFFFFFFL) * bins >>> 24);
+	}
+
+	@Benchmark
+	public int[] groupingBy() {
+		Map<Integer, Long> map = IntStream.range(0, pixels.length).parallel().map(this::bin).boxed()
+				.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+		return IntStream.range(0, bins).parallel().map(b -> map.containsKey(b) ? map.get(b).intValue() : 0).toArray();
+	}
+
+	@Benchmark
+	public int[] parallelHistogram() {
+		return ParallelHistogram.count(pixels.length, this::bin, bins);
+	}
+
+	@Benchmark
+	public int[] perThread() {
+		return ParallelHistogram.countPerThread(pixels.length, this::bin, bins, ForkJoinPool.commonPool());
+	}
+
+	@Benchmark
+	public int[] striped() {
+		int threads = ForkJoinPool.getCommonPoolParallelism() + 1;
+		return ParallelHistogram.countStriped(pixels.length, this::bin, bins, threads, ForkJoinPool.commonPool());
+	}
+}
@@ -0,0 +1,71 @@
+package cop5618;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The scalar row kernels of Gray and ColorHistEq, which depend on C2 to vectorize them, against the explicit
+ * jdk.incubator.vector backend, on one row. The forks add the incubator module so that the backend can run; run with
+ * -jvmArgsAppend -XX:-UseSuperWord to see the scalar loops as C2 leaves them when it doesn't vectorize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class RowKernelBenchmark {
+
+	// a row of a 4000 pixel wide image, and one that leaves a partial vector at the end
+	@Param({ "4000", "4003" })
+	public int length;
+
+	int[] src;
+	int[] dst;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(5618);
+		src = new int[length];
+		dst = new int[length];
+		for (int i = 0; i < length; i++) {
+			src[i] = random.nextInt();
+		}
+	}
+
+	@Benchmark
+	public int[] grayRowFixed_scalar() {
+		Gray.grayRowFixed(src, dst, length);
+		return dst;
+	}
+
+	@Benchmark
+	public int[] grayRowFixed_vector() {
+		VectorRowKernels.grayRowFixed(src, dst, length);
+		return dst;
+	}
+
+	@Benchmark
+	public int[] maxChannelRow_scalar() {
+		ColorHistEq.maxChannelRow(src, dst, length);
+		return dst;
+	}
+
+	@Benchmark
+	public int[] maxChannelRow_vector() {
+		VectorRowKernels.maxChannelRow(src, dst, length);
+		return dst;
+	}
+}
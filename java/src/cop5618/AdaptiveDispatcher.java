@@ -0,0 +1,241 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Runs an image operation serially, with parallel streams or with fork/join, whichever has been fastest so far for
+ * images of about the same size.
+ *
+ * The parallel versions only pay off once an image is large enough to cover their setup cost, and where that
+ * crossover lies depends on the machine, the operation and whatever else is running. So the dispatcher measures
+ * instead of guessing: images are put in size classes by powers of two of their pixel count, and each class keeps an
+ * exponentially weighted average of the nanoseconds per pixel of each mode. The first calls in a class try every mode
+ * samples times; after that the cheapest mode is used, and every exploreEvery-th call tries the runner up, so that a
+ * change in load is noticed.
+ *
+ * Trying the serial version of a 50 megapixel image costs seconds, so serial is not tried on images of maxSerialPixels
+ * or more, nor on images larger than a class where a parallel mode already ran at least twice as fast as serial.
+ * With a single processor everything runs serially.
+ */
+public class AdaptiveDispatcher {
+
+	public enum Mode {
+		SERIAL, PARALLEL_STREAM, FORK_JOIN
+	}
+
+	/**
+	 * One way of running the operation. The fork/join version gets FJBufferedImages.
+	 */
+	@FunctionalInterface
+	public interface Variant {
+		Timer apply(BufferedImage image, BufferedImage newImage);
+	}
+
+	/** images with at least this many pixels are never run serially on more than one processor */
+	static long maxSerialPixels = 1L << 24;
+
+	private static final Mode[] MODES = Mode.values();
+	// weight of a new measurement in the averages
+	private static final double ALPHA = 0.25;
+
+	private final String name;
+	private final Variant[] variants;
+	private final int processors;
+	private final int samples;
+	private final int exploreEvery;
+
+	// size class c holds images of [2^c, 2^(c+1)) pixels
+	private final long[][] counts = new long[64][MODES.length];
+	private final double[][] nanosPerPixel = new double[64][MODES.length];
+	private final long[] calls = new long[64];
+
+	/**
+	 * Creates a dispatcher for the available processors that tries each mode 3 times per size class and explores every
+	 * 32nd call.
+	 */
+	public AdaptiveDispatcher(String name, Variant serial, Variant parallelStream, Variant forkJoin) {
+		this(name, serial, parallelStream, forkJoin, Runtime.getRuntime().availableProcessors(), 3, 32);
+	}
+
+	/**
+	 * @param name for the report
+	 * @param processors processors to plan for; with 1 every call runs serially
+	 * @param samples measurements of every mode a size class takes before it trusts the averages
+	 * @param exploreEvery every exploreEvery-th call of a size class runs the second best mode, or never if 0
+	 */
+	public AdaptiveDispatcher(String name, Variant serial, Variant parallelStream, Variant forkJoin, int processors,
+			int samples, int exploreEvery) {
+		this.name = name;
+		this.variants = new Variant[] { serial, parallelStream, forkJoin };
+		this.processors = processors;
+		this.samples = samples;
+		this.exploreEvery = exploreEvery;
+	}
+
+	/**
+	 * Adapts an operation on FJBufferedImages to plain images, by wrapping any that are not FJBufferedImages around
+	 * the same raster. No pixels are copied.
+	 */
+	public static Variant forkJoin(BatchProcessor.Operation operation) {
+		return (image, newImage) -> operation.apply(fj(image), fj(newImage));
+	}
+
+	private static FJBufferedImage fj(BufferedImage image) {
+		return image instanceof FJBufferedImage ? (FJBufferedImage) image
+				: FJBufferedImage.BufferedImageToFJBufferedImage(image);
+	}
+
+	private static int sizeClass(long pixels) {
+		return 63 - Long.numberOfLeadingZeros(Math.max(1, pixels));
+	}
+
+	/**
+	 * Runs the operation in the mode chosen for the image's size and learns from how long it took. The variants time
+	 * different stages, so the timer returned has a single stage, labeled with the dispatcher's name, that covers the
+	 * whole call; the timers of every call can be added up by Timer.statsToString whichever mode ran.
+	 */
+	public Timer apply(BufferedImage image, BufferedImage newImage) {
+		long pixels = (long) image.getWidth() * image.getHeight();
+		Mode mode = choose(pixels);
+		Timer timer = new Timer(name);
+		timer.now();
+		variants[mode.ordinal()].apply(image, newImage);
+		timer.now();
+		learn(mode, pixels, timer.elapsedNanos(0, 1));
+		return timer;
+	}
+
+	/**
+	 * The mode the next call with an image of the given number of pixels will run in.
+	 */
+	public synchronized Mode choose(long pixels) {
+		if (processors < 2) {
+			return Mode.SERIAL;
+		}
+		int c = sizeClass(pixels);
+		boolean trySerial = pixels < maxSerialPixels && !parallelWinsBelow(c);
+		// modes that haven't been measured enough yet, the least measured first
+		Mode untried = null;
+		for (Mode mode : MODES) {
+			if ((mode != Mode.SERIAL || trySerial) && counts[c][mode.ordinal()] < samples
+					&& (untried == null || counts[c][mode.ordinal()] < counts[c][untried.ordinal()])) {
+				untried = mode;
+			}
+		}
+		if (untried != null) {
+			return untried;
+		}
+		Mode best = null;
+		Mode second = null;
+		for (Mode mode : MODES) {
+			if (counts[c][mode.ordinal()] == 0) {
+				continue;
+			}
+			if (best == null || nanosPerPixel[c][mode.ordinal()] < nanosPerPixel[c][best.ordinal()]) {
+				second = best;
+				best = mode;
+			}
+			else if (second == null || nanosPerPixel[c][mode.ordinal()] < nanosPerPixel[c][second.ordinal()]) {
+				second = mode;
+			}
+		}
+		calls[c]++;
+		if (second != null && exploreEvery > 0 && calls[c] % exploreEvery == 0
+				&& (second != Mode.SERIAL || trySerial)) {
+			return second;
+		}
+		return best;
+	}
+
+	/**
+	 * True if a parallel mode ran at least twice as fast as serial on some class of smaller images, which means serial
+	 * is not worth trying on larger ones.
+	 */
+	private boolean parallelWinsBelow(int c) {
+		for (int smaller = 0; smaller < c; smaller++) {
+			double serial = nanosPerPixel[smaller][Mode.SERIAL.ordinal()];
+			if (counts[smaller][Mode.SERIAL.ordinal()] == 0) {
+				continue;
+			}
+			for (Mode mode : MODES) {
+				if (mode != Mode.SERIAL && counts[smaller][mode.ordinal()] > 0
+						&& 2 * nanosPerPixel[smaller][mode.ordinal()] <= serial) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a measurement of mode on an image of the given size, for instance one taken outside the dispatcher.
+	 */
+	public synchronized void learn(Mode mode, long pixels, long nanos) {
+		int c = sizeClass(pixels);
+		int m = mode.ordinal();
+		double cost = (double) nanos / Math.max(1, pixels);
+		nanosPerPixel[c][m] = counts[c][m] == 0 ? cost : nanosPerPixel[c][m] + ALPHA * (cost - nanosPerPixel[c][m]);
+		counts[c][m]++;
+	}
+
+	/**
+	 * Average nanoseconds per pixel of mode on images of about the given size, or NaN if it has not run on any.
+	 */
+	public synchronized double getNanosPerPixel(Mode mode, long pixels) {
+		int c = sizeClass(pixels);
+		return counts[c][mode.ordinal()] == 0 ? Double.NaN : nanosPerPixel[c][mode.ordinal()];
+	}
+
+	/**
+	 * The smallest image size, a power of two, from which on a parallel mode has been faster than serial in every
+	 * class where both were measured, or -1 if that is not known.
+	 */
+	public synchronized long getCrossoverPixels() {
+		long crossover = -1;
+		for (int c = 63; c >= 0; c--) {
+			int serial = Mode.SERIAL.ordinal();
+			if (counts[c][serial] == 0) {
+				continue;
+			}
+			boolean parallelFaster = false;
+			for (Mode mode : MODES) {
+				if (mode != Mode.SERIAL && counts[c][mode.ordinal()] > 0
+						&& nanosPerPixel[c][mode.ordinal()] < nanosPerPixel[c][serial]) {
+					parallelFaster = true;
+				}
+			}
+			if (!parallelFaster) {
+				break;
+			}
+			crossover = 1L << c;
+		}
+		return crossover;
+	}
+
+	/**
+	 * One line per size class that has been used, with the cost of every mode measured in it.
+	 */
+	public synchronized String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%s on %d processors, crossover at %d pixels%n", name, processors,
+				getCrossoverPixels()));
+		for (int c = 0; c < 64; c++) {
+			StringBuilder line = new StringBuilder();
+			for (Mode mode : MODES) {
+				if (counts[c][mode.ordinal()] > 0) {
+					line.append(String.format(", %s=%.2f ns/pixel (%d runs)", mode, nanosPerPixel[c][mode.ordinal()],
+							counts[c][mode.ordinal()]));
+				}
+			}
+			if (line.length() > 0) {
+				sb.append(String.format("  %d+ pixels", 1L << c)).append(line).append(String.format("%n"));
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return report();
+	}
+}
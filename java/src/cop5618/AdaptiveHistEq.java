@@ -0,0 +1,346 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Contrast limited adaptive histogram equalization (CLAHE) of the HSB brightness.
+ *
+ * Instead of one histogram for the whole image, the image is divided into tilesX by tilesY tiles and every tile gets
+ * its own brightness mapping. Each tile histogram is clipped at clipLimit times the average bin count, and the clipped
+ * counts are spread evenly over all bins, which limits how much the contrast of flat regions is stretched. Each pixel
+ * then gets the bilinear interpolation of the mappings of the four tiles whose centers surround it, so there are no
+ * visible seams at tile borders. Hue and saturation are kept, as in ColorHistEq.
+ *
+ * Both steps that touch pixels are split with the same recursive halving as FJBufferedImage.SetRGBTask: the tile
+ * histograms by ranges of bands, horizontal slices of the tiles, and the interpolation by ranges of rows. With only
+ * tilesX * tilesY tiles, 64 for the defaults, splitting by whole tiles would leave most workers of a large machine
+ * idle, so every tile is cut into as many bands as it takes to give each task of the pool one, and the band histograms
+ * of a tile are added up afterwards. The serial version runs the same tasks without splitting, so both versions
+ * produce the same image.
+ */
+public class AdaptiveHistEq {
+
+	//Use these labels to instantiate your timers.  You will need 4 invocations of now()
+	static String[] labels = { "tile histograms", "clip and map", "interpolate pixels" };
+
+	// Brightness is the largest color channel, so the tile histograms have one bin per channel value
+	static final int LEVELS = 256;
+
+	static int defaultTiles = 8;
+	static double defaultClipLimit = 2.0;
+
+	/**
+	 * Builds the histograms of bands [first, last), where band b is band b % bands of tile b / bands. Each leaf only
+	 * writes the rows of bandHistograms that belong to its own bands, so no synchronization is needed.
+	 */
+	private static class TileHistogramTask extends RecursiveAction {
+
+		Tiling tiling;
+		int bands;
+		int first;
+		int last;
+		int[][] bandHistograms;
+		int tasks;
+
+		public TileHistogramTask(Tiling tiling, int bands, int first, int last, int[][] bandHistograms, int tasks) {
+			this.tiling = tiling;
+			this.bands = bands;
+			this.first = first;
+			this.last = last;
+			this.bandHistograms = bandHistograms;
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			if (tasks < 2 || last - first < 2) {
+				for (int band = first; band < last; band++) {
+					bandHistograms[band] = tiling.histogram(band / bands, band % bands, bands);
+				}
+			}
+			else {
+				int middle = first + (last - first)/2;
+				invokeAll(new TileHistogramTask(tiling, bands, first, middle, bandHistograms, tasks/2),
+						new TileHistogramTask(tiling, bands, middle, last, bandHistograms, tasks - tasks/2));
+			}
+		}
+	}
+
+	/**
+	 * Writes rows [y, y+h) of the equalized image.
+	 */
+	private static class InterpolateTask extends RecursiveAction {
+
+		Tiling tiling;
+		float[][] mappings;
+		BufferedImage newImage;
+		int y;
+		int h;
+		int tasks;
+
+		public InterpolateTask(Tiling tiling, float[][] mappings, BufferedImage newImage, int y, int h, int tasks) {
+			this.tiling = tiling;
+			this.mappings = mappings;
+			this.newImage = newImage;
+			this.y = y;
+			this.h = h;
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			if (tasks < 2 || h < 2) {
+				tiling.interpolate(mappings, newImage, y, h);
+			}
+			else {
+				int firstHalf = h/2;
+				invokeAll(new InterpolateTask(tiling, mappings, newImage, y, firstHalf, tasks/2),
+						new InterpolateTask(tiling, mappings, newImage, y + firstHalf, h - firstHalf, tasks - tasks/2));
+			}
+		}
+	}
+
+	/**
+	 * Geometry of the tiles and the pixel work done for them. Tile i in x covers columns [i*w/tilesX, (i+1)*w/tilesX),
+	 * and likewise in y, so the tiles differ in size by at most one pixel.
+	 */
+	private static class Tiling {
+
+		final BufferedImage image;
+		final int w;
+		final int h;
+		final int tilesX;
+		final int tilesY;
+
+		Tiling(BufferedImage image, int tilesX, int tilesY) {
+			this.image = image;
+			this.w = image.getWidth();
+			this.h = image.getHeight();
+			// a tile has to have at least one pixel in each direction
+			this.tilesX = Math.max(1, Math.min(tilesX, w));
+			this.tilesY = Math.max(1, Math.min(tilesY, h));
+		}
+
+		int tileCount() {
+			return tilesX * tilesY;
+		}
+
+		int tileStartX(int i) {
+			return (int) ((long) i * w / tilesX);
+		}
+
+		int tileStartY(int j) {
+			return (int) ((long) j * h / tilesY);
+		}
+
+		int tilePixels(int tile) {
+			int i = tile % tilesX;
+			int j = tile / tilesX;
+			return (tileStartX(i + 1) - tileStartX(i)) * (tileStartY(j + 1) - tileStartY(j));
+		}
+
+		/**
+		 * Height of the lowest tiles, which is the most bands a tile can be cut into.
+		 */
+		int minTileHeight() {
+			return h / tilesY;
+		}
+
+		/**
+		 * Histogram of band of the given tile cut into bands bands of rows.
+		 */
+		int[] histogram(int tile, int band, int bands) {
+			int i = tile % tilesX;
+			int j = tile / tilesX;
+			int x0 = tileStartX(i);
+			int tw = tileStartX(i + 1) - x0;
+			int y0 = tileStartY(j);
+			int th = tileStartY(j + 1) - y0;
+			int[] counts = new int[LEVELS];
+			int[] row = new int[tw];
+			for (int y = y0 + th * band / bands; y < y0 + th * (band + 1) / bands; y++) {
+				readRow(image, x0, y, tw, row);
+				RowKernels.maxChannelRow.apply(row, row, tw);
+				for (int k = 0; k < tw; k++) {
+					counts[row[k]]++;
+				}
+			}
+			return counts;
+		}
+
+		void interpolate(float[][] mappings, BufferedImage newImage, int y0, int rows) {
+			// The interpolation position and weights of each column don't change from row to row
+			int[] left = new int[w];
+			int[] right = new int[w];
+			float[] rightWeight = new float[w];
+			float tileWidth = (float) w / tilesX;
+			for (int x = 0; x < w; x++) {
+				float fx = (x + 0.5f) / tileWidth - 0.5f;
+				int i = (int) Math.floor(fx);
+				left[x] = Math.max(0, Math.min(i, tilesX - 1));
+				right[x] = Math.max(0, Math.min(i + 1, tilesX - 1));
+				rightWeight[x] = left[x] == right[x] ? 0f : fx - i;
+			}
+			float tileHeight = (float) h / tilesY;
+			int[] row = new int[w];
+			for (int y = y0; y < y0 + rows; y++) {
+				float fy = (y + 0.5f) / tileHeight - 0.5f;
+				int j = (int) Math.floor(fy);
+				int top = Math.max(0, Math.min(j, tilesY - 1));
+				int bottom = Math.max(0, Math.min(j + 1, tilesY - 1));
+				float bottomWeight = top == bottom ? 0f : fy - j;
+				readRow(image, 0, y, w, row);
+				for (int x = 0; x < w; x++) {
+					int pixel = row[x];
+					int red = (pixel >> 16) & 0xFF;
+					int green = (pixel >> 8) & 0xFF;
+					int blue = pixel & 0xFF;
+					int cmax = Math.max(Math.max(red, green), blue);
+					float ax = rightWeight[x];
+					float topValue = (1 - ax) * mappings[top * tilesX + left[x]][cmax]
+							+ ax * mappings[top * tilesX + right[x]][cmax];
+					float bottomValue = (1 - ax) * mappings[bottom * tilesX + left[x]][cmax]
+							+ ax * mappings[bottom * tilesX + right[x]][cmax];
+					float brightness = (1 - bottomWeight) * topValue + bottomWeight * bottomValue;
+					row[x] = ColorHistEq.hsbWithBrightness(red, green, blue, Math.min(brightness, 1.0f));
+				}
+				writeRow(newImage, 0, y, w, row);
+			}
+		}
+	}
+
+	private static void readRow(BufferedImage image, int x, int y, int w, int[] row) {
+		FJBufferedImage.readSerial(image, x, y, w, 1, row, 0, w);
+	}
+
+	private static void writeRow(BufferedImage image, int x, int y, int w, int[] row) {
+		FJBufferedImage.writeSerial(image, x, y, w, 1, row, 0, w);
+	}
+
+	/**
+	 * Clips the tile histogram at limit and turns it into the cumulative distribution, which is the new brightness for
+	 * each channel value, as probArray is in ColorHistEq. The clipped counts are added back evenly to every bin, with
+	 * the remainder spread over bins at equal steps, so the mapping still ends at 1.
+	 */
+	static float[] clippedMapping(int[] histogram, int pixelCount, double clipLimit) {
+		int limit = Math.max(1, (int) (clipLimit * pixelCount / LEVELS));
+		int excess = 0;
+		int[] clipped = new int[LEVELS];
+		for (int v = 0; v < LEVELS; v++) {
+			clipped[v] = Math.min(histogram[v], limit);
+			excess += histogram[v] - clipped[v];
+		}
+		int increment = excess / LEVELS;
+		int remainder = excess % LEVELS;
+		for (int v = 0; v < LEVELS; v++) {
+			clipped[v] += increment;
+		}
+		if (remainder > 0) {
+			int step = LEVELS / remainder;
+			for (int v = 0; v < LEVELS && remainder > 0; v += step, remainder--) {
+				clipped[v]++;
+			}
+		}
+		float[] mapping = new float[LEVELS];
+		long cumulative = 0;
+		for (int v = 0; v < LEVELS; v++) {
+			cumulative += clipped[v];
+			mapping[v] = (float) ((double) cumulative / (double) pixelCount);
+		}
+		return mapping;
+	}
+
+	private static Timer adaptiveHistEq(BufferedImage image, BufferedImage newImage, int tilesX, int tilesY,
+			double clipLimit, int tasks) {
+		Timer times = new Timer(labels);
+		Tiling tiling = new Tiling(image, tilesX, tilesY);
+		int tiles = tiling.tileCount();
+		times.now();
+		// enough bands for every task to get at least one
+		int bands = Math.max(1, Math.min(tiling.minTileHeight(), (tasks + tiles - 1) / tiles));
+		int[][] bandHistograms = new int[tiles * bands][];
+		run(new TileHistogramTask(tiling, bands, 0, tiles * bands, bandHistograms, tasks), image);
+		times.now();
+		float[][] mappings = new float[tiles][];
+		for (int tile = 0; tile < tiles; tile++) {
+			int[] histogram = bandHistograms[tile * bands];
+			for (int band = 1; band < bands; band++) {
+				for (int v = 0; v < LEVELS; v++) {
+					histogram[v] += bandHistograms[tile * bands + band][v];
+				}
+			}
+			mappings[tile] = clippedMapping(histogram, tiling.tilePixels(tile), clipLimit);
+		}
+		times.now();
+		run(new InterpolateTask(tiling, mappings, newImage, 0, tiling.h, tasks), image);
+		times.now();
+		return times;
+	}
+
+	/**
+	 * Runs the task in the image's pool when it is split, and directly on the calling thread otherwise.
+	 */
+	private static void run(RecursiveAction task, BufferedImage image) {
+		if (image instanceof FJBufferedImage) {
+			((FJBufferedImage) image).getPool().invoke(task);
+		}
+		else {
+			task.invoke();
+		}
+	}
+
+	/**
+	 * Serial CLAHE with the default 8x8 tiles and clip limit of 2.
+	 *
+	 * @param image
+	 * @param newImage
+	 * @return times
+	 */
+	static Timer adaptiveHistEq_serial(BufferedImage image, BufferedImage newImage) {
+		return adaptiveHistEq_serial(image, newImage, defaultTiles, defaultTiles, defaultClipLimit);
+	}
+
+	/**
+	 * Serial CLAHE.
+	 *
+	 * @param image
+	 * @param newImage
+	 * @param tilesX number of tiles across
+	 * @param tilesY number of tiles down
+	 * @param clipLimit maximum height of a histogram bin as a multiple of the average bin height. Large values approach
+	 *                  plain per tile equalization.
+	 * @return times
+	 */
+	static Timer adaptiveHistEq_serial(BufferedImage image, BufferedImage newImage, int tilesX, int tilesY,
+			double clipLimit) {
+		return adaptiveHistEq(image, newImage, tilesX, tilesY, clipLimit, 1);
+	}
+
+	/**
+	 * Parallel CLAHE with the default 8x8 tiles and clip limit of 2.
+	 *
+	 * @param image
+	 * @param newImage
+	 * @return times
+	 */
+	static Timer adaptiveHistEq_parallel(FJBufferedImage image, FJBufferedImage newImage) {
+		return adaptiveHistEq_parallel(image, newImage, defaultTiles, defaultTiles, defaultClipLimit);
+	}
+
+	/**
+	 * Parallel CLAHE. The tile histograms and the interpolation are split into as many tasks as
+	 * FJBufferedImage.getRGB uses, and run in the image's pool.
+	 *
+	 * @param image
+	 * @param newImage
+	 * @param tilesX number of tiles across
+	 * @param tilesY number of tiles down
+	 * @param clipLimit maximum height of a histogram bin as a multiple of the average bin height
+	 * @return times
+	 */
+	static Timer adaptiveHistEq_parallel(FJBufferedImage image, FJBufferedImage newImage, int tilesX, int tilesY,
+			double clipLimit) {
+		return adaptiveHistEq(image, newImage, tilesX, tilesY, clipLimit, image.getTaskCount());
+	}
+}
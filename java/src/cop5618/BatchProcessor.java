@@ -0,0 +1,326 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Runs an image operation over many files with decoding, processing and encoding overlapped.
+ *
+ * Each stage has its own threads: decoders read files with ImageIO.read, processors run the operation, and encoders
+ * write the results with ImageIO.write. The stages are connected by bounded queues, so a slow stage makes the ones
+ * before it wait instead of piling up decoded images on the heap; at most about 2 * queueCapacity images plus one per
+ * thread are in memory at once. The operations in Gray and ColorHistEq already spread a single image over all cores,
+ * so one processor thread is usually enough, and the decoder and encoder threads keep the disks and the codecs busy
+ * while it works.
+ *
+ * A file that fails in any stage is reported in the result's failures and the stage goes on with the next one. That
+ * includes Errors such as OutOfMemoryError on a huge input, since the image that caused it is dropped with the job:
+ * if a stage's threads died instead, the stage before it would block forever on its full queue.
+ */
+public class BatchProcessor {
+
+	/**
+	 * An image operation with the signature of Gray.gray_PS_FJ and ColorHistEq.colorHistEq_parallel.
+	 */
+	@FunctionalInterface
+	public interface Operation {
+		Timer apply(FJBufferedImage image, FJBufferedImage newImage);
+	}
+
+	/**
+	 * An image on its way through the stages. A job with no input file marks the end of the queue.
+	 */
+	private static class Job {
+		final File input;
+		final FJBufferedImage image;
+
+		Job(File input, FJBufferedImage image) {
+			this.input = input;
+			this.image = image;
+		}
+	}
+
+	private static final Job END = new Job(null, null);
+
+	/**
+	 * Outcome of a run.
+	 */
+	public static class Result {
+		public final int images;
+		public final long elapsedNanos;
+		public final long decodeNanos;
+		public final long processNanos;
+		public final long encodeNanos;
+		/** files that could not be processed, with the reason */
+		public final List<String> failures;
+
+		Result(int images, long elapsedNanos, long decodeNanos, long processNanos, long encodeNanos,
+				List<String> failures) {
+			this.images = images;
+			this.elapsedNanos = elapsedNanos;
+			this.decodeNanos = decodeNanos;
+			this.processNanos = processNanos;
+			this.encodeNanos = encodeNanos;
+			this.failures = failures;
+		}
+
+		public double imagesPerSecond() {
+			return images / (elapsedNanos / 1e9);
+		}
+
+		/**
+		 * Throughput and the time spent in each stage, summed over the stage's threads. When the stages overlap well,
+		 * the elapsed time is close to the largest stage time divided by its thread count.
+		 */
+		@Override
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append(String.format("%d images in %.1f secs, %.2f images/sec%n", images, elapsedNanos / 1e9,
+					imagesPerSecond()));
+			sb.append(String.format("decode busy=%.1f secs, process busy=%.1f secs, encode busy=%.1f secs%n",
+					decodeNanos / 1e9, processNanos / 1e9, encodeNanos / 1e9));
+			if (!failures.isEmpty()) {
+				sb.append(String.format("%d failures:%n", failures.size()));
+				for (String failure : failures) {
+					sb.append(failure).append(String.format("%n"));
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	private final Operation operation;
+	private final File outputDirectory;
+	private final String prefix;
+	private final String format;
+	private final int decoders;
+	private final int processors;
+	private final int encoders;
+	private final int queueCapacity;
+
+	/**
+	 * Creates a batch processor with 2 decoder threads, 1 processor thread, 2 encoder threads and queues of 4 images.
+	 *
+	 * @param operation operation to apply to every image
+	 * @param outputDirectory directory the results are written to
+	 * @param prefix added to each input file name to name its result, whose extension is format
+	 * @param format ImageIO format name of the results, such as "jpg"
+	 */
+	public BatchProcessor(Operation operation, File outputDirectory, String prefix, String format) {
+		this(operation, outputDirectory, prefix, format, 2, 1, 2, 4);
+	}
+
+	public BatchProcessor(Operation operation, File outputDirectory, String prefix, String format, int decoders,
+			int processors, int encoders, int queueCapacity) {
+		this.operation = operation;
+		this.outputDirectory = outputDirectory;
+		this.prefix = prefix;
+		this.format = format;
+		this.decoders = decoders;
+		this.processors = processors;
+		this.encoders = encoders;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Processes every file in the directory, in name order. Files ImageIO can't read are reported as failures.
+	 */
+	public Result run(File inputDirectory) throws InterruptedException {
+		File[] files = inputDirectory.listFiles(File::isFile);
+		if (files == null) {
+			files = new File[0];
+		}
+		Arrays.sort(files);
+		return run(Arrays.asList(files));
+	}
+
+	/**
+	 * Processes the given files and waits until all results are written.
+	 */
+	public Result run(List<File> inputs) throws InterruptedException {
+		BlockingQueue<Job> decoded = new ArrayBlockingQueue<Job>(queueCapacity);
+		BlockingQueue<Job> processed = new ArrayBlockingQueue<Job>(queueCapacity);
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger written = new AtomicInteger();
+		AtomicLong decodeNanos = new AtomicLong();
+		AtomicLong processNanos = new AtomicLong();
+		AtomicLong encodeNanos = new AtomicLong();
+		List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+		long start = System.nanoTime();
+		List<Thread> decodeThreads = startThreads("decode", decoders, () -> {
+			for (int i = next.getAndIncrement(); i < inputs.size(); i = next.getAndIncrement()) {
+				File input = inputs.get(i);
+				long t0 = System.nanoTime();
+				BufferedImage image;
+				try {
+					image = ImageIO.read(input);
+				}
+				catch (Throwable e) {
+					failures.add(input + ": " + e);
+					continue;
+				}
+				finally {
+					decodeNanos.addAndGet(System.nanoTime() - t0);
+				}
+				if (image == null) {
+					failures.add(input + ": not an image, or no ImageIO reader for its format");
+					continue;
+				}
+				put(decoded, new Job(input, FJBufferedImage.BufferedImageToFJBufferedImage(image)));
+			}
+		});
+		List<Thread> processThreads = startThreads("process", processors, () -> {
+			for (Job job = take(decoded); job != END; job = take(decoded)) {
+				long t0 = System.nanoTime();
+				FJBufferedImage newImage;
+				try {
+					newImage = new FJBufferedImage(job.image.getWidth(), job.image.getHeight(),
+							outputType(job.image, format));
+					operation.apply(job.image, newImage);
+				}
+				catch (Throwable e) {
+					// keep going, so that the decoders are not left blocked on a full queue
+					failures.add(job.input + ": " + e);
+					continue;
+				}
+				finally {
+					processNanos.addAndGet(System.nanoTime() - t0);
+				}
+				put(processed, new Job(job.input, newImage));
+			}
+		});
+		List<Thread> encodeThreads = startThreads("encode", encoders, () -> {
+			for (Job job = take(processed); job != END; job = take(processed)) {
+				File output = outputFile(job.input);
+				long t0 = System.nanoTime();
+				try {
+					if (ImageIO.write(job.image, format, output)) {
+						written.incrementAndGet();
+					}
+					else {
+						failures.add(output + ": no " + format + " writer for this image type");
+					}
+				}
+				catch (Throwable e) {
+					// ImageIO.write also throws unchecked exceptions, for instance for a format it can't encode
+					failures.add(output + ": " + e);
+				}
+				encodeNanos.addAndGet(System.nanoTime() - t0);
+			}
+		});
+
+		// Shut the stages down in order: once every decoder is done, each processor gets an END, and so on
+		join(decodeThreads);
+		for (int i = 0; i < processors; i++) {
+			decoded.put(END);
+		}
+		join(processThreads);
+		for (int i = 0; i < encoders; i++) {
+			processed.put(END);
+		}
+		join(encodeThreads);
+		return new Result(written.get(), System.nanoTime() - start, decodeNanos.get(), processNanos.get(),
+				encodeNanos.get(), new ArrayList<String>(failures));
+	}
+
+	/**
+	 * The result of input is written to prefix + input's name, with its extension replaced by the output format.
+	 */
+	private File outputFile(File input) {
+		String name = input.getName();
+		int dot = name.lastIndexOf('.');
+		return new File(outputDirectory, prefix + (dot > 0 ? name.substring(0, dot) : name) + "." + format);
+	}
+
+	/**
+	 * Type for the result of processing image when it is written in format. Custom types can't be created from a type
+	 * code, and images with an alpha channel can't be written as JPEG, so those get TYPE_INT_RGB.
+	 */
+	static int outputType(BufferedImage image, String format) {
+		int type = image.getType();
+		if (type == BufferedImage.TYPE_CUSTOM
+				|| (image.getColorModel().hasAlpha() && (format.equalsIgnoreCase("jpg") || format.equalsIgnoreCase("jpeg")))) {
+			return BufferedImage.TYPE_INT_RGB;
+		}
+		return type;
+	}
+
+	private static List<Thread> startThreads(String name, int count, Runnable body) {
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < count; i++) {
+			Thread thread = new Thread(body, "batch-" + name + "-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		return threads;
+	}
+
+	private static void join(List<Thread> threads) throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	// The stage threads are never interrupted by the processor itself; if something else interrupts them, the
+	// thread stops and the interrupt is turned into an unchecked exception so it is not silently lost.
+
+	private static void put(BlockingQueue<Job> queue, Job job) {
+		try {
+			queue.put(job);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted", e);
+		}
+	}
+
+	private static Job take(BlockingQueue<Job> queue) {
+		try {
+			return queue.take();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted", e);
+		}
+	}
+
+	/**
+	 * Command line entry point:  BatchProcessor gray|equalize inputDirectory outputDirectory [format]
+	 */
+	public static void main(String[] args) throws Exception {
+		String usage = "usage: BatchProcessor gray|equalize inputDirectory outputDirectory [format]";
+		if (args.length < 3) {
+			System.out.println(usage);
+			return;
+		}
+		Operation operation;
+		if (args[0].equals("gray")) {
+			operation = Gray::gray_PS_FJ;
+		}
+		else if (args[0].equals("equalize")) {
+			operation = ColorHistEq::colorHistEq_lut;
+		}
+		else {
+			System.out.println("unknown operation " + args[0]);
+			System.out.println(usage);
+			return;
+		}
+		String format = args.length > 3 ? args[3] : "jpg";
+		File outputDirectory = new File(args[2]);
+		outputDirectory.mkdirs();
+		BatchProcessor batch = new BatchProcessor(operation, outputDirectory, args[0] + "_", format);
+		System.out.println(batch.run(new File(args[1])));
+	}
+}
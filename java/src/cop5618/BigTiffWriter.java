@@ -0,0 +1,272 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes an uncompressed 8 bit RGB or RGBA BigTIFF file a strip of rows at a time, for outputs too large for classic
+ * TIFF.
+ *
+ * Classic TIFF stores file offsets in 32 bits, so a file can't be larger than 4 GB, which an uncompressed RGB image
+ * reaches at about 1.4 gigapixels. The JDK's TIFF writer only writes classic TIFF. BigTIFF is the same format with 64
+ * bit offsets and counts, and is read by libtiff and the tools built on it (GDAL, ImageMagick, VIPS, OpenSlide and
+ * most scan viewers), but not by ImageIO.
+ *
+ * The strips have to be written from top to bottom, each with rowsPerStrip rows except the last one. Each becomes one
+ * TIFF strip, written straight after the one before it, so the file is written sequentially and nothing but one row
+ * of bytes is buffered. The image file directory, which holds the strip offsets, goes at the end when the writer is
+ * closed, and the header is then pointed at it.
+ *
+ * layout:
+ *
+ * bytes 0-15   "II", 43, 8, 0 and the offset of the directory, all little endian
+ * bytes 16-    the strips, with the samples of a pixel in R, G, B(, A) order
+ * then         the directory and the tag values that don't fit in it
+ */
+public class BigTiffWriter implements AutoCloseable {
+
+	static final int HEADER_BYTES = 16;
+	static final short BIG_TIFF_VERSION = 43;
+
+	// TIFF tags and field types used
+	static final int IMAGE_WIDTH = 256;
+	static final int IMAGE_LENGTH = 257;
+	static final int BITS_PER_SAMPLE = 258;
+	static final int COMPRESSION = 259;
+	static final int PHOTOMETRIC_INTERPRETATION = 262;
+	static final int STRIP_OFFSETS = 273;
+	static final int SAMPLES_PER_PIXEL = 277;
+	static final int ROWS_PER_STRIP = 278;
+	static final int STRIP_BYTE_COUNTS = 279;
+	static final int PLANAR_CONFIGURATION = 284;
+	static final int EXTRA_SAMPLES = 338;
+	static final short SHORT = 3;
+	static final short LONG = 4;
+	static final short LONG8 = 16;
+
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int samples;
+	private final int rowsPerStrip;
+	private final List<Long> stripOffsets = new ArrayList<Long>();
+	private final List<Long> stripByteCounts = new ArrayList<Long>();
+	private final ByteBuffer row;
+	private final int[] pixels;
+	private int nextRow;
+
+	/**
+	 * Creates file, replacing any file of that name, for a width by height image.
+	 *
+	 * @param alpha true to write an alpha channel
+	 * @param rowsPerStrip rows in every strip but the last
+	 */
+	public BigTiffWriter(File file, int width, int height, boolean alpha, int rowsPerStrip) throws IOException {
+		if (width <= 0 || height <= 0 || rowsPerStrip <= 0) {
+			throw new IllegalArgumentException("bad size " + width + "x" + height + " or rows per strip " + rowsPerStrip);
+		}
+		this.width = width;
+		this.height = height;
+		this.samples = alpha ? 4 : 3;
+		this.rowsPerStrip = rowsPerStrip;
+		row = ByteBuffer.allocate(Math.multiplyExact(width, samples));
+		pixels = new int[width];
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte) 'I').put((byte) 'I').putShort(BIG_TIFF_VERSION).putShort((short) 8).putShort((short) 0);
+		// the offset of the directory, filled in by close
+		header.putLong(0).flip();
+		write(header);
+	}
+
+	/**
+	 * Writes strip as the rows starting at y, which must be the row after the last strip written.
+	 */
+	public void write(BufferedImage strip, int y) throws IOException {
+		int rows = strip.getHeight();
+		if (y != nextRow || strip.getWidth() != width || (rows != rowsPerStrip && y + rows != height)
+				|| y + rows > height) {
+			throw new IllegalArgumentException("expected " + Math.min(rowsPerStrip, height - nextRow) + " rows of "
+					+ width + " pixels at row " + nextRow + ", got " + rows + " rows of " + strip.getWidth()
+					+ " at row " + y);
+		}
+		stripOffsets.add(channel.position());
+		stripByteCounts.add((long) rows * row.capacity());
+		for (int r = 0; r < rows; r++) {
+			strip.getRGB(0, r, width, 1, pixels, 0, width);
+			row.clear();
+			for (int pixel : pixels) {
+				row.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel);
+				if (samples == 4) {
+					row.put((byte) (pixel >>> 24));
+				}
+			}
+			row.flip();
+			write(row);
+		}
+		nextRow = y + rows;
+	}
+
+	/**
+	 * Writes the directory and closes the file.
+	 *
+	 * @throws IOException also if fewer rows than the height of the image were written; the file is then incomplete
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (nextRow < height) {
+				throw new IOException("only " + nextRow + " of " + height + " rows were written");
+			}
+			long directory = (channel.position() + 1) & ~1L;
+			int strips = stripOffsets.size();
+			int entries = samples == 4 ? 11 : 10;
+			long directoryBytes = 8 + 20L * entries + 8;
+			// values that don't fit in the 8 bytes of an entry follow the directory
+			long extra = directory + directoryBytes;
+			ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(directoryBytes + (strips > 1 ? 16L * strips : 0)))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putLong(entries);
+			entry(buffer, IMAGE_WIDTH, LONG, 1, width);
+			entry(buffer, IMAGE_LENGTH, LONG, 1, height);
+			// 8 for every sample, four 16 bit values fit in the entry
+			buffer.putShort((short) BITS_PER_SAMPLE).putShort(SHORT).putLong(samples);
+			for (int s = 0; s < 4; s++) {
+				buffer.putShort((short) (s < samples ? 8 : 0));
+			}
+			entry(buffer, COMPRESSION, SHORT, 1, 1);
+			// RGB
+			entry(buffer, PHOTOMETRIC_INTERPRETATION, SHORT, 1, 2);
+			entry(buffer, STRIP_OFFSETS, LONG8, strips, strips > 1 ? extra : stripOffsets.get(0));
+			entry(buffer, SAMPLES_PER_PIXEL, SHORT, 1, samples);
+			entry(buffer, ROWS_PER_STRIP, LONG, 1, rowsPerStrip);
+			entry(buffer, STRIP_BYTE_COUNTS, LONG8, strips, strips > 1 ? extra + 8L * strips : stripByteCounts.get(0));
+			// samples interleaved
+			entry(buffer, PLANAR_CONFIGURATION, SHORT, 1, 1);
+			if (samples == 4) {
+				// unassociated alpha, which is what the default ARGB format holds
+				entry(buffer, EXTRA_SAMPLES, SHORT, 1, 2);
+			}
+			// no next directory
+			buffer.putLong(0);
+			if (strips > 1) {
+				for (long offset : stripOffsets) {
+					buffer.putLong(offset);
+				}
+				for (long count : stripByteCounts) {
+					buffer.putLong(count);
+				}
+			}
+			buffer.flip();
+			channel.position(directory);
+			write(buffer);
+			ByteBuffer offset = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			offset.putLong(directory).flip();
+			channel.position(8);
+			write(offset);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Puts a directory entry whose value fits in its 8 bytes, or that holds the offset of its values.
+	 */
+	private static void entry(ByteBuffer buffer, int tag, short type, long count, long value) {
+		buffer.putShort((short) tag).putShort(type).putLong(count);
+		if (type == SHORT && count == 1) {
+			// left justified in the value field, like every value shorter than 8 bytes
+			buffer.putShort((short) value).putShort((short) 0).putInt(0);
+		}
+		else if (type == LONG && count == 1) {
+			buffer.putInt((int) value).putInt(0);
+		}
+		else {
+			buffer.putLong(value);
+		}
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Reads a file written by this class back into a TYPE_INT_ARGB image, for checking the output of smaller images,
+	 * since ImageIO can't. Other BigTIFF files are rejected unless they happen to use the same layout.
+	 */
+	static BufferedImage read(File file) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = read(in, 0, HEADER_BYTES);
+			if (header.get() != 'I' || header.get() != 'I' || header.getShort() != BIG_TIFF_VERSION
+					|| header.getShort() != 8) {
+				throw new IOException(file + " is not a little endian BigTIFF file");
+			}
+			header.getShort();
+			long directory = header.getLong();
+			long entries = read(in, directory, 8).getLong();
+			ByteBuffer entry = read(in, directory + 8, Math.toIntExact(20 * entries));
+			long[] values = new long[EXTRA_SAMPLES + 1];
+			long strips = 0;
+			for (int e = 0; e < entries; e++) {
+				int tag = entry.getShort() & 0xFFFF;
+				short type = entry.getShort();
+				long count = entry.getLong();
+				long value = type == SHORT ? entry.getShort() & 0xFFFF : type == LONG ? entry.getInt() & 0xFFFFFFFFL
+						: entry.getLong();
+				entry.position(20 * (e + 1));
+				if (tag < values.length) {
+					values[tag] = value;
+				}
+				if (tag == STRIP_OFFSETS) {
+					strips = count;
+				}
+			}
+			int width = Math.toIntExact(values[IMAGE_WIDTH]);
+			int height = Math.toIntExact(values[IMAGE_LENGTH]);
+			int samples = (int) values[SAMPLES_PER_PIXEL];
+			if (values[COMPRESSION] != 1 || values[PHOTOMETRIC_INTERPRETATION] != 2 || (samples != 3 && samples != 4)
+					|| values[BITS_PER_SAMPLE] != 8) {
+				throw new IOException(file + " is not an uncompressed 8 bit RGB or RGBA BigTIFF file");
+			}
+			ByteBuffer offsets = strips == 1 ? null : read(in, values[STRIP_OFFSETS], Math.toIntExact(8 * strips));
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			int[] pixels = new int[width];
+			int rowsPerStrip = Math.toIntExact(values[ROWS_PER_STRIP]);
+			for (int y = 0; y < height; y++) {
+				long stripOffset = offsets == null ? values[STRIP_OFFSETS] : offsets.getLong(8 * (y / rowsPerStrip));
+				ByteBuffer row = read(in, stripOffset + (long) (y % rowsPerStrip) * width * samples, width * samples);
+				for (int x = 0; x < width; x++) {
+					int red = row.get() & 0xFF;
+					int green = row.get() & 0xFF;
+					int blue = row.get() & 0xFF;
+					int alpha = samples == 4 ? row.get() & 0xFF : 255;
+					pixels[x] = HW3Utils.makeRGBPixel(red, green, blue, alpha);
+				}
+				image.setRGB(0, y, width, 1, pixels, 0, width);
+			}
+			return image;
+		}
+	}
+
+	private static ByteBuffer read(FileChannel in, long position, int bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("unexpected end of file at " + (position + buffer.position()));
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -7,8 +7,12 @@ import java.awt.image.ColorModel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.DoubleBinaryOperator;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -17,10 +21,23 @@ public class ColorHistEq {
     //Use these labels to instantiate you timers.  You will need 8 invocations of now()
 	static String[] labels = { "getRGB", "convert to HSB", "create brightness map", "probability array",
 			"parallel prefix", "equalize pixels", "setRGB" };
+	// Labels for colorHistEq_primitive, which reads the image once to build the histogram and once to equalize it, so
+	// the getRGB, HSB conversion and setRGB stages are folded into the two passes. You will need 5 invocations of now()
+	static String[] primitiveLabels = { "create brightness map", "probability array", "parallel prefix",
+			"equalize pixels" };
+	// Labels for the versions that count and remap the pixels straight from the ARGB array through lookup tables, which
+	// have no conversion stage. You will need 7 invocations of now()
+	static String[] lutLabels = { "getRGB", "create brightness map", "probability array", "parallel prefix",
+			"equalize pixels", "setRGB" };
 	// In the assignment, this was said to be given. However, I don't see any additional input arguments in the
 	// HW3TestColorHisEq to provide a binNum, so the amount of bins can be specified here
 	static int binNum = 256;
 
+	// the lookup table versions, one per mode, for colorHistEq_adaptive
+	static final AdaptiveDispatcher adaptive = new AdaptiveDispatcher("colorHistEq_lut",
+			ColorHistEq::colorHistEq_lut_serial, ColorHistEq::colorHistEq_lut_PS,
+			AdaptiveDispatcher.forkJoin(ColorHistEq::colorHistEq_lut));
+
 	static Timer colorHistEq_serial(BufferedImage image, BufferedImage newImage) {
 		Timer times = new Timer(labels);
 		ColorModel colorModel = ColorModel.getRGBdefault();
@@ -30,61 +47,63 @@ public class ColorHistEq {
 		int pixelCount = w * h;
 		// I don't want more bins than there are pixelCounts
 		int bins = Math.min(binNum, pixelCount);
-		times.now();
-		int[] srcPixelArray = image.getRGB(0, 0, w, h, new int[pixelCount], 0, w);
-		times.now();
-		// Convert to HSB from RGB
-		Object[] HSBArray =
-				Arrays.stream(srcPixelArray)
-									// The input is ints, but we need to convert every entry to a float array. Therefore,
-									// it has to be mapped to an object
-									.mapToObj(pixel -> Color.RGBtoHSB(colorModel.getRed(pixel),
-															colorModel.getGreen(pixel),
-															colorModel.getBlue(pixel),
-															new float[3]))
-									.toArray();
-		times.now();
-		// The brightness map has to be contained in a Map at first; it is the only available return type for collect.
-		// I will convert the map to an index-based map in the next part of this step
-		Map<Integer, Long> brightnessMap =
-				Arrays.stream(HSBArray)
-						// Convert to integer. This is the bin number assignment: brightness * bin_count
-						.mapToInt(pixel -> Math.min((int)(((float[])pixel)[2]*bins), bins-1))
-						// Must box IntStream into Stream of Integer objects to be able to call collect with a Collector
-						// input argument
-						.boxed()
-						// Collect into Map by grouping the Integer values by their identity (the value itself), and reducing
-						// based on the aggregate count of items in every bin, whose numbers are specified as the Integer
-						// values
-						.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
-
-		// Now convert the map to an integer array. No key in map means 0 count; otherwise the amount of elements in the bin
-		// equal the value matching the bin number key
-		int[] histogram = IntStream.range(0, bins)
-									.map(index -> brightnessMap.containsKey(index) ? brightnessMap.get(index).intValue() : 0)
-									.toArray();
-		times.now();
-		// Calculate the probability array by dividing the count of pixels in each bin by the total number of pixels
-		// contained through all bins
-		double[] probArray = Arrays.stream(histogram)
-									// No such thing as a FloatStream; must use DoubleStream
-									.mapToDouble(bin -> (double)bin / (double)pixelCount)
-									.toArray();
-		times.now();
-		// Calculate the parallelPrefix to get cumulative probability distribution
-		Arrays.parallelPrefix(probArray, (x,y)->x+y);
-		times.now();
-		// Now, for each pixel in the HSBArray, return a new array of RGB values equal to the converted HSB array while
-		// replacing each pixel's brightness by the brightness value calculated in the pixel's corresponding bin in the
-		// cumulative probArray
-		int[] equalizedPixelArray = Arrays.stream(HSBArray)
-											.mapToInt(pixel -> Color.HSBtoRGB(((float[])pixel)[0],
-																				((float[])pixel)[1],
-																				(float)probArray[Math.min((int) (((float[])pixel)[2]*bins), bins-1)]))
-											.toArray();
-		times.now();
-		newImage.setRGB(0, 0, w, h, equalizedPixelArray, 0, w);
-		times.now();
+		// The image sized arrays are borrowed from the pool, so that calls on images of the same size reuse them
+		int[] pixelArray = PixelBufferPool.shared.borrowInts(pixelCount);
+		float[] hueArray = PixelBufferPool.shared.borrowFloats(pixelCount);
+		float[] saturationArray = PixelBufferPool.shared.borrowFloats(pixelCount);
+		float[] brightnessArray = PixelBufferPool.shared.borrowFloats(pixelCount);
+		try {
+			times.now();
+			image.getRGB(0, 0, w, h, pixelArray, 0, w);
+			times.now();
+			// Convert to HSB from RGB. Rather than keeping a float[3] per pixel in an Object[], the three components are
+			// copied into separate arrays, which are borrowed from the pool
+			IntStream.range(0, pixelCount)
+					.forEach(i -> toHSB(colorModel, pixelArray[i], i, hueArray, saturationArray, brightnessArray));
+			times.now();
+			// The brightness map has to be contained in a Map at first; it is the only available return type for collect.
+			// I will convert the map to an index-based map in the next part of this step
+			Map<Integer, Long> brightnessMap =
+					IntStream.range(0, pixelCount)
+							// Convert to integer. This is the bin number assignment: brightness * bin_count
+							.map(i -> Math.min((int)(brightnessArray[i]*bins), bins-1))
+							// Must box IntStream into Stream of Integer objects to be able to call collect with a Collector
+							// input argument
+							.boxed()
+							// Collect into Map by grouping the Integer values by their identity (the value itself), and reducing
+							// based on the aggregate count of items in every bin, whose numbers are specified as the Integer
+							// values
+							.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+
+			// Now convert the map to an integer array. No key in map means 0 count; otherwise the amount of elements in the bin
+			// equal the value matching the bin number key
+			int[] histogram = IntStream.range(0, bins)
+										.map(index -> brightnessMap.containsKey(index) ? brightnessMap.get(index).intValue() : 0)
+										.toArray();
+			times.now();
+			// Calculate the probability array by dividing the count of pixels in each bin by the total number of pixels
+			// contained through all bins
+			double[] probArray = Arrays.stream(histogram)
+										// No such thing as a FloatStream; must use DoubleStream
+										.mapToDouble(bin -> (double)bin / (double)pixelCount)
+										.toArray();
+			times.now();
+			// Calculate the parallelPrefix to get cumulative probability distribution
+			Arrays.parallelPrefix(probArray, (x,y)->x+y);
+			times.now();
+			// Now, for each pixel, store the RGB value of its HSB values back in the pixel array while replacing the
+			// pixel's brightness by the brightness value calculated in the pixel's corresponding bin in the cumulative
+			// probArray
+			IntStream.range(0, pixelCount)
+					.forEach(i -> pixelArray[i] = Color.HSBtoRGB(hueArray[i], saturationArray[i],
+															(float)probArray[Math.min((int) (brightnessArray[i]*bins), bins-1)]));
+			times.now();
+			newImage.setRGB(0, 0, w, h, pixelArray, 0, w);
+			times.now();
+		}
+		finally {
+			release(pixelArray, hueArray, saturationArray, brightnessArray);
+		}
 
 		return times;
 	}
@@ -107,49 +126,604 @@ public class ColorHistEq {
 		int h = image.getHeight();
 		int pixelCount = w * h;
 		int bins = Math.min(binNum, pixelCount);
-		times.now();
-		int[] srcPixelArray = image.getRGB(0, 0, w, h, new int[pixelCount], 0, w);
-		times.now();
-		Object[] HSBArray =
-				Arrays.stream(srcPixelArray)
-						.parallel()
-						.mapToObj(pixel -> Color.RGBtoHSB(colorModel.getRed(pixel),
-								colorModel.getGreen(pixel),
-								colorModel.getBlue(pixel),
-								new float[3]))
-						.toArray();
-		times.now();
+		int[] pixelArray = PixelBufferPool.shared.borrowInts(pixelCount);
+		float[] hueArray = PixelBufferPool.shared.borrowFloats(pixelCount);
+		float[] saturationArray = PixelBufferPool.shared.borrowFloats(pixelCount);
+		float[] brightnessArray = PixelBufferPool.shared.borrowFloats(pixelCount);
+		try {
+			times.now();
+			image.getRGB(0, 0, w, h, pixelArray, 0, w);
+			times.now();
+			IntStream.range(0, pixelCount)
+					.parallel()
+					.forEach(i -> toHSB(colorModel, pixelArray[i], i, hueArray, saturationArray, brightnessArray));
+			times.now();
+
+			// counted into an int[] per worker, where groupingBy would merge HashMaps of boxed counts
+			int[] histogram = ParallelHistogram.count(pixelCount, i -> Math.min((int)(brightnessArray[i]*bins), bins-1), bins);
+			times.now();
+			double[] probArray = Arrays.stream(histogram)
+										.parallel()
+										.mapToDouble(bin -> (double)bin / (double)pixelCount)
+										.toArray();
+			times.now();
+			Arrays.parallelPrefix(probArray, (x,y)->x+y);
+			times.now();
+			IntStream.range(0, pixelCount)
+					.parallel()
+					.forEach(i -> pixelArray[i] = Color.HSBtoRGB(hueArray[i], saturationArray[i],
+													(float)probArray[Math.min((int) (brightnessArray[i]*bins), bins-1)]));
+			times.now();
+			newImage.setRGB(0, 0, w, h, pixelArray, 0, w);
+			times.now();
+		}
+		finally {
+			release(pixelArray, hueArray, saturationArray, brightnessArray);
+		}
+
+		return times;
+	}
+
+
+	/**
+	 * Stores the hue, saturation and brightness Color.RGBtoHSB computes for pixel at index i of the three arrays.
+	 * This is the conversion the other versions are checked against, so it doesn't use the hue and saturation helpers.
+	 */
+	private static void toHSB(ColorModel colorModel, int pixel, int i, float[] hueArray, float[] saturationArray,
+			float[] brightnessArray) {
+		float[] hsb = Color.RGBtoHSB(colorModel.getRed(pixel), colorModel.getGreen(pixel), colorModel.getBlue(pixel),
+				null);
+		hueArray[i] = hsb[0];
+		saturationArray[i] = hsb[1];
+		brightnessArray[i] = hsb[2];
+	}
+
+	private static void release(int[] pixelArray, float[] hueArray, float[] saturationArray, float[] brightnessArray) {
+		PixelBufferPool.shared.release(pixelArray);
+		PixelBufferPool.shared.release(hueArray);
+		PixelBufferPool.shared.release(saturationArray);
+		PixelBufferPool.shared.release(brightnessArray);
+	}
+
+	/**
+	 *
+	 * @param image
+	 * @param newImage
+	 * @return times
+	 *
+	 * Produces the same image as colorHistEq_parallel without creating any per pixel objects or image sized arrays.
+	 * The stream pipeline above keeps the HSB values of every pixel in image sized arrays and counts boxed Integer bins
+	 * in a HashMap; here the hue, saturation and brightness are recomputed from the pixel whenever they are needed,
+	 * since that is only a few integer comparisons and float divisions, and the histogram is an int[] per fork/join
+	 * leaf that is summed on the way back up. The image is read twice, once for the histogram and once to write the equalized
+	 * pixels straight into newImage, and the only allocations are the per leaf histograms and row buffers and the
+	 * bins sized probability array.
+	 */
+	static Timer colorHistEq_primitive(FJBufferedImage image, FJBufferedImage newImage) {
+		return colorHistEq_primitive(image, newImage, false);
+	}
+
+	/**
+	 *
+	 * @param image
+	 * @param newImage
+	 * @return times
+	 *
+	 * Same as colorHistEq_primitive, but the equalize step goes through a lookup table. The new brightness of a pixel
+	 * only depends on its bin, and the bin only depends on the largest of its three channels, so before touching the
+	 * pixels a 256 entry table from that channel value to the equalized brightness is filled in once (1 KB, it stays in
+	 * L1). Each pixel then costs a table lookup instead of the brightness, bin and probArray calculation, and the HSB
+	 * round trip is done by hsbWithBrightness, which skips the work Color.RGBtoHSB and Color.HSBtoRGB would repeat.
+	 * The output is identical to the other versions.
+	 */
+	static Timer colorHistEq_lut(FJBufferedImage image, FJBufferedImage newImage) {
+		return colorHistEq_primitive(image, newImage, true);
+	}
+
+	/**
+	 *
+	 * @param image
+	 * @param newImage
+	 * @return times
+	 *
+	 * Serial version of colorHistEq_lut. The pixels are copied into an array, counted by their largest channel and
+	 * remapped through the same 256 entry brightness table, all on the calling thread, including the getRGB and
+	 * setRGB of an FJBufferedImage. The timer has the stages of lutLabels.
+	 */
+	static Timer colorHistEq_lut_serial(BufferedImage image, BufferedImage newImage) {
+		return colorHistEq_lut_streams(image, newImage, false);
+	}
+
+	/**
+	 * Parallel stream version of colorHistEq_lut_serial: the histogram is counted by ParallelHistogram and the pixels
+	 * are remapped with a parallel stream, both in the pool of an FJBufferedImage and in the common pool otherwise.
+	 * The result is the same.
+	 */
+	static Timer colorHistEq_lut_PS(BufferedImage image, BufferedImage newImage) {
+		return colorHistEq_lut_streams(image, newImage, true);
+	}
+
+	private static Timer colorHistEq_lut_streams(BufferedImage image, BufferedImage newImage, boolean parallel) {
+		Timer times = new Timer(lutLabels);
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int pixelCount = w * h;
+		int bins = Math.min(binNum, pixelCount);
+		ForkJoinPool pool = !parallel ? null
+				: image instanceof FJBufferedImage ? ((FJBufferedImage) image).getPool() : ForkJoinPool.commonPool();
+		int[] pixelArray = PixelBufferPool.shared.borrowInts(pixelCount);
+		try {
+			times.now();
+			if (parallel) {
+				image.getRGB(0, 0, w, h, pixelArray, 0, w);
+			}
+			else {
+				FJBufferedImage.readSerial(image, 0, 0, w, h, pixelArray, 0, w);
+			}
+			times.now();
+			int[] channelCounts;
+			if (parallel) {
+				channelCounts = ParallelHistogram.count(pixelCount, i -> maxChannel(pixelArray[i]), 256, pool);
+			}
+			else {
+				channelCounts = new int[256];
+				for (int i = 0; i < pixelCount; i++) {
+					channelCounts[maxChannel(pixelArray[i])]++;
+				}
+			}
+			times.now();
+			double[] probArray = brightnessProbabilities(channelCounts, bins);
+			times.now();
+			float[] brightnessTable = brightnessTable(probArray);
+			times.now();
+			forEach(pixelCount, i -> {
+				int pixel = pixelArray[i];
+				int red = (pixel >> 16) & 0xFF;
+				int green = (pixel >> 8) & 0xFF;
+				int blue = pixel & 0xFF;
+				pixelArray[i] = hsbWithBrightness(red, green, blue, brightnessTable[Math.max(Math.max(red, green), blue)]);
+			}, pool);
+			times.now();
+			if (parallel) {
+				newImage.setRGB(0, 0, w, h, pixelArray, 0, w);
+			}
+			else {
+				FJBufferedImage.writeSerial(newImage, 0, 0, w, h, pixelArray, 0, w);
+			}
+			times.now();
+		}
+		finally {
+			PixelBufferPool.shared.release(pixelArray);
+		}
+		return times;
+	}
+
+	/**
+	 *
+	 * @param image
+	 * @param newImage
+	 * @return times
+	 *
+	 * Runs colorHistEq_lut_serial, colorHistEq_lut_PS or colorHistEq_lut, whichever has been fastest for images of
+	 * about this size (see AdaptiveDispatcher). These are the serial, parallel stream and fork/join versions of the
+	 * same algorithm, so the dispatcher compares only how they run. They all give the same image as
+	 * colorHistEq_serial. The timer has a single "colorHistEq_lut" stage, whichever version ran.
+	 */
+	public static Timer colorHistEq_adaptive(BufferedImage image, BufferedImage newImage) {
+		return adaptive.apply(image, newImage);
+	}
+
+	/**
+	 *
+	 * @param image
+	 * @param newImage
+	 * @return times
+	 *
+	 * Equalizes the red, green and blue channels independently instead of the HSB brightness. All three histograms
+	 * are counted in one pass over the pixels, into binNum integer bins per channel, and the pixels are then mapped
+	 * through a 256 entry table per channel, with no floating point and no HSB conversion. Colors shift, since every
+	 * channel is stretched on its own, but the contrast of each channel is used fully. There is nothing to convert, so
+	 * the timer has the stages of lutLabels.
+	 */
+	static Timer colorHistEq_rgb_serial(BufferedImage image, BufferedImage newImage) {
+		return colorHistEq_channels(image, newImage, false, null);
+	}
+
+	/**
+	 * Parallel version of colorHistEq_rgb_serial, with the histograms counted by ParallelHistogram and the tables
+	 * applied with a parallel stream, both in image's pool. The result is the same as that of colorHistEq_rgb_serial.
+	 */
+	static Timer colorHistEq_rgb_parallel(FJBufferedImage image, FJBufferedImage newImage) {
+		return colorHistEq_channels(image, newImage, false, image.getPool());
+	}
+
+	/**
+	 *
+	 * @param image
+	 * @param newImage
+	 * @return times
+	 *
+	 * Equalizes the luma, the Y of YCbCr, and leaves the chroma as it is. The timer has the stages of
+	 * ColorHistEq.labels: the luma of every pixel is computed with the fixed point weights of gray_fused_FJ in the
+	 * "convert to HSB" stage, its histogram is counted, and the new luma is looked up in a table. Keeping Cb and Cr while changing Y by d adds d to each of R, G and B, so the pixel
+	 * is rebuilt with three additions and clamps instead of a conversion back from YCbCr.
+	 */
+	static Timer colorHistEq_luma_serial(BufferedImage image, BufferedImage newImage) {
+		return colorHistEq_channels(image, newImage, true, null);
+	}
+
+	/**
+	 * Parallel version of colorHistEq_luma_serial, running in image's pool. The result is the same as that of
+	 * colorHistEq_luma_serial.
+	 */
+	static Timer colorHistEq_luma_parallel(FJBufferedImage image, FJBufferedImage newImage) {
+		return colorHistEq_channels(image, newImage, true, image.getPool());
+	}
+
+	/**
+	 * Equalizes the channels, or the luma if luma is true, serially if pool is null and in pool otherwise.
+	 */
+	private static Timer colorHistEq_channels(BufferedImage image, BufferedImage newImage, boolean luma,
+			ForkJoinPool pool) {
+		Timer times = new Timer(luma ? labels : lutLabels);
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int pixelCount = w * h;
+		// more bins than channel values would only leave bins empty
+		int bins = Math.min(binNum, 256);
+		int channels = luma ? 1 : 3;
+		int[] pixelArray = PixelBufferPool.shared.borrowInts(pixelCount);
+		int[] lumaArray = luma ? PixelBufferPool.shared.borrowInts(pixelCount) : null;
+		try {
+			times.now();
+			image.getRGB(0, 0, w, h, pixelArray, 0, w);
+			times.now();
+			if (luma) {
+				forEach(pixelCount, i -> lumaArray[i] = Gray.grayPixelFixed(pixelArray[i]) & 0xFF, pool);
+				times.now();
+			}
+			// channel c of the pixels, counting from blue, is counted in bins [c * bins, (c + 1) * bins). The three
+			// channels of a pixel are counted together, so every pixel is read once
+			int[] histogram;
+			if (luma) {
+				IntUnaryOperator binOf = i -> lumaArray[i] * bins >> 8;
+				if (pool != null) {
+					histogram = ParallelHistogram.count(pixelCount, binOf, bins, pool);
+				}
+				else {
+					histogram = new int[bins];
+					for (int i = 0; i < pixelCount; i++) {
+						histogram[binOf.applyAsInt(i)]++;
+					}
+				}
+			}
+			else if (pool != null) {
+				histogram = ParallelHistogram.channels(pixelArray, pixelCount, bins, pool);
+			}
+			else {
+				histogram = new int[3 * bins];
+				ParallelHistogram.countChannels(pixelArray, 0, pixelCount, bins, histogram);
+			}
+			times.now();
+			// counts stand in for probabilities, so that the sums are exact and the tables don't depend on the order
+			// in which they are added up
+			long[] cumulative = new long[bins * channels];
+			for (int i = 0; i < cumulative.length; i++) {
+				cumulative[i] = histogram[i];
+			}
+			times.now();
+			for (int c = 0; c < channels; c++) {
+				for (int i = c * bins + 1; i < (c + 1) * bins; i++) {
+					cumulative[i] += cumulative[i - 1];
+				}
+			}
+			times.now();
+			int[][] tables = equalizationTables(cumulative, channels, bins, pixelCount);
+			if (luma) {
+				int[] table = tables[0];
+				forEach(pixelCount, i -> pixelArray[i] = shiftChannels(pixelArray[i], table[lumaArray[i]] - lumaArray[i]),
+						pool);
+			}
+			else {
+				int[] blue = tables[0];
+				int[] green = tables[1];
+				int[] red = tables[2];
+				forEach(pixelCount, i -> {
+					int pixel = pixelArray[i];
+					pixelArray[i] = (pixel & 0xFF000000) | (red[(pixel >> 16) & 0xFF] << 16)
+							| (green[(pixel >> 8) & 0xFF] << 8) | blue[pixel & 0xFF];
+				}, pool);
+			}
+			times.now();
+			newImage.setRGB(0, 0, w, h, pixelArray, 0, w);
+			times.now();
+		}
+		finally {
+			PixelBufferPool.shared.release(pixelArray);
+			if (luma) {
+				PixelBufferPool.shared.release(lumaArray);
+			}
+		}
+		return times;
+	}
+
+	/**
+	 * Lookup table per channel from a channel value to its equalized value: 255 times the fraction of the pixelCount
+	 * pixels in the bins up to the value's, rounded. cumulative holds the running counts of each channel's bins, one
+	 * channel after the other.
+	 */
+	static int[][] equalizationTables(long[] cumulative, int channels, int bins, long pixelCount) {
+		int[][] tables = new int[channels][256];
+		for (int c = 0; c < channels; c++) {
+			for (int v = 0; v < 256; v++) {
+				tables[c][v] = (int) ((cumulative[c * bins + v * bins / 256] * 255 + pixelCount / 2) / pixelCount);
+			}
+		}
+		return tables;
+	}
 
-		Map<Integer, Long> brightnessMap =
-				Arrays.stream(HSBArray)
-						.parallel()
-						.mapToInt(pixel -> Math.min((int)(((float[])pixel)[2]*bins), bins-1))
-						.boxed()
-						.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
-
-		int[] histogram = IntStream.range(0, bins)
-							.parallel()
-							.map(index -> brightnessMap.containsKey(index) ? brightnessMap.get(index).intValue() : 0)
-							.toArray();
+	/**
+	 * Runs action on every index in [0, count), in order on the calling thread if pool is null and with a parallel
+	 * stream in pool otherwise. A stream run from a task forks its tasks into that task's pool (see
+	 * ForkJoinTask.fork), so starting it as a task of pool keeps it out of the common pool.
+	 */
+	private static void forEach(int count, IntConsumer action, ForkJoinPool pool) {
+		if (pool == null) {
+			IntStream.range(0, count).forEach(action);
+		}
+		else {
+			pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, count).parallel().forEach(action)));
+		}
+	}
+
+	/**
+	 * Adds delta to the red, green and blue channels of pixel, clamping them to [0, 255], and keeps its alpha.
+	 */
+	static int shiftChannels(int pixel, int delta) {
+		int red = Math.min(255, Math.max(0, ((pixel >> 16) & 0xFF) + delta));
+		int green = Math.min(255, Math.max(0, ((pixel >> 8) & 0xFF) + delta));
+		int blue = Math.min(255, Math.max(0, (pixel & 0xFF) + delta));
+		return (pixel & 0xFF000000) | (red << 16) | (green << 8) | blue;
+	}
+
+	private static Timer colorHistEq_primitive(FJBufferedImage image, FJBufferedImage newImage, boolean lookupTable) {
+		Timer times = new Timer(primitiveLabels);
+		int pixelCount = image.getWidth() * image.getHeight();
+		int bins = Math.min(binNum, pixelCount);
 		times.now();
-		double[] probArray = Arrays.stream(histogram)
-									.parallel()
-									.mapToDouble(bin -> (double)bin / (double)pixelCount)
-									.toArray();
+		// Count the pixels by their largest channel, which can be extracted with vectorized code, then add up the
+		// channel values that fall in each brightness bin
+		int[] channelCounts = image.histogramRows(RowKernels.maxChannelRow, 256);
+		int[] histogram = new int[bins];
+		for (int cmax = 0; cmax < 256; cmax++) {
+			histogram[channelBin(cmax, bins)] += channelCounts[cmax];
+		}
 		times.now();
-		Arrays.parallelPrefix(probArray, (x,y)->x+y);
+		double[] probArray = new double[bins];
+		for (int i = 0; i < bins; i++) {
+			probArray[i] = (double)histogram[i] / (double)pixelCount;
+		}
 		times.now();
-		int[] equalizedPixelArray = Arrays.stream(HSBArray)
-											.parallel()
-											.mapToInt(pixel -> Color.HSBtoRGB(((float[])pixel)[0],
-												((float[])pixel)[1],
-												(float)probArray[Math.min((int) (((float[])pixel)[2]*bins), bins-1)]))
-											.toArray();
+		Arrays.parallelPrefix(probArray, (x,y)->x+y);
 		times.now();
-		newImage.setRGB(0, 0, w, h, equalizedPixelArray, 0, w);
+		if (lookupTable) {
+			float[] brightnessTable = new float[256];
+			for (int cmax = 0; cmax < 256; cmax++) {
+				brightnessTable[cmax] = (float)probArray[channelBin(cmax, bins)];
+			}
+			image.filter(pixel -> {
+				int red = (pixel >> 16) & 0xFF;
+				int green = (pixel >> 8) & 0xFF;
+				int blue = pixel & 0xFF;
+				return hsbWithBrightness(red, green, blue, brightnessTable[Math.max(Math.max(red, green), blue)]);
+			}, newImage);
+		}
+		else {
+			image.filter(pixel -> {
+				int red = (pixel >> 16) & 0xFF;
+				int green = (pixel >> 8) & 0xFF;
+				int blue = pixel & 0xFF;
+				return Color.HSBtoRGB(hue(red, green, blue), saturation(red, green, blue),
+										(float)probArray[brightnessBin(pixel, bins)]);
+			}, newImage);
+		}
 		times.now();
 
 		return times;
 	}
 
+	/**
+	 * Row kernel that equalizes the HSB brightness of pixels from the counts of their largest channel, computed by
+	 * histogramRows with maxChannelRow. It builds the same lookup table as colorHistEq_lut, so the result is the same
+	 * as that of the other versions on the image the counts came from.
+	 */
+	static FJBufferedImage.RowKernel equalizeKernel(int[] channelCounts) {
+		long pixelCount = 0;
+		for (int count : channelCounts) {
+			pixelCount += count;
+		}
+		return equalizeKernel(brightnessProbabilities(channelCounts, (int) Math.min(binNum, pixelCount), pixelCount));
+	}
+
+	/**
+	 * The probability array of the other versions, before the prefix sum: the fraction of the counted pixels that fall
+	 * in each of bins brightness bins, from the counts of their largest channel.
+	 */
+	static double[] brightnessProbabilities(int[] channelCounts, int bins) {
+		long pixelCount = 0;
+		for (int count : channelCounts) {
+			pixelCount += count;
+		}
+		return brightnessProbabilities(channelCounts, bins, pixelCount);
+	}
+
+	/**
+	 * Same as brightnessProbabilities, for callers that already know pixelCount, the sum of channelCounts.
+	 */
+	static double[] brightnessProbabilities(int[] channelCounts, int bins, long pixelCount) {
+		int[] histogram = new int[bins];
+		for (int cmax = 0; cmax < 256; cmax++) {
+			histogram[channelBin(cmax, bins)] += channelCounts[cmax];
+		}
+		double[] probArray = new double[bins];
+		for (int i = 0; i < bins; i++) {
+			probArray[i] = (double)histogram[i] / (double)pixelCount;
+		}
+		return probArray;
+	}
+
+	/**
+	 * Lookup table from the largest channel of a pixel to its equalized brightness, given the probability of each
+	 * brightness bin. probArray is not changed.
+	 */
+	static float[] brightnessTable(double[] probArray) {
+		int bins = probArray.length;
+		double[] cumulative = probArray.clone();
+		Arrays.parallelPrefix(cumulative, (x,y)->x+y);
+		float[] brightnessTable = new float[256];
+		for (int cmax = 0; cmax < 256; cmax++) {
+			brightnessTable[cmax] = (float)cumulative[channelBin(cmax, bins)];
+		}
+		return brightnessTable;
+	}
+
+	/**
+	 * Row kernel that equalizes with the probability of each brightness bin, as given by brightnessProbabilities.
+	 */
+	static FJBufferedImage.RowKernel equalizeKernel(double[] probArray) {
+		return equalizeKernel(brightnessTable(probArray));
+	}
+
+	/**
+	 * Row kernel that gives every pixel the brightness brightnessTable has for its largest channel, keeping its hue
+	 * and saturation.
+	 */
+	static FJBufferedImage.RowKernel equalizeKernel(float[] brightnessTable) {
+		return (src, dst, length) -> {
+			for (int i = 0; i < length; i++) {
+				int pixel = src[i];
+				int red = (pixel >> 16) & 0xFF;
+				int green = (pixel >> 8) & 0xFF;
+				int blue = pixel & 0xFF;
+				dst[i] = hsbWithBrightness(red, green, blue, brightnessTable[Math.max(Math.max(red, green), blue)]);
+			}
+		};
+	}
+
+	// The following helpers give exactly the values Color.RGBtoHSB would put in its float array, using the same
+	// operations in the same order, so the primitive engine matches the other versions bit for bit. The channels of a
+	// pixel in the default ARGB format are extracted with shifts, which is what ColorModel.getRGBdefault() does.
+
+	/**
+	 * Row kernel that sets dst[i] to the largest of the three color channels of src[i], which determines the HSB
+	 * brightness. This is a plain loop of shifts, masks and max operations that C2 compiles to SIMD instructions.
+	 */
+	static void maxChannelRow(int[] src, int[] dst, int length) {
+		for (int i = 0; i < length; i++) {
+			dst[i] = maxChannel(src[i]);
+		}
+	}
+
+	static int maxChannel(int pixel) {
+		return Math.max(Math.max((pixel >> 16) & 0xFF, (pixel >> 8) & 0xFF), pixel & 0xFF);
+	}
+
+	/**
+	 * Bin of the pixel's HSB brightness, computed as in the other versions: brightness * bins, capped at bins-1.
+	 */
+	static int brightnessBin(int pixel, int bins) {
+		return channelBin(maxChannel(pixel), bins);
+	}
+
+	/**
+	 * Bin of the HSB brightness of pixels whose largest channel is cmax, a channel value in [0, 255] rather than a
+	 * packed pixel. This is what tables indexed by maxChannel use.
+	 */
+	static int channelBin(int cmax, int bins) {
+		return Math.min((int)((((float) cmax) / 255.0f) * bins), bins - 1);
+	}
+
+	static float saturation(int red, int green, int blue) {
+		int cmax = Math.max(Math.max(red, green), blue);
+		int cmin = Math.min(Math.min(red, green), blue);
+		return cmax != 0 ? ((float) (cmax - cmin)) / ((float) cmax) : 0;
+	}
+
+	static float hue(int red, int green, int blue) {
+		int cmax = Math.max(Math.max(red, green), blue);
+		int cmin = Math.min(Math.min(red, green), blue);
+		if (cmax == 0 || cmax == cmin) {
+			return 0;
+		}
+		float redc = ((float) (cmax - red)) / ((float) (cmax - cmin));
+		float greenc = ((float) (cmax - green)) / ((float) (cmax - cmin));
+		float bluec = ((float) (cmax - blue)) / ((float) (cmax - cmin));
+		float hue;
+		if (red == cmax)
+			hue = bluec - greenc;
+		else if (green == cmax)
+			hue = 2.0f + redc - bluec;
+		else
+			hue = 4.0f + greenc - redc;
+		hue = hue / 6.0f;
+		if (hue < 0)
+			hue = hue + 1.0f;
+		return hue;
+	}
+
+	/**
+	 * Returns Color.HSBtoRGB(hue(red, green, blue), saturation(red, green, blue), brightness) without going through
+	 * the general code. Since we start from RGB we already know which channel is the largest and which is the
+	 * smallest, so gray pixels need no floating point at all, only the two divisions used by the hue are done, and
+	 * the channel that HSBtoRGB sets to the brightness is computed once. Everything else uses the same float
+	 * operations in the same order as Color, so the result is the same for every input.
+	 */
+	static int hsbWithBrightness(int red, int green, int blue, float brightness) {
+		int cmax = Math.max(Math.max(red, green), blue);
+		int cmin = Math.min(Math.min(red, green), blue);
+		int v = (int) (brightness * 255.0f + 0.5f);
+		if (cmax == cmin) {
+			// saturation is 0
+			return 0xFF000000 | (v << 16) | (v << 8) | v;
+		}
+		float saturation = ((float) (cmax - cmin)) / ((float) cmax);
+		float range = (float) (cmax - cmin);
+		float hue;
+		if (red == cmax)
+			hue = ((float) (cmax - blue)) / range - ((float) (cmax - green)) / range;
+		else if (green == cmax)
+			hue = 2.0f + ((float) (cmax - red)) / range - ((float) (cmax - blue)) / range;
+		else
+			hue = 4.0f + ((float) (cmax - green)) / range - ((float) (cmax - red)) / range;
+		hue = hue / 6.0f;
+		if (hue < 0)
+			hue = hue + 1.0f;
+		float h = (hue - (float) Math.floor(hue)) * 6.0f;
+		float f = h - (float) Math.floor(h);
+		float p = brightness * (1.0f - saturation);
+		float q = brightness * (1.0f - saturation * f);
+		float t = brightness * (1.0f - (saturation * (1.0f - f)));
+		int r, g, b;
+		switch ((int) h) {
+		case 0:
+			r = v; g = (int) (t * 255.0f + 0.5f); b = (int) (p * 255.0f + 0.5f);
+			break;
+		case 1:
+			r = (int) (q * 255.0f + 0.5f); g = v; b = (int) (p * 255.0f + 0.5f);
+			break;
+		case 2:
+			r = (int) (p * 255.0f + 0.5f); g = v; b = (int) (t * 255.0f + 0.5f);
+			break;
+		case 3:
+			r = (int) (p * 255.0f + 0.5f); g = (int) (q * 255.0f + 0.5f); b = v;
+			break;
+		case 4:
+			r = (int) (t * 255.0f + 0.5f); g = (int) (p * 255.0f + 0.5f); b = v;
+			break;
+		default:
+			r = v; g = (int) (p * 255.0f + 0.5f); b = (int) (q * 255.0f + 0.5f);
+		}
+		return 0xFF000000 | (r << 16) | (g << 8) | b;
+	}
+
 }
@@ -2,16 +2,70 @@ package cop5618;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntUnaryOperator;
 
 public class FJBufferedImage extends BufferedImage {
 
+	// Pool shared by all images that are not given one of their own
 	private static ForkJoinPool fjp = new ForkJoinPool();
 
+	private ForkJoinPool pool = fjp;
+	private Granularity granularity = Granularity.DEFAULT;
+	// null unless the operations are being profiled
+	private ForkJoinProfiler profiler;
+
+	// Raster layouts that the leaf tasks can read and write straight from the backing DataBuffer, without converting
+	// every pixel through the ColorModel. Anything else falls back to the BufferedImage implementation.
+	private static final int LAYOUT_OTHER = 0;
+	private static final int LAYOUT_INT_RGB = 1;
+	private static final int LAYOUT_INT_ARGB = 2;
+	private static final int LAYOUT_3BYTE_BGR = 3;
+	private static final int LAYOUT_INT_BUFFER = 4;
+
+	private int layout = LAYOUT_OTHER;
+	private int[] intData;
+	private byte[] byteData;
+	private IntBuffer intBuffer;
+	// index of pixel (0,0) in the backing array or buffer, and the distance in array elements between two rows
+	private int dataBase;
+	private int scanlineStride;
+
+	// Narrowest piece a rectangle is split into along x. Below this, leaves would copy only a few cache lines per row
+	// and neighbouring leaves would keep writing to the same line of the destination.
+	private static final int MIN_LEAF_WIDTH = 64;
+
+	/**
+	 * All the tasks split a rectangle in halves along its larger dimension, so that leaves are roughly square tiles.
+	 * Splitting only by rows, as the tasks first did, gives wide and short images such as panoramas and line scans
+	 * hardly any parallelism, since there are only a few rows to hand out. Columns are only split while both halves
+	 * keep at least MIN_LEAF_WIDTH pixels.
+	 */
+	private static boolean splitColumns(int w, int h) {
+		return w > h && w >= 2 * MIN_LEAF_WIDTH;
+	}
+
+	private static boolean canSplit(int w, int h) {
+		return h >= 2 || splitColumns(w, h);
+	}
+
 	/**
 	 * The SetRGBTask and GetRGBTask are inner classes of FJBufferedImage so that they are both able to call the serial
 	 * super class implementation of SetRGB and GetRGB as the base case for forking. An alternative way would have been
@@ -31,8 +85,11 @@ public class FJBufferedImage extends BufferedImage {
 		int offset;
 		int scansize;
 		int tasks;
+		// the profiled call this task belongs to, or null
+		ForkJoinProfiler.Invocation invocation;
 
-		public SetRGBTask(int x, int y, int w, int h, int[] rgbArray, int offset, int scansize, int tasks) {
+		public SetRGBTask(int x, int y, int w, int h, int[] rgbArray, int offset, int scansize, int tasks,
+				ForkJoinProfiler.Invocation invocation) {
 			this.x = x;
 			this.y = y;
 			this.w = w;
@@ -41,18 +98,27 @@ public class FJBufferedImage extends BufferedImage {
 			this.offset = offset;
 			this.scansize = scansize;
 			this.tasks = tasks;
+			this.invocation = invocation;
 		}
 
 		@Override
 		protected void compute() {
-			// Split tasks until this holds one task OR the height of the calculation is one
-			if (tasks < 2 || h < 2) {
-				FJBufferedImage.super.setRGB(x, y, w, h, rgbArray, offset, scansize);
+			// Split tasks until this holds one task OR the rectangle can't be split any further
+			if (tasks < 2 || !canSplit(w, h)) {
+				long start = leafStart(invocation);
+				setRGBLeaf(x, y, w, h, rgbArray, offset, scansize);
+				leafEnd(invocation, start, w, h);
+			}
+			else if (splitColumns(w, h)) {
+				// Left and right halves of the same rows; the right half starts firstHalf elements further into each row
+				int firstHalf = w/2;
+				invokeAll(new SetRGBTask(x, y, firstHalf, h, rgbArray, offset, scansize, tasks/2, invocation),
+							new SetRGBTask(x + firstHalf, y, w - firstHalf, h, rgbArray, offset + firstHalf, scansize, tasks - tasks/2, invocation));
 			}
 			else {
 				int firstHalf = h/2;
-				invokeAll(new SetRGBTask(x, y, w, firstHalf, rgbArray, offset, scansize, tasks/2),
-							new SetRGBTask(x, y + firstHalf, w, h - firstHalf, rgbArray, offset + (firstHalf * scansize), scansize, tasks - tasks/2));
+				invokeAll(new SetRGBTask(x, y, w, firstHalf, rgbArray, offset, scansize, tasks/2, invocation),
+							new SetRGBTask(x, y + firstHalf, w, h - firstHalf, rgbArray, offset + (firstHalf * scansize), scansize, tasks - tasks/2, invocation));
 			}
 		}
 	}
@@ -67,8 +133,11 @@ public class FJBufferedImage extends BufferedImage {
 		int offset;
 		int scansize;
 		int tasks;
+		// the profiled call this task belongs to, or null
+		ForkJoinProfiler.Invocation invocation;
 
-		public GetRGBTask(int x, int y, int w, int h, int[] rgbArray, int offset, int scansize, int tasks) {
+		public GetRGBTask(int x, int y, int w, int h, int[] rgbArray, int offset, int scansize, int tasks,
+				ForkJoinProfiler.Invocation invocation) {
 			this.x = x;
 			this.y = y;
 			this.w = w;
@@ -77,36 +146,383 @@ public class FJBufferedImage extends BufferedImage {
 			this.offset = offset;
 			this.scansize = scansize;
 			this.tasks = tasks;
+			this.invocation = invocation;
 		}
 
 		@Override
 		protected void compute() {
-			// Split tasks until this holds one task OR the height of the calculation is one
-			if (tasks < 2 || h < 2) {
-				FJBufferedImage.super.getRGB(x, y, w, h, rgbArray, offset, scansize);
+			// Split tasks until this holds one task OR the rectangle can't be split any further
+			if (tasks < 2 || !canSplit(w, h)) {
+				long start = leafStart(invocation);
+				getRGBLeaf(x, y, w, h, rgbArray, offset, scansize);
+				leafEnd(invocation, start, w, h);
+			}
+			else if (splitColumns(w, h)) {
+				int firstHalf = w/2;
+				invokeAll(new GetRGBTask(x, y, firstHalf, h, rgbArray, offset, scansize, tasks/2, invocation),
+						new GetRGBTask(x + firstHalf, y, w - firstHalf, h, rgbArray, offset + firstHalf, scansize, tasks - tasks/2, invocation));
 			}
 			else {
 				int firstHalf = h/2;
-				invokeAll(new GetRGBTask(x, y, w, firstHalf, rgbArray, offset, scansize, tasks/2),
-						new GetRGBTask(x, y + firstHalf, w, h - firstHalf, rgbArray, offset + (firstHalf * scansize), scansize, tasks - tasks/2));
+				invokeAll(new GetRGBTask(x, y, w, firstHalf, rgbArray, offset, scansize, tasks/2, invocation),
+						new GetRGBTask(x, y + firstHalf, w, h - firstHalf, rgbArray, offset + (firstHalf * scansize), scansize, tasks - tasks/2, invocation));
 			}
 		}
 	}
 	
+	/**
+	 * A kernel that works on a row of pixels at a time. Implementations should be plain counted loops over the arrays
+	 * using only arithmetic, or small static methods that get inlined, because HotSpot's C2 compiler turns such loops
+	 * into SIMD code on its own (for example 8 pixels per instruction with AVX2) whenever the processor supports it,
+	 * and leaves them scalar otherwise. RowKernels has explicitly vectorized versions of the hot kernels.
+	 */
+	public interface RowKernel {
+		/**
+		 * Computes dst[i] from src[i] for i in [0, length). src and dst may be the same array.
+		 */
+		void apply(int[] src, int[] dst, int length);
+	}
+
+	/**
+	 * Applies a pixel kernel to a rectangle of this image and writes the results to the same rectangle of dest. Splits
+	 * the same way as SetRGBTask; each leaf works through its rectangle one row at a time using a single row sized
+	 * buffer, so the whole image is never copied into an array.
+	 */
+	private class FilterTask extends RecursiveAction {
+
+		int x;
+		int y;
+		int w;
+		int h;
+		RowKernel kernel;
+		FJBufferedImage dest;
+		int tasks;
+		// the profiled call this task belongs to, or null
+		ForkJoinProfiler.Invocation invocation;
+
+		public FilterTask(int x, int y, int w, int h, RowKernel kernel, FJBufferedImage dest, int tasks,
+				ForkJoinProfiler.Invocation invocation) {
+			this.x = x;
+			this.y = y;
+			this.w = w;
+			this.h = h;
+			this.kernel = kernel;
+			this.dest = dest;
+			this.tasks = tasks;
+			this.invocation = invocation;
+		}
+
+		@Override
+		protected void compute() {
+			if (tasks < 2 || !canSplit(w, h)) {
+				long start = leafStart(invocation);
+				filterLeaf(x, y, w, h, kernel, dest);
+				leafEnd(invocation, start, w, h);
+			}
+			else if (splitColumns(w, h)) {
+				int firstHalf = w/2;
+				invokeAll(new FilterTask(x, y, firstHalf, h, kernel, dest, tasks/2, invocation),
+						new FilterTask(x + firstHalf, y, w - firstHalf, h, kernel, dest, tasks - tasks/2, invocation));
+			}
+			else {
+				int firstHalf = h/2;
+				invokeAll(new FilterTask(x, y, w, firstHalf, kernel, dest, tasks/2, invocation),
+						new FilterTask(x, y + firstHalf, w, h - firstHalf, kernel, dest, tasks - tasks/2, invocation));
+			}
+		}
+	}
+
+	/**
+	 * Counts how many pixels of a rectangle of this image fall in each bin. Splits like the other tasks; every leaf
+	 * fills its own int[] without any synchronization and the halves are added together on the way back up, so the
+	 * memory used depends on the number of bins and tasks, not on the size of the image. With a step above 1 only the
+	 * pixels whose row and column are multiples of step are counted.
+	 */
+	private class HistogramTask extends RecursiveTask<int[]> {
+
+		int x;
+		int y;
+		int w;
+		int h;
+		RowKernel binOf;
+		int bins;
+		int step;
+		int tasks;
+		// the profiled call this task belongs to, or null
+		ForkJoinProfiler.Invocation invocation;
+
+		public HistogramTask(int x, int y, int w, int h, RowKernel binOf, int bins, int step, int tasks,
+				ForkJoinProfiler.Invocation invocation) {
+			this.x = x;
+			this.y = y;
+			this.w = w;
+			this.h = h;
+			this.binOf = binOf;
+			this.bins = bins;
+			this.step = step;
+			this.tasks = tasks;
+			this.invocation = invocation;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (tasks < 2 || !canSplit(w, h)) {
+				long start = leafStart(invocation);
+				int[] counts = histogramLeaf(x, y, w, h, binOf, bins, step);
+				leafEnd(invocation, start, w, h);
+				return counts;
+			}
+			HistogramTask first;
+			HistogramTask second;
+			if (splitColumns(w, h)) {
+				int firstHalf = w/2;
+				first = new HistogramTask(x, y, firstHalf, h, binOf, bins, step, tasks/2, invocation);
+				second = new HistogramTask(x + firstHalf, y, w - firstHalf, h, binOf, bins, step, tasks - tasks/2, invocation);
+			}
+			else {
+				int firstHalf = h/2;
+				first = new HistogramTask(x, y, w, firstHalf, binOf, bins, step, tasks/2, invocation);
+				second = new HistogramTask(x, y + firstHalf, w, h - firstHalf, binOf, bins, step, tasks - tasks/2, invocation);
+			}
+			first.fork();
+			int[] counts = second.compute();
+			int[] firstCounts = first.join();
+			for (int i = 0; i < bins; i++) {
+				counts[i] += firstCounts[i];
+			}
+			return counts;
+		}
+	}
+
+	/**
+	 * Start time of a leaf task, or 0 if its call is not being profiled.
+	 */
+	private static long leafStart(ForkJoinProfiler.Invocation invocation) {
+		return invocation == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Records a leaf task that started at start with the profiled call it belongs to, if there is one.
+	 */
+	private static void leafEnd(ForkJoinProfiler.Invocation invocation, long start, int w, int h) {
+		if (invocation != null) {
+			invocation.leaf(w, h, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * A new profiled call, or null if this image is not being profiled. operation, w, h and tasks describe the call
+	 * for the profile. The call is passed down the task tree, so its leaves are recorded with it whatever else runs in
+	 * the pool at the same time.
+	 */
+	private ForkJoinProfiler.Invocation profile(ForkJoinPool pool, String operation, int w, int h, int tasks) {
+		ForkJoinProfiler invocationProfiler = profiler;
+		return invocationProfiler == null ? null : invocationProfiler.start(pool, operation, w, h, tasks);
+	}
+
+	/**
+	 * Runs task in pool, as the profiled call invocation if it isn't null.
+	 */
+	private static <T> T invoke(ForkJoinPool pool, ForkJoinTask<T> task, ForkJoinProfiler.Invocation invocation) {
+		return invocation == null ? pool.invoke(task) : invocation.invoke(pool, task);
+	}
+
 	public FJBufferedImage(int width, int height, int imageType) {
 		super(width, height, imageType);
+		initDirectAccess();
 	}
 
 	public FJBufferedImage(int width, int height, int imageType, IndexColorModel cm) {
 		super(width, height, imageType, cm);
+		initDirectAccess();
 	}
 
 	public FJBufferedImage(ColorModel cm, WritableRaster raster, boolean isRasterPremultiplied,
 			Hashtable<?, ?> properties) {
 		super(cm, raster, isRasterPremultiplied, properties);
+		initDirectAccess();
+	}
+
+	/**
+	 * Checks whether the raster is one of the layouts we know how to address directly, and if so keeps a reference to
+	 * its backing array. Only the standard single bank layouts created by BufferedImage (and by ImageIO for JPEGs) and
+	 * ARGB images over an OffHeapDataBuffer are accepted; anything with an unusual sample model keeps going through
+	 * the ColorModel.
+	 *
+	 * Grabbing the array with getData() means Java2D can no longer cache an accelerated copy of this image, which does
+	 * not matter here since these images are only ever used for pixel processing.
+	 */
+	private void initDirectAccess() {
+		WritableRaster raster = getRaster();
+		DataBuffer buffer = raster.getDataBuffer();
+		SampleModel sampleModel = raster.getSampleModel();
+		int smX = -raster.getSampleModelTranslateX();
+		int smY = -raster.getSampleModelTranslateY();
+		int type = getType();
+		if ((type == TYPE_INT_RGB || type == TYPE_INT_ARGB) && buffer instanceof DataBufferInt
+				&& buffer.getNumBanks() == 1 && sampleModel instanceof SinglePixelPackedSampleModel) {
+			SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sampleModel;
+			intData = ((DataBufferInt) buffer).getData();
+			scanlineStride = sppsm.getScanlineStride();
+			dataBase = buffer.getOffset() + sppsm.getOffset(smX, smY);
+			layout = type == TYPE_INT_RGB ? LAYOUT_INT_RGB : LAYOUT_INT_ARGB;
+		}
+		else if (type == TYPE_3BYTE_BGR && buffer instanceof DataBufferByte && buffer.getNumBanks() == 1
+				&& sampleModel instanceof PixelInterleavedSampleModel) {
+			PixelInterleavedSampleModel pism = (PixelInterleavedSampleModel) sampleModel;
+			if (pism.getPixelStride() == 3 && Arrays.equals(pism.getBandOffsets(), new int[] { 2, 1, 0 })) {
+				byteData = ((DataBufferByte) buffer).getData();
+				scanlineStride = pism.getScanlineStride();
+				// band 2 (blue) has offset 0, so this is the index of the first byte of the pixel
+				dataBase = buffer.getOffset() + pism.getOffset(smX, smY, 2);
+				layout = LAYOUT_3BYTE_BGR;
+			}
+		}
+		else if (buffer instanceof OffHeapDataBuffer && sampleModel instanceof SinglePixelPackedSampleModel
+				&& getColorModel().equals(ColorModel.getRGBdefault())
+				&& Arrays.equals(((SinglePixelPackedSampleModel) sampleModel).getBitMasks(), ARGB_MASKS)) {
+			SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sampleModel;
+			intBuffer = ((OffHeapDataBuffer) buffer).getIntBuffer();
+			scanlineStride = sppsm.getScanlineStride();
+			dataBase = buffer.getOffset() + sppsm.getOffset(smX, smY);
+			layout = LAYOUT_INT_BUFFER;
+		}
+	}
+
+	/**
+	 * True if the region lies inside the image, so that the direct path cannot wrap around into a neighbouring row.
+	 * Regions outside the image are left to the BufferedImage implementation, which throws as usual.
+	 */
+	private boolean inBounds(int x, int y, int w, int h) {
+		return x >= 0 && y >= 0 && w >= 0 && h >= 0 && x + w <= getWidth() && y + h <= getHeight();
+	}
+
+	/**
+	 * Base case of GetRGBTask. Reads the rectangle straight out of the backing array when the layout is known,
+	 * producing exactly what BufferedImage.getRGB would (opaque alpha for the layouts without an alpha channel).
+	 */
+	private void getRGBLeaf(int x, int y, int w, int h, int[] rgbArray, int offset, int scansize) {
+		if (layout == LAYOUT_OTHER || !inBounds(x, y, w, h)) {
+			FJBufferedImage.super.getRGB(x, y, w, h, rgbArray, offset, scansize);
+			return;
+		}
+		for (int row = 0; row < h; row++) {
+			int dst = offset + row * scansize;
+			switch (layout) {
+			case LAYOUT_INT_ARGB: {
+				System.arraycopy(intData, dataBase + (y + row) * scanlineStride + x, rgbArray, dst, w);
+				break;
+			}
+			case LAYOUT_INT_BUFFER: {
+				intBuffer.get(dataBase + (y + row) * scanlineStride + x, rgbArray, dst, w);
+				break;
+			}
+			case LAYOUT_INT_RGB: {
+				int src = dataBase + (y + row) * scanlineStride + x;
+				for (int i = 0; i < w; i++) {
+					rgbArray[dst + i] = 0xFF000000 | intData[src + i];
+				}
+				break;
+			}
+			default: {
+				int src = dataBase + (y + row) * scanlineStride + x * 3;
+				for (int i = 0; i < w; i++, src += 3) {
+					rgbArray[dst + i] = 0xFF000000
+							| ((byteData[src + 2] & 0xFF) << 16)
+							| ((byteData[src + 1] & 0xFF) << 8)
+							| (byteData[src] & 0xFF);
+				}
+			}
+			}
+		}
+	}
+
+	/**
+	 * Base case of SetRGBTask. Writes the rectangle straight into the backing array when the layout is known, storing
+	 * the same values BufferedImage.setRGB would (the alpha byte is dropped for the layouts without an alpha channel).
+	 */
+	private void setRGBLeaf(int x, int y, int w, int h, int[] rgbArray, int offset, int scansize) {
+		if (layout == LAYOUT_OTHER || !inBounds(x, y, w, h)) {
+			FJBufferedImage.super.setRGB(x, y, w, h, rgbArray, offset, scansize);
+			return;
+		}
+		for (int row = 0; row < h; row++) {
+			int src = offset + row * scansize;
+			switch (layout) {
+			case LAYOUT_INT_ARGB: {
+				System.arraycopy(rgbArray, src, intData, dataBase + (y + row) * scanlineStride + x, w);
+				break;
+			}
+			case LAYOUT_INT_BUFFER: {
+				intBuffer.put(dataBase + (y + row) * scanlineStride + x, rgbArray, src, w);
+				break;
+			}
+			case LAYOUT_INT_RGB: {
+				int dst = dataBase + (y + row) * scanlineStride + x;
+				for (int i = 0; i < w; i++) {
+					intData[dst + i] = rgbArray[src + i] & 0x00FFFFFF;
+				}
+				break;
+			}
+			default: {
+				int dst = dataBase + (y + row) * scanlineStride + x * 3;
+				for (int i = 0; i < w; i++, dst += 3) {
+					int pixel = rgbArray[src + i];
+					byteData[dst] = (byte) pixel;
+					byteData[dst + 1] = (byte) (pixel >> 8);
+					byteData[dst + 2] = (byte) (pixel >> 16);
+				}
+			}
+			}
+		}
 	}
 	
 
+	// Bit masks of the default ARGB format, red, green, blue and alpha, in the order SinglePixelPackedSampleModel uses
+	private static final int[] ARGB_MASKS = { 0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000 };
+
+	/**
+	 * Creates an image in the default ARGB format over the ints of buffer, a row after another with no padding. The
+	 * image is TYPE_CUSTOM as far as Java2D is concerned, but the fork/join operations copy its rows directly.
+	 *
+	 * @param buffer holds at least width * height ints
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static FJBufferedImage wrap(OffHeapDataBuffer buffer, int width, int height) {
+		SinglePixelPackedSampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height,
+				ARGB_MASKS);
+		WritableRaster raster = Raster.createWritableRaster(sampleModel, buffer, null);
+		return new FJBufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+	}
+
+	/**
+	 * Creates an ARGB image whose pixels are outside the Java heap, so that it doesn't count against -Xmx and is never
+	 * copied by the garbage collector. The pixels are 0 (transparent black).
+	 */
+	public static FJBufferedImage createOffHeap(int width, int height) {
+		return wrap(OffHeapDataBuffer.allocate(Math.multiplyExact(width, height)), width, height);
+	}
+
+	/**
+	 * Creates an ARGB image over width * height little endian ints of file starting at byte position. Changes to a
+	 * writable image go to the file, where other processes that map it see them; call
+	 * ((OffHeapDataBuffer) image.getRaster().getDataBuffer()).force() to be sure they are on disk.
+	 *
+	 * @param file
+	 * @param position byte offset of pixel (0,0) in the file
+	 * @param width
+	 * @param height
+	 * @param writable false to map the file read only
+	 * @return
+	 * @throws IOException
+	 */
+	public static FJBufferedImage createMapped(File file, long position, int width, int height, boolean writable)
+			throws IOException {
+		return wrap(OffHeapDataBuffer.map(file, position, Math.multiplyExact(width, height), writable), width, height);
+	}
+
 	/**
 	 * Creates a new FJBufferedImage with the same fields as source.
 	 * @param source
@@ -122,19 +538,281 @@ public class FJBufferedImage extends BufferedImage {
 	   return new FJBufferedImage(source.getColorModel(), source.getRaster(), source.isAlphaPremultiplied(), properties);
 	}
 	
+	/**
+	 * Base case of FilterTask. A row is read into the buffer, transformed in place and written to dest, so the buffer
+	 * stays in cache and each pixel only crosses memory once in each direction. Since a row is completely read before
+	 * it is written, dest may be this image.
+	 */
+	private void filterLeaf(int x, int y, int w, int h, RowKernel kernel, FJBufferedImage dest) {
+		int[] row = new int[w];
+		for (int r = y; r < y + h; r++) {
+			getRGBLeaf(x, r, w, 1, row, 0, w);
+			kernel.apply(row, row, w);
+			dest.setRGBLeaf(x, r, w, 1, row, 0, w);
+		}
+	}
+
+	/**
+	 * Base case of HistogramTask.
+	 */
+	private int[] histogramLeaf(int x, int y, int w, int h, RowKernel binOf, int bins, int step) {
+		int[] counts = new int[bins];
+		int[] row = new int[w];
+		// first row and column of the leaf on the grid of multiples of step
+		int firstRow = y + Math.floorMod(-y, step);
+		int firstColumn = Math.floorMod(-x, step);
+		for (int r = firstRow; r < y + h; r += step) {
+			getRGBLeaf(x, r, w, 1, row, 0, w);
+			int length = w;
+			if (step > 1) {
+				// move the sampled pixels to the front, so that binOf only sees those
+				length = 0;
+				for (int i = firstColumn; i < w; i += step) {
+					row[length++] = row[i];
+				}
+			}
+			// the bins are computed for the whole row first so that binOf can be vectorized; the counting can't be
+			binOf.apply(row, row, length);
+			for (int i = 0; i < length; i++) {
+				counts[row[i]]++;
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Serial getRGB for code that is already running inside a fork/join task of its own and only wants the fast
+	 * direct path, without splitting the call again.
+	 */
+	void getRGBSerial(int x, int y, int w, int h, int[] rgbArray, int offset, int scansize) {
+		getRGBLeaf(x, y, w, h, rgbArray, offset, scansize);
+	}
+
+	/**
+	 * Serial setRGB, the counterpart of getRGBSerial.
+	 */
+	void setRGBSerial(int x, int y, int w, int h, int[] rgbArray, int offset, int scansize) {
+		setRGBLeaf(x, y, w, h, rgbArray, offset, scansize);
+	}
+
+	/**
+	 * getRGB on the calling thread for any image: with getRGBSerial if it is an FJBufferedImage, whose getRGB would
+	 * fork, and with its own getRGB otherwise.
+	 */
+	static void readSerial(BufferedImage image, int x, int y, int w, int h, int[] rgbArray, int offset, int scansize) {
+		if (image instanceof FJBufferedImage) {
+			((FJBufferedImage) image).getRGBSerial(x, y, w, h, rgbArray, offset, scansize);
+		}
+		else {
+			image.getRGB(x, y, w, h, rgbArray, offset, scansize);
+		}
+	}
+
+	/**
+	 * setRGB on the calling thread for any image, the counterpart of readSerial.
+	 */
+	static void writeSerial(BufferedImage image, int x, int y, int w, int h, int[] rgbArray, int offset, int scansize) {
+		if (image instanceof FJBufferedImage) {
+			((FJBufferedImage) image).setRGBSerial(x, y, w, h, rgbArray, offset, scansize);
+		}
+		else {
+			image.setRGB(x, y, w, h, rgbArray, offset, scansize);
+		}
+	}
+
+	/**
+	 * The pool this image's parallel operations run in.
+	 */
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Sets the pool this image's parallel operations run in. By default all images share one pool with as many
+	 * workers as there are processors, separate from the common pool used by parallel streams. Passing
+	 * ForkJoinPool.commonPool() makes the image share threads with the streams instead of competing with them.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public ForkJoinProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Profiles this image's parallel operations with profiler, or stops profiling them if it is null. Profiled
+	 * operations may run at the same time and inside each other's tasks; each records its own leaves.
+	 */
+	public void setProfiler(ForkJoinProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	public Granularity getGranularity() {
+		return granularity;
+	}
+
+	/**
+	 * Sets how this image's parallel operations are split into tasks. The default is Granularity.DEFAULT.
+	 */
+	public void setGranularity(Granularity granularity) {
+		this.granularity = granularity;
+	}
+
+	/**
+	 * Number of tasks this image's operations split the whole image into.
+	 */
+	int getTaskCount() {
+		return getTaskCount(getWidth(), getHeight(), pool, granularity);
+	}
+
+	private static int getTaskCount(int w, int h, ForkJoinPool pool, Granularity granularity) {
+		return Math.max(1, granularity.tasks(w, h, pool.getParallelism()));
+	}
+
+	/**
+	 * Computes a histogram of this image in parallel without copying the pixels into an array.
+	 *
+	 * @param binOf function from a pixel in the default ARGB format to its bin, in [0, bins). It is called from several
+	 *              threads at once.
+	 * @param bins number of bins
+	 * @return array where element i is the number of pixels in bin i
+	 */
+	public int[] histogram(IntUnaryOperator binOf, int bins) {
+		return histogramRows((src, dst, length) -> {
+			for (int i = 0; i < length; i++) {
+				dst[i] = binOf.applyAsInt(src[i]);
+			}
+		}, bins);
+	}
+
+	/**
+	 * Same as histogram, with the bins computed a row at a time.
+	 *
+	 * @param binOf row kernel that sets dst[i] to the bin of pixel src[i], in [0, bins)
+	 * @param bins number of bins
+	 * @return array where element i is the number of pixels in bin i
+	 */
+	public int[] histogramRows(RowKernel binOf, int bins) {
+		return histogramRows(binOf, bins, pool, granularity);
+	}
+
+	/**
+	 * Same as histogramRows, running in the given pool and split according to the given granularity rather than the
+	 * image's own.
+	 */
+	public int[] histogramRows(RowKernel binOf, int bins, ForkJoinPool pool, Granularity granularity) {
+		return histogramRows(binOf, bins, 1, pool, granularity);
+	}
+
+	/**
+	 * Same as histogramRows, counting only the pixels on a grid: those whose row and column are both multiples of
+	 * step, about 1 in step * step pixels. For a histogram used to build a mapping, a grid of every 2nd to 4th pixel
+	 * usually gives nearly the same mapping at a fraction of the cost.
+	 *
+	 * @param step distance between the sampled rows and columns, 1 for every pixel
+	 */
+	public int[] histogramRows(RowKernel binOf, int bins, int step) {
+		return histogramRows(binOf, bins, step, pool, granularity);
+	}
+
+	/**
+	 * Same as histogramRows with a step, running in the given pool and split according to the given granularity.
+	 */
+	public int[] histogramRows(RowKernel binOf, int bins, int step, ForkJoinPool pool, Granularity granularity) {
+		if (step < 1) {
+			throw new IllegalArgumentException("step must be at least 1: " + step);
+		}
+		int w = getWidth();
+		int h = getHeight();
+		int tasks = getTaskCount(w, h, pool, granularity);
+		ForkJoinProfiler.Invocation invocation = profile(pool, "histogram", w, h, tasks);
+		return invoke(pool, new HistogramTask(0, 0, w, h, binOf, bins, step, tasks, invocation), invocation);
+	}
+
+	/**
+	 * Runs kernel over every pixel of this image in parallel and stores each result at the same position in dest.
+	 * Pixels are passed to and returned from the kernel in the default ARGB format, as with getRGB and setRGB, but no
+	 * image sized intermediate array is created. dest may be this image to filter in place.
+	 *
+	 * @param kernel function from a source pixel to a destination pixel. It is called from several threads at once.
+	 * @param dest image with the same width and height as this one
+	 */
+	public void filter(IntUnaryOperator kernel, FJBufferedImage dest) {
+		filterRows((src, dst, length) -> {
+			for (int i = 0; i < length; i++) {
+				dst[i] = kernel.applyAsInt(src[i]);
+			}
+		}, dest);
+	}
+
+	/**
+	 * Same as filter, with the kernel applied a row at a time.
+	 *
+	 * @param kernel row kernel from source pixels to destination pixels, in the default ARGB format
+	 * @param dest image with the same width and height as this one
+	 */
+	public void filterRows(RowKernel kernel, FJBufferedImage dest) {
+		filterRows(kernel, dest, pool, granularity);
+	}
+
+	/**
+	 * Same as filterRows, running in the given pool and split according to the given granularity rather than the
+	 * image's own.
+	 */
+	public void filterRows(RowKernel kernel, FJBufferedImage dest, ForkJoinPool pool, Granularity granularity) {
+		int w = getWidth();
+		int h = getHeight();
+		if (dest.getWidth() != w || dest.getHeight() != h) {
+			throw new IllegalArgumentException("destination is " + dest.getWidth() + "x" + dest.getHeight()
+					+ ", expected " + w + "x" + h);
+		}
+		int tasks = getTaskCount(w, h, pool, granularity);
+		ForkJoinProfiler.Invocation invocation = profile(pool, "filter", w, h, tasks);
+		invoke(pool, new FilterTask(0, 0, w, h, kernel, dest, tasks, invocation), invocation);
+	}
+
 	@Override
 	public void setRGB(int xStart, int yStart, int w, int h, int[] rgbArray, int offset, int scansize){
-		// Invoke up to 16 * the amount of parallelism available. If it wasn't a greater factor than the amount of parallelism
-		// available, there is no advantage of using the Fork/Join framework over other parallel paradigms since there would be
-		// no work stealing if there are no tasks left over in case one thread finishes faster. If the factor is too great,
-		// there is too much splitting and overhead and each individual base task does not have enough computing.
-		// I got the largest speedup with this value of 16, at about 2.2x for all parallelism with 4 cores.
-		fjp.invoke(new SetRGBTask(xStart, yStart, w, h, rgbArray, offset, scansize, fjp.getParallelism() * 16));
+		setRGB(xStart, yStart, w, h, rgbArray, offset, scansize, pool, granularity);
+	}
+
+	/**
+	 * Same as setRGB, running in the given pool and split according to the given granularity rather than the image's
+	 * own.
+	 */
+	public void setRGB(int xStart, int yStart, int w, int h, int[] rgbArray, int offset, int scansize,
+			ForkJoinPool pool, Granularity granularity){
+		// The default granularity invokes up to 16 * the amount of parallelism available. If it wasn't a greater factor
+		// than the amount of parallelism available, there is no advantage of using the Fork/Join framework over other
+		// parallel paradigms since there would be no work stealing if there are no tasks left over in case one thread
+		// finishes faster. If the factor is too great, there is too much splitting and overhead and each individual base
+		// task does not have enough computing.
+		// I got the largest speedup with this value of 16, at about 2.2x for all parallelism with 4 cores. Machines with
+		// many more cores generally want fewer tasks per worker, or Granularity.l2Sized.
+		int tasks = getTaskCount(w, h, pool, granularity);
+		ForkJoinProfiler.Invocation invocation = profile(pool, "setRGB", w, h, tasks);
+		invoke(pool, new SetRGBTask(xStart, yStart, w, h, rgbArray, offset, scansize, tasks, invocation), invocation);
 	}
 
 	@Override
 	public int[] getRGB(int xStart, int yStart, int w, int h, int[] rgbArray, int offset, int scansize){
-		fjp.invoke(new GetRGBTask(xStart, yStart, w, h, rgbArray, offset, scansize, fjp.getParallelism() * 16));
+		return getRGB(xStart, yStart, w, h, rgbArray, offset, scansize, pool, granularity);
+	}
+
+	/**
+	 * Same as getRGB, running in the given pool and split according to the given granularity rather than the image's
+	 * own.
+	 */
+	public int[] getRGB(int xStart, int yStart, int w, int h, int[] rgbArray, int offset, int scansize,
+			ForkJoinPool pool, Granularity granularity){
+		// Allocate here rather than letting every leaf allocate its own array
+		if (rgbArray == null) {
+			rgbArray = new int[offset + h * scansize];
+		}
+		int tasks = getTaskCount(w, h, pool, granularity);
+		ForkJoinProfiler.Invocation invocation = profile(pool, "getRGB", w, h, tasks);
+		invoke(pool, new GetRGBTask(xStart, yStart, w, h, rgbArray, offset, scansize, tasks, invocation), invocation);
 		return rgbArray;
 	}
 }
@@ -0,0 +1,228 @@
+package cop5618;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how the task trees of FJBufferedImage operations actually ran, for tuning Granularity against measured
+ * numbers. Profiling is off unless a profiler is given to an image with FJBufferedImage.setProfiler; the same profiler
+ * can be given to several images, typically the source and destination of an operation.
+ *
+ * For every getRGB, setRGB, filter and histogram call it keeps an Invocation with the size of every leaf, the time
+ * every worker spent in leaves, the steals the pool reported during the call, and the wall and critical path times.
+ * The critical path, or span, is the longest leaf: the leaves are the only tasks that do any work, and the splitting
+ * above them takes microseconds. No schedule can finish a call faster than its span, so wall / span shows how close
+ * the pool came to the best it could do with that split, and work / span is the parallelism the split offers at all.
+ *
+ * Every call's Invocation is passed down its task tree, so leaves are charged to the right call even when profiled
+ * calls overlap or one is started from inside another's tasks; nothing is locked around the pool. A leaf costs two
+ * extra System.nanoTime() calls. This is a diagnostic mode; leave it off when measuring throughput.
+ */
+public class ForkJoinProfiler {
+
+	private final List<Invocation> invocations = Collections.synchronizedList(new ArrayList<Invocation>());
+
+	/**
+	 * One leaf task: its size, how long it ran and on which thread.
+	 */
+	public static class Leaf {
+		public final int width;
+		public final int rows;
+		public final long nanos;
+		public final String thread;
+
+		Leaf(int width, int rows, long nanos, String thread) {
+			this.width = width;
+			this.rows = rows;
+			this.nanos = nanos;
+			this.thread = thread;
+		}
+	}
+
+	/**
+	 * One profiled call.
+	 */
+	public static class Invocation {
+		public final String operation;
+		public final int width;
+		public final int height;
+		/** number of tasks the granularity asked for */
+		public final int tasks;
+		public final int parallelism;
+		private final ConcurrentLinkedQueue<Leaf> leaves = new ConcurrentLinkedQueue<Leaf>();
+		private final ConcurrentHashMap<String, LongAdder> busyNanos = new ConcurrentHashMap<String, LongAdder>();
+		private final ForkJoinProfiler profiler;
+		private long wallNanos;
+		private long steals;
+
+		Invocation(ForkJoinProfiler profiler, String operation, int width, int height, int tasks, int parallelism) {
+			this.profiler = profiler;
+			this.operation = operation;
+			this.width = width;
+			this.height = height;
+			this.tasks = tasks;
+			this.parallelism = parallelism;
+		}
+
+		/**
+		 * Runs task in pool, whose leaves record themselves with this call, and adds this call to the profiler.
+		 */
+		<T> T invoke(ForkJoinPool pool, ForkJoinTask<T> task) {
+			long stealsBefore = pool.getStealCount();
+			long start = System.nanoTime();
+			try {
+				return pool.invoke(task);
+			}
+			finally {
+				wallNanos = System.nanoTime() - start;
+				steals = pool.getStealCount() - stealsBefore;
+				profiler.invocations.add(this);
+			}
+		}
+
+		void leaf(int leafWidth, int rows, long nanos) {
+			String thread = Thread.currentThread().getName();
+			leaves.add(new Leaf(leafWidth, rows, nanos, thread));
+			busyNanos.computeIfAbsent(thread, t -> new LongAdder()).add(nanos);
+		}
+
+		public List<Leaf> getLeaves() {
+			return new ArrayList<Leaf>(leaves);
+		}
+
+		public int getLeafCount() {
+			return leaves.size();
+		}
+
+		public int getMinLeafRows() {
+			int min = Integer.MAX_VALUE;
+			for (Leaf leaf : leaves) {
+				min = Math.min(min, leaf.rows);
+			}
+			return leaves.isEmpty() ? 0 : min;
+		}
+
+		public int getMaxLeafRows() {
+			int max = 0;
+			for (Leaf leaf : leaves) {
+				max = Math.max(max, leaf.rows);
+			}
+			return max;
+		}
+
+		public double getMeanLeafRows() {
+			long rows = 0;
+			for (Leaf leaf : leaves) {
+				rows += leaf.rows;
+			}
+			return leaves.isEmpty() ? 0 : (double) rows / leaves.size();
+		}
+
+		/** time each thread spent running leaves, by thread name */
+		public Map<String, Long> getBusyNanosByThread() {
+			Map<String, Long> busy = new TreeMap<String, Long>();
+			for (Map.Entry<String, LongAdder> entry : busyNanos.entrySet()) {
+				busy.put(entry.getKey(), entry.getValue().sum());
+			}
+			return busy;
+		}
+
+		/** total time spent in leaves, on all threads */
+		public long getWorkNanos() {
+			long work = 0;
+			for (Leaf leaf : leaves) {
+				work += leaf.nanos;
+			}
+			return work;
+		}
+
+		/** the longest leaf */
+		public long getCriticalPathNanos() {
+			long span = 0;
+			for (Leaf leaf : leaves) {
+				span = Math.max(span, leaf.nanos);
+			}
+			return span;
+		}
+
+		public long getWallNanos() {
+			return wallNanos;
+		}
+
+		/**
+		 * Increase of the pool's steal count during the call. The pool only counts steals for all its work, so this
+		 * includes the steals of anything else that ran in the pool at the same time, overlapping profiled calls too.
+		 */
+		public long getSteals() {
+			return steals;
+		}
+
+		/**
+		 * Busiest thread's time over the mean time of the pool's workers; 1 is a perfectly even load. Threads that
+		 * ran no leaf count as idle, so a call that only kept half the workers busy scores at least 2.
+		 */
+		public double getImbalance() {
+			long max = 0;
+			for (LongAdder busy : busyNanos.values()) {
+				max = Math.max(max, busy.sum());
+			}
+			long work = getWorkNanos();
+			return work == 0 ? 1 : (double) max * Math.max(parallelism, busyNanos.size()) / work;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%s %dx%d: tasks=%d, leaves=%d, leaf rows min/mean/max=%d/%.1f/%d, threads=%d, steals=%d, "
+							+ "wall=%.2f, work=%.2f, critical path=%.2f msecs, imbalance=%.2f",
+					operation, width, height, tasks, getLeafCount(), getMinLeafRows(), getMeanLeafRows(),
+					getMaxLeafRows(), busyNanos.size(), steals, wallNanos / 1e6, getWorkNanos() / 1e6,
+					getCriticalPathNanos() / 1e6, getImbalance());
+		}
+	}
+
+	/**
+	 * A new call of operation on a width by height region split into tasks leaves, to be run with Invocation.invoke
+	 * by a task tree whose leaves record themselves with it.
+	 */
+	Invocation start(ForkJoinPool pool, String operation, int width, int height, int tasks) {
+		return new Invocation(this, operation, width, height, tasks, pool.getParallelism());
+	}
+
+	/**
+	 * The calls recorded so far, oldest first.
+	 */
+	public List<Invocation> getInvocations() {
+		synchronized (invocations) {
+			return new ArrayList<Invocation>(invocations);
+		}
+	}
+
+	public void clear() {
+		invocations.clear();
+	}
+
+	/**
+	 * One line per recorded call.
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for (Invocation invocation : getInvocations()) {
+			sb.append(invocation).append(String.format("%n"));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return report();
+	}
+}
@@ -0,0 +1,72 @@
+package cop5618;
+
+/**
+ * Decides how many leaf tasks an FJBufferedImage operation over a w by h region is split into.
+ *
+ * The tasks split the region in halves along its larger dimension until the count runs out, so leaves are roughly
+ * square tiles: by rows while the region is at least as tall as it is wide, and by columns while it is wider, as long
+ * as both halves keep at least 64 columns. The value returned is an upper bound on the number of leaves, since a
+ * region is never split below one row, nor below that width. The factories cover the policies we have needed so far:
+ * a multiple of the pool's parallelism (the original behavior), a fixed count, a minimum leaf size in rows, and a
+ * target number of bytes per leaf so that a leaf's pixels fit in a core's cache.
+ */
+@FunctionalInterface
+public interface Granularity {
+
+	/**
+	 * Returns the number of tasks to split a w by h region into when running in a pool with the given parallelism.
+	 * Values below 1 are treated as 1.
+	 */
+	int tasks(int w, int h, int parallelism);
+
+	/** 4 bytes per pixel in the default ARGB format */
+	int BYTES_PER_PIXEL = 4;
+
+	/**
+	 * Size of a typical per core L2 cache, used by l2Sized. It can be changed with -Dcop5618.l2Bytes=... for
+	 * machines where it is known.
+	 */
+	long L2_BYTES = Long.getLong("cop5618.l2Bytes", 256 * 1024);
+
+	/**
+	 * factor tasks for every worker in the pool. Each worker ends up with several leaves, so work stealing can even
+	 * out workers that finish early. This was originally fixed at 16, tuned on a 4 core machine.
+	 */
+	static Granularity tasksPerWorker(int factor) {
+		return (w, h, parallelism) -> parallelism * factor;
+	}
+
+	/**
+	 * Always the same number of tasks, whatever the pool or the region.
+	 */
+	static Granularity fixedTasks(int tasks) {
+		return (w, h, parallelism) -> tasks;
+	}
+
+	/**
+	 * As many tasks as there are groups of minRows rows in the region, so small images are not split finely. Every
+	 * leaf then covers about as many pixels as minRows full rows; a wide region is split into columns, so its leaves
+	 * may be shorter than minRows rows and wider than that.
+	 */
+	static Granularity minRowsPerLeaf(int minRows) {
+		return (w, h, parallelism) -> h / Math.max(1, minRows);
+	}
+
+	/**
+	 * As many tasks as it takes for each leaf to cover about bytes of pixels.
+	 */
+	static Granularity bytesPerTask(long bytes) {
+		return (w, h, parallelism) -> (int) Math.min(Integer.MAX_VALUE,
+				(long) w * h * BYTES_PER_PIXEL / Math.max(1, bytes));
+	}
+
+	/**
+	 * Leaves that fit in half of L2_BYTES, leaving room for the destination of a copy.
+	 */
+	static Granularity l2Sized() {
+		return bytesPerTask(L2_BYTES / 2);
+	}
+
+	/** The policy FJBufferedImage uses unless it is given another one */
+	Granularity DEFAULT = tasksPerWorker(16);
+}
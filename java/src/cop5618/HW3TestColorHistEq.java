@@ -5,6 +5,13 @@ import static org.junit.Assert.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import javax.imageio.ImageIO;
 
@@ -144,6 +151,651 @@ public class HW3TestColorHistEq {
 		System.out.println(Timer.statsToString(timers,meanSerialDuration));
 		assertTrue(HW3Utils.equals(serialSolution, newImage));
 	}
+
+
+	/**
+	 * Test method for
+	 * {@link cop5618.ColorHistEq#colorHistEq_primitive(cop5618.FJBufferedImage, cop5618.FJBufferedImage)}
+	 * .
+	 * This test invokes the allocation free engine that reads the image once for the histogram and once to equalize.
+	 * The speedup is compared to the duration from testColorHistEq_serial, or 0 if that test case has not run.
+	 * @throws IOException
+	 */
+	@Test
+	public void testColorHistEq_primitive() throws IOException {
+		System.out.println("****Running test case ColorHistEq_primitive****");
+		String filename = addPrefixToFileName(sourceImageFilename, "ColorHistEq_primitive_");
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = ColorHistEq.colorHistEq_primitive(source, newImage);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = ColorHistEq.colorHistEq_primitive(source, newImage);
+		}
+		//write the last one
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		ImageIO.write(newImage, "jpg", output);
+		// print stats
+		System.out.println("printing stats for ColorHistEq_primitive");
+		System.out.println(Timer.statsToString(timers,meanSerialDuration));
+		assertTrue(HW3Utils.equals(serialSolution, newImage));
+	}
+
+
+	/**
+	 * Test method for
+	 * {@link cop5618.ColorHistEq#colorHistEq_lut(cop5618.FJBufferedImage, cop5618.FJBufferedImage)}
+	 * .
+	 * This test invokes the engine with the lookup table equalize step, and compares the mean duration of the
+	 * "equalize pixels" stage with the same stage of colorHistEq_primitive, which computes each pixel's new brightness
+	 * from its bin.
+	 * @throws IOException
+	 */
+	@Test
+	public void testColorHistEq_lut() throws IOException {
+		System.out.println("****Running test case ColorHistEq_lut****");
+		String filename = addPrefixToFileName(sourceImageFilename, "ColorHistEq_lut_");
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			ColorHistEq.colorHistEq_primitive(source, newImage);
+			ColorHistEq.colorHistEq_lut(source, newImage);
+		}
+		Timer[] timers = new Timer[REPS];
+		Timer[] primitiveTimers = new Timer[REPS];
+		// alternate the two so that neither one always runs with a warmer cache
+		for (int rep = 0; rep < REPS; rep++) {
+			primitiveTimers[rep] = ColorHistEq.colorHistEq_primitive(source, newImage);
+			timers[rep] = ColorHistEq.colorHistEq_lut(source, newImage);
+		}
+		//write the last one
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		ImageIO.write(newImage, "jpg", output);
+		// print stats
+		System.out.println("printing stats for ColorHistEq_lut");
+		System.out.println(Timer.statsToString(timers,meanSerialDuration));
+		int equalizeIndex = 3; // index of "equalize pixels" in ColorHistEq.primitiveLabels
+		double[] lutMeans = new double[ColorHistEq.primitiveLabels.length + 1];
+		double[] primitiveMeans = new double[ColorHistEq.primitiveLabels.length + 1];
+		Timer.computeStats(timers, lutMeans, null, null);
+		Timer.computeStats(primitiveTimers, primitiveMeans, null, null);
+		System.out.println(String.format("equalize pixels speedup over colorHistEq_primitive=%.2f%n",
+				primitiveMeans[equalizeIndex] / lutMeans[equalizeIndex]));
+		assertTrue(HW3Utils.equals(serialSolution, newImage));
+	}
+
+
+	/**
+	 * Test method for
+	 * {@link cop5618.AdaptiveHistEq#adaptiveHistEq_parallel(cop5618.FJBufferedImage, cop5618.FJBufferedImage)}
+	 * .
+	 * This test runs the serial CLAHE once for reference, then times the parallel version. The speedup is relative to
+	 * the serial CLAHE, and the parallel result must be identical to it, also in a pool of 64 workers, which splits the
+	 * tiles into bands, and with tiles that don't divide the image evenly.
+	 * @throws IOException
+	 */
+	@Test
+	public void testAdaptiveHistEq_parallel() throws IOException {
+		System.out.println("****Running test case AdaptiveHistEq_parallel****");
+		String filename = addPrefixToFileName(sourceImageFilename, "AdaptiveHistEq_parallel_");
+		BufferedImage serialAdaptive = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), sourceImage.getType());
+		Timer[] serialTimers = { AdaptiveHistEq.adaptiveHistEq_serial(sourceImage, serialAdaptive) };
+		double[] meanAdaptiveSerialDuration = new double[1];
+		System.out.println("printing stats for AdaptiveHistEq_serial");
+		System.out.println(Timer.statsToString(serialTimers, meanAdaptiveSerialDuration));
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = AdaptiveHistEq.adaptiveHistEq_parallel(source, newImage);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = AdaptiveHistEq.adaptiveHistEq_parallel(source, newImage);
+		}
+		//write the last one
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		ImageIO.write(newImage, "jpg", output);
+		// print stats
+		System.out.println("printing stats for AdaptiveHistEq_parallel");
+		System.out.println(Timer.statsToString(timers, meanAdaptiveSerialDuration[0]));
+		assertTrue(HW3Utils.equals(serialAdaptive, newImage));
+		// a pool of 64 workers, as on a large machine, cuts every tile into bands
+		ForkJoinPool pool = new ForkJoinPool(64);
+		source.setPool(pool);
+		AdaptiveHistEq.adaptiveHistEq_parallel(source, newImage);
+		assertTrue(HW3Utils.equals(serialAdaptive, newImage));
+		AdaptiveHistEq.adaptiveHistEq_serial(sourceImage, serialAdaptive, 3, 5, 3.0);
+		AdaptiveHistEq.adaptiveHistEq_parallel(source, newImage, 3, 5, 3.0);
+		assertTrue(HW3Utils.equals(serialAdaptive, newImage));
+		pool.shutdown();
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.StripPipeline#colorHistEq(java.io.File, java.io.File, int)}
+	 * .
+	 * Equalizes the source file in strips of 256 rows and checks the TIFF it writes against the serial solution.
+	 * @throws IOException
+	 */
+	@Test
+	public void testStripPipeline_colorHistEq() throws IOException {
+		System.out.println("****Running test case StripPipeline.colorHistEq****");
+		String filename = addPrefixToFileName(sourceImageFilename, "ColorHistEq_strips_") + ".tiff";
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		Timer[] timers = { StripPipeline.colorHistEq(new File(sourceImageFilename), output, 256) };
+		System.out.println("printing stats for StripPipeline.colorHistEq");
+		System.out.println(Timer.statsToString(timers,meanSerialDuration));
+		assertTrue(HW3Utils.equals(serialSolution, ImageIO.read(output)));
+	}
+	/**
+	 * Test method for
+	 * {@link cop5618.Metrics}
+	 * .
+	 * Records colorHistEq_parallel in a Metrics and checks that every stage in ColorHistEq.labels has a histogram with
+	 * a count for every run.
+	 * @throws IOException
+	 */
+	@Test
+	public void testMetrics_colorHistEq() throws IOException {
+		System.out.println("****Running test case Metrics with ColorHistEq_parallel****");
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		long pixels = (long) source.getWidth() * source.getHeight();
+		Metrics metrics = new Metrics();
+		for (int rep = 0; rep < REPS; rep++) {
+			metrics.measure("colorHistEq_parallel", pixels, () -> ColorHistEq.colorHistEq_parallel(source, newImage));
+		}
+		Metrics.OperationSnapshot snapshot = metrics.snapshot().get("colorHistEq_parallel");
+		System.out.println(snapshot);
+		assertTrue(snapshot.getRuns() == REPS);
+		for (String label : ColorHistEq.labels) {
+			Metrics.StageSnapshot stage = snapshot.getStage(label);
+			assertTrue(stage.getCount() == REPS);
+			assertTrue(stage.getP50() <= stage.getP99() && stage.getP99() <= stage.getMax());
+		}
+		assertTrue(snapshot.getStage(Metrics.TOTAL).getCount() == REPS);
+		assertTrue(HW3Utils.equals(serialSolution, newImage));
+	}
+	/**
+	 * Test method for
+	 * {@link cop5618.ColorHistEq#colorHistEq_adaptive(java.awt.image.BufferedImage, java.awt.image.BufferedImage)}
+	 * .
+	 * Checks the serial and parallel stream versions the dispatcher chooses from against the serial solution, on a
+	 * BufferedImage and on an FJBufferedImage, then runs the adaptive entry point a few times and checks every result,
+	 * whichever version it picked. Last, a dispatcher planned for 4 processors, so that it tries every mode on any
+	 * machine, runs on a thumbnail, and the timers it returns must add up in Timer.statsToString.
+	 * @throws IOException
+	 */
+	@Test
+	public void testColorHistEq_adaptive() throws IOException {
+		System.out.println("****Running test case ColorHistEq_adaptive****");
+		int w = sourceImage.getWidth();
+		int h = sourceImage.getHeight();
+		BufferedImage newImage = new BufferedImage(w, h, sourceImage.getType());
+		ColorHistEq.colorHistEq_lut_serial(sourceImage, newImage);
+		assertTrue(HW3Utils.equals(serialSolution, newImage));
+		newImage = new BufferedImage(w, h, sourceImage.getType());
+		ColorHistEq.colorHistEq_lut_PS(sourceImage, newImage);
+		assertTrue(HW3Utils.equals(serialSolution, newImage));
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newFJImage = new FJBufferedImage(w, h, source.getType());
+		ColorHistEq.colorHistEq_lut_serial(source, newFJImage);
+		assertTrue(HW3Utils.equals(serialSolution, newFJImage));
+		newFJImage = new FJBufferedImage(w, h, source.getType());
+		ColorHistEq.colorHistEq_lut_PS(source, newFJImage);
+		assertTrue(HW3Utils.equals(serialSolution, newFJImage));
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = ColorHistEq.colorHistEq_adaptive(sourceImage, newImage);
+			assertTrue(HW3Utils.equals(serialSolution, newImage));
+		}
+		System.out.println(ColorHistEq.adaptive.report());
+		System.out.println(Timer.statsToString(timers, new double[1]));
+		AdaptiveDispatcher dispatcher = new AdaptiveDispatcher("colorHistEq_lut", ColorHistEq::colorHistEq_lut_serial,
+				ColorHistEq::colorHistEq_lut_PS, AdaptiveDispatcher.forkJoin(ColorHistEq::colorHistEq_lut), 4, 2, 8);
+		int tw = 200;
+		int th = 150;
+		BufferedImage thumbnail = new BufferedImage(tw, th, sourceImage.getType());
+		thumbnail.setRGB(0, 0, tw, th, sourceImage.getRGB(0, 0, tw, th, null, 0, tw), 0, tw);
+		BufferedImage serialThumbnail = new BufferedImage(tw, th, sourceImage.getType());
+		ColorHistEq.colorHistEq_serial(thumbnail, serialThumbnail);
+		BufferedImage newThumbnail = new BufferedImage(tw, th, sourceImage.getType());
+		Timer[] thumbnailTimers = new Timer[12];
+		for (int rep = 0; rep < thumbnailTimers.length; rep++) {
+			thumbnailTimers[rep] = dispatcher.apply(thumbnail, newThumbnail);
+			assertTrue(HW3Utils.equals(serialThumbnail, newThumbnail));
+		}
+		for (AdaptiveDispatcher.Mode mode : AdaptiveDispatcher.Mode.values()) {
+			assertTrue(!Double.isNaN(dispatcher.getNanosPerPixel(mode, tw * th)));
+		}
+		System.out.println(Timer.statsToString(thumbnailTimers, new double[1]));
+	}
+	/**
+	 * Test method for
+	 * {@link cop5618.PixelPipeline}
+	 * .
+	 * Runs gray conversion followed by equalization as one pipeline and checks it against gray_SS followed by
+	 * colorHistEq_serial, then times it against gray_PS followed by colorHistEq_parallel through an intermediate image.
+	 * @throws IOException
+	 */
+	@Test
+	public void testPixelPipeline_grayEqualize() throws IOException {
+		System.out.println("****Running test case PixelPipeline gray then equalize****");
+		String filename = addPrefixToFileName(sourceImageFilename, "PixelPipeline_gray_equalize_");
+		int w = sourceImage.getWidth();
+		int h = sourceImage.getHeight();
+		BufferedImage gray = new BufferedImage(w, h, sourceImage.getType());
+		Gray.gray_SS(sourceImage, gray);
+		BufferedImage expected = new BufferedImage(w, h, sourceImage.getType());
+		ColorHistEq.colorHistEq_serial(gray, expected);
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage intermediate = new FJBufferedImage(w, h, source.getType());
+		FJBufferedImage newImage = new FJBufferedImage(w, h, source.getType());
+		PixelPipeline pipeline = PixelPipeline.from(source).gray().equalize();
+		assertTrue(pipeline.passes() == 2);
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			pipeline.run(newImage);
+			Gray.gray_PS(source, intermediate);
+			ColorHistEq.colorHistEq_parallel(intermediate, newImage);
+		}
+		Timer[] timers = new Timer[REPS];
+		Timer[] chainedTimers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			Timer chained = new Timer("gray_PS", "colorHistEq_parallel");
+			chained.now();
+			Gray.gray_PS(source, intermediate);
+			chained.now();
+			ColorHistEq.colorHistEq_parallel(intermediate, newImage);
+			chained.now();
+			chainedTimers[rep] = chained;
+			timers[rep] = pipeline.run(newImage);
+		}
+		double[] meanChainedDuration = new double[1];
+		System.out.println("printing stats for gray_PS then colorHistEq_parallel");
+		System.out.println(Timer.statsToString(chainedTimers, meanChainedDuration));
+		System.out.println("printing stats for PixelPipeline gray then equalize, speedup over the chained versions");
+		System.out.println(Timer.statsToString(timers, meanChainedDuration[0]));
+		assertTrue(HW3Utils.equals(expected, newImage));
+		System.out.println("writing file " + filename);
+		System.out.println(pipeline.write(new File(filename), "jpg"));
+	}
+	/**
+	 * Test method for
+	 * {@link cop5618.ParallelHistogram}
+	 * .
+	 * Counts the brightness bins of the source image with groupingBy, as colorHistEq_parallel used to, and with
+	 * ParallelHistogram's per thread and striped counters, checks that all three agree, and prints their times. The
+	 * luma and channel histograms are checked against a plain loop.
+	 * @throws IOException
+	 */
+	@Test
+	public void testParallelHistogram() throws IOException {
+		System.out.println("****Running test case ParallelHistogram****");
+		int w = sourceImage.getWidth();
+		int h = sourceImage.getHeight();
+		int[] pixels = sourceImage.getRGB(0, 0, w, h, null, 0, w);
+		int bins = ColorHistEq.binNum;
+		Timer[] timers = new Timer[REPS];
+		int[] collected = null;
+		int[] perThread = null;
+		int[] striped = null;
+		for (int rep = -WARMUPREPS; rep < REPS; rep++) {
+			Timer timer = new Timer("groupingBy", "per thread counters", "striped counters");
+			timer.now();
+			Map<Integer, Long> map = IntStream.range(0, pixels.length).parallel()
+					.map(i -> ColorHistEq.brightnessBin(pixels[i], bins)).boxed()
+					.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+			collected = IntStream.range(0, bins).map(b -> map.containsKey(b) ? map.get(b).intValue() : 0).toArray();
+			timer.now();
+			perThread = ParallelHistogram.brightness(pixels, bins);
+			timer.now();
+			striped = ParallelHistogram.countStriped(pixels.length, i -> ColorHistEq.brightnessBin(pixels[i], bins),
+					bins, 2, ForkJoinPool.commonPool());
+			timer.now();
+			if (rep >= 0) {
+				timers[rep] = timer;
+			}
+		}
+		System.out.println("printing stats for brightness histograms");
+		System.out.println(Timer.statsToString(timers, new double[1]));
+		assertArrayEquals(collected, perThread);
+		assertArrayEquals(collected, striped);
+		int[] luma = new int[64];
+		int[] green = new int[64];
+		for (int pixel : pixels) {
+			luma[(Gray.grayPixelExact(pixel) & 0xFF) * 64 / 256]++;
+			green[((pixel >> 8) & 0xFF) * 64 / 256]++;
+		}
+		assertArrayEquals(luma, ParallelHistogram.luma(pixels, 64));
+		assertArrayEquals(green, ParallelHistogram.channel(pixels, 8, 64));
+	}
+	/**
+	 * Test method for
+	 * {@link cop5618.ColorHistEq#colorHistEq_rgb_parallel(cop5618.FJBufferedImage, cop5618.FJBufferedImage)}
+	 * .
+	 * Runs the per channel equalization serially once for reference, then times the parallel version, which must give
+	 * the same image. The speedup is relative to colorHistEq_rgb_serial.
+	 * @throws IOException
+	 */
+	@Test
+	public void testColorHistEq_rgb() throws IOException {
+		System.out.println("****Running test case ColorHistEq_rgb****");
+		String filename = addPrefixToFileName(sourceImageFilename, "ColorHistEq_rgb_");
+		BufferedImage serialRgb = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), sourceImage.getType());
+		Timer[] serialTimers = { ColorHistEq.colorHistEq_rgb_serial(sourceImage, serialRgb) };
+		double[] meanSerialDuration = new double[1];
+		System.out.println("printing stats for ColorHistEq_rgb_serial");
+		System.out.println(Timer.statsToString(serialTimers, meanSerialDuration));
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = ColorHistEq.colorHistEq_rgb_parallel(source, newImage);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = ColorHistEq.colorHistEq_rgb_parallel(source, newImage);
+		}
+		//write the last one
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		ImageIO.write(newImage, "jpg", output);
+		// print stats
+		System.out.println("printing stats for ColorHistEq_rgb_parallel");
+		System.out.println(Timer.statsToString(timers, meanSerialDuration[0]));
+		assertTrue(HW3Utils.equals(serialRgb, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.ColorHistEq#colorHistEq_luma_parallel(cop5618.FJBufferedImage, cop5618.FJBufferedImage)}
+	 * .
+	 * Runs the YCbCr luma equalization serially once for reference, then times the parallel version, which must give
+	 * the same image. The speedup is relative to colorHistEq_luma_serial.
+	 * @throws IOException
+	 */
+	@Test
+	public void testColorHistEq_luma() throws IOException {
+		System.out.println("****Running test case ColorHistEq_luma****");
+		String filename = addPrefixToFileName(sourceImageFilename, "ColorHistEq_luma_");
+		BufferedImage serialLuma = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), sourceImage.getType());
+		Timer[] serialTimers = { ColorHistEq.colorHistEq_luma_serial(sourceImage, serialLuma) };
+		double[] meanSerialDuration = new double[1];
+		System.out.println("printing stats for ColorHistEq_luma_serial");
+		System.out.println(Timer.statsToString(serialTimers, meanSerialDuration));
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = ColorHistEq.colorHistEq_luma_parallel(source, newImage);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = ColorHistEq.colorHistEq_luma_parallel(source, newImage);
+		}
+		//write the last one
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		ImageIO.write(newImage, "jpg", output);
+		// print stats
+		System.out.println("printing stats for ColorHistEq_luma_parallel");
+		System.out.println(Timer.statsToString(timers, meanSerialDuration[0]));
+		assertTrue(HW3Utils.equals(serialLuma, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.VideoEqualizer#equalize(cop5618.FJBufferedImage, cop5618.FJBufferedImage)}
+	 * .
+	 * An equalizer that doesn't smooth, subsample or count in the background must give every frame the image
+	 * colorHistEq_serial gives it. On a sequence that alternates between the source image and the source with its top
+	 * half blacked out, the smoothed mapping must change less from frame to frame than the unsmoothed one, and the
+	 * mapping from every 2nd row and column must stay within .02 of the one from all pixels. Then times the default
+	 * equalizer, which subsamples and counts in the background, over a sequence of the source image.
+	 * @throws IOException
+	 */
+	@Test
+	public void testVideoEqualizer() throws IOException {
+		System.out.println("****Running test case VideoEqualizer****");
+		String filename = addPrefixToFileName(sourceImageFilename, "VideoEqualizer_");
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		int w = source.getWidth();
+		int h = source.getHeight();
+		FJBufferedImage newImage = new FJBufferedImage(w, h, source.getType());
+		VideoEqualizer exact = new VideoEqualizer(1, 1, false);
+		for (int frame = 0; frame < 2; frame++) {
+			exact.equalize(source, newImage);
+			assertTrue(HW3Utils.equals(serialSolution, newImage));
+		}
+		FJBufferedImage dark = new FJBufferedImage(w, h, source.getType());
+		int[] pixels = source.getRGB(0, 0, w, h, null, 0, w);
+		Arrays.fill(pixels, 0, w * (h / 2), 0xFF000000);
+		dark.setRGB(0, 0, w, h, pixels, 0, w);
+		// in background mode a frame is still being counted while it is mapped, so it can't be mapped in place
+		try {
+			new VideoEqualizer(0.25, 1, true).equalize(source, source);
+			fail("equalized a frame in place in background mode");
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println("failed as expected: " + e);
+		}
+		// a frame of another size starts the smoothing again in both modes, so it gets its own equalization
+		BufferedImage crop = sourceImage.getSubimage(0, 0, w / 2, h / 2);
+		BufferedImage cropSolution = new BufferedImage(w / 2, h / 2, sourceImage.getType());
+		ColorHistEq.colorHistEq_serial(crop, cropSolution);
+		FJBufferedImage cropFrame = FJBufferedImage.BufferedImageToFJBufferedImage(crop);
+		FJBufferedImage newCrop = new FJBufferedImage(w / 2, h / 2, source.getType());
+		for (boolean background : new boolean[] { false, true }) {
+			VideoEqualizer resized = new VideoEqualizer(0.25, 1, background);
+			resized.equalize(dark, newImage);
+			resized.equalize(cropFrame, newCrop);
+			resized.await();
+			assertTrue(HW3Utils.equals(cropSolution, newCrop));
+		}
+		FJBufferedImage[] frames = { source, dark };
+		VideoEqualizer unsmoothed = new VideoEqualizer(1, 1, false);
+		VideoEqualizer smoothed = new VideoEqualizer(0.25, 1, false);
+		VideoEqualizer subsampled = new VideoEqualizer(1, 2, false);
+		float unsmoothedChange = 0;
+		float smoothedChange = 0;
+		float subsampledError = 0;
+		float[] unsmoothedBefore = null;
+		float[] smoothedBefore = null;
+		for (int frame = 0; frame < 8; frame++) {
+			unsmoothed.equalize(frames[frame % 2], newImage);
+			smoothed.equalize(frames[frame % 2], newImage);
+			subsampled.equalize(frames[frame % 2], newImage);
+			float[] unsmoothedTable = unsmoothed.getBrightnessTable();
+			float[] smoothedTable = smoothed.getBrightnessTable();
+			float[] subsampledTable = subsampled.getBrightnessTable();
+			for (int cmax = 0; cmax < 256; cmax++) {
+				if (frame > 0) {
+					unsmoothedChange = Math.max(unsmoothedChange, Math.abs(unsmoothedTable[cmax] - unsmoothedBefore[cmax]));
+					smoothedChange = Math.max(smoothedChange, Math.abs(smoothedTable[cmax] - smoothedBefore[cmax]));
+				}
+				subsampledError = Math.max(subsampledError, Math.abs(subsampledTable[cmax] - unsmoothedTable[cmax]));
+			}
+			unsmoothedBefore = unsmoothedTable;
+			smoothedBefore = smoothedTable;
+		}
+		System.out.println(String.format(
+				"largest change of the brightness table between frames: unsmoothed %.3f, smoothed %.3f; "
+						+ "largest error of subsampling: %.4f", unsmoothedChange, smoothedChange, subsampledError));
+		assertTrue(smoothedChange < unsmoothedChange);
+		assertTrue(subsampledError < 0.02f);
+		VideoEqualizer equalizer = new VideoEqualizer();
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = equalizer.equalize(source, newImage);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = equalizer.equalize(source, newImage);
+		}
+		equalizer.await();
+		//write the last one
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		ImageIO.write(newImage, "jpg", output);
+		// print stats
+		System.out.println("printing stats for VideoEqualizer");
+		System.out.println(Timer.statsToString(timers, meanSerialDuration));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.ColorHistEq#colorHistEq_rgb_serial(java.awt.image.BufferedImage, java.awt.image.BufferedImage)}
+	 * .
+	 * Checks the equalization itself rather than serial against parallel. Four gray pixels 0, 64, 128 and 255 each
+	 * hold a quarter of the pixels, so every mode must spread them to 255 * 1/4, 2/4, 3/4 and 4/4, rounded: 64, 128,
+	 * 191 and 255. On the source image, the fraction of pixels whose red, green or blue value is at most u must be
+	 * u / 255 for every value u the output has, to within rounding.
+	 * @throws IOException
+	 */
+	@Test
+	public void testColorHistEq_channels_equalized() throws IOException {
+		System.out.println("****Running test case ColorHistEq_rgb and ColorHistEq_luma equalization****");
+		int[] levels = { 0, 64, 128, 255 };
+		int[] expected = { 64, 128, 191, 255 };
+		FJBufferedImage tiny = new FJBufferedImage(levels.length, 1, BufferedImage.TYPE_INT_ARGB);
+		for (int x = 0; x < levels.length; x++) {
+			tiny.setRGB(x, 0, HW3Utils.makeRGBPixel(levels[x], levels[x], levels[x], 255));
+		}
+		for (int mode = 0; mode < 4; mode++) {
+			FJBufferedImage equalized = new FJBufferedImage(levels.length, 1, BufferedImage.TYPE_INT_ARGB);
+			switch (mode) {
+			case 0:
+				ColorHistEq.colorHistEq_rgb_serial(tiny, equalized);
+				break;
+			case 1:
+				ColorHistEq.colorHistEq_rgb_parallel(tiny, equalized);
+				break;
+			case 2:
+				ColorHistEq.colorHistEq_luma_serial(tiny, equalized);
+				break;
+			default:
+				ColorHistEq.colorHistEq_luma_parallel(tiny, equalized);
+			}
+			for (int x = 0; x < levels.length; x++) {
+				assertEquals(HW3Utils.makeRGBPixel(expected[x], expected[x], expected[x], 255), equalized.getRGB(x, 0));
+			}
+		}
+		int w = sourceImage.getWidth();
+		int h = sourceImage.getHeight();
+		BufferedImage equalized = new BufferedImage(w, h, sourceImage.getType());
+		ColorHistEq.colorHistEq_rgb_serial(sourceImage, equalized);
+		int[] pixels = equalized.getRGB(0, 0, w, h, null, 0, w);
+		for (int shift = 0; shift <= 16; shift += 8) {
+			long[] counts = new long[256];
+			for (int pixel : pixels) {
+				counts[(pixel >> shift) & 0xFF]++;
+			}
+			long atMost = 0;
+			for (int u = 0; u < 256; u++) {
+				atMost += counts[u];
+				if (counts[u] > 0) {
+					assertEquals(u / 255.0, (double) atMost / pixels.length, 1 / 255.0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.AdaptiveHistEq#adaptiveHistEq_serial(java.awt.image.BufferedImage, java.awt.image.BufferedImage, int, int, double)}
+	 * and {@link cop5618.AdaptiveHistEq#clippedMapping(int[], int, double)}
+	 * .
+	 * Checks the CLAHE steps on small synthetic images with known results, serially and in parallel: a uniform image
+	 * stays uniform, no mapping rises faster than the clip limit plus the redistributed excess allows, and the output
+	 * changes gradually across a tile border where plain per tile equalization would jump.
+	 */
+	@Test
+	public void testAdaptiveHistEq_synthetic() {
+		System.out.println("****Running test case AdaptiveHistEq on synthetic images****");
+		// a uniform image has the same histogram, and so the same mapping, in every tile
+		BufferedImage uniform = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 48; y++) {
+			for (int x = 0; x < 64; x++) {
+				uniform.setRGB(x, y, 0x406080);
+			}
+		}
+		for (BufferedImage result : claheBothWays(uniform, 4, 3, 2.0)) {
+			int first = result.getRGB(0, 0);
+			for (int y = 0; y < 48; y++) {
+				for (int x = 0; x < 64; x++) {
+					assertEquals(first, result.getRGB(x, y));
+				}
+			}
+		}
+		// no bin of a mapping holds more than the clip limit plus its share of the clipped counts, and every mapping
+		// ends at 1
+		Random random = new Random(7);
+		for (int rep = 0; rep < 100; rep++) {
+			int pixelCount = 1 + random.nextInt(5000);
+			int[] histogram = new int[AdaptiveHistEq.LEVELS];
+			// a few peaks that exceed the limit, over a sparse background
+			for (int i = 0; i < pixelCount; i++) {
+				int v = random.nextInt(4) == 0 ? random.nextInt(AdaptiveHistEq.LEVELS) : 17 * random.nextInt(3);
+				histogram[v]++;
+			}
+			double clipLimit = 1 + 4 * random.nextDouble();
+			int limit = Math.max(1, (int) (clipLimit * pixelCount / AdaptiveHistEq.LEVELS));
+			int excess = 0;
+			for (int count : histogram) {
+				excess += Math.max(0, count - limit);
+			}
+			int maxBin = limit + excess / AdaptiveHistEq.LEVELS + 1;
+			float[] mapping = AdaptiveHistEq.clippedMapping(histogram, pixelCount, clipLimit);
+			float previous = 0;
+			for (int v = 0; v < AdaptiveHistEq.LEVELS; v++) {
+				assertTrue(mapping[v] >= previous);
+				assertTrue((mapping[v] - previous) * pixelCount <= maxBin + 1e-3);
+				previous = mapping[v];
+			}
+			assertEquals(1.0, mapping[AdaptiveHistEq.LEVELS - 1], 1e-6);
+		}
+		// Two tiles side by side, the left mostly dark and the right mostly bright, with a band of mid gray across the
+		// border. The gray is among the brightest pixels of the left tile and among the darkest of the right one, so
+		// the two tiles map it far apart; interpolated, it must go from one to the other in small steps.
+		BufferedImage halves = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 32; y++) {
+			for (int x = 0; x < 64; x++) {
+				int value = x < 24 ? 20 : x < 40 ? 128 : 230;
+				halves.setRGB(x, y, value * 0x010101);
+			}
+		}
+		for (BufferedImage result : claheBothWays(halves, 2, 1, 100.0)) {
+			for (int y = 0; y < 32; y++) {
+				// the tiles map the gray far apart, so a seam at x = 32 would jump by most of the difference
+				int left = result.getRGB(24, y) & 0xFF;
+				int right = result.getRGB(39, y) & 0xFF;
+				assertTrue(left - right >= 40);
+				for (int x = 24; x < 39; x++) {
+					int step = Math.abs((result.getRGB(x + 1, y) & 0xFF) - (result.getRGB(x, y) & 0xFF));
+					assertTrue("step of " + step + " at x=" + x, step <= 4);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The serial and the parallel CLAHE of image, which must be the same.
+	 */
+	private static BufferedImage[] claheBothWays(BufferedImage image, int tilesX, int tilesY, double clipLimit) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		BufferedImage serial = new BufferedImage(w, h, image.getType());
+		AdaptiveHistEq.adaptiveHistEq_serial(image, serial, tilesX, tilesY, clipLimit);
+		FJBufferedImage parallel = new FJBufferedImage(w, h, image.getType());
+		AdaptiveHistEq.adaptiveHistEq_parallel(FJBufferedImage.BufferedImageToFJBufferedImage(image), parallel, tilesX,
+				tilesY, clipLimit);
+		assertTrue(HW3Utils.equals(serial, parallel));
+		return new BufferedImage[] { serial, parallel };
+	}
+
 //
 
 	/**
@@ -157,6 +809,19 @@ public class HW3TestColorHistEq {
 		HW3TestColorHistEq test = new HW3TestColorHistEq();
 		test.testColorHistEq_serial();
 		test.testColorHistEq_parallel();
+		test.testColorHistEq_primitive();
+		test.testColorHistEq_lut();
+		test.testAdaptiveHistEq_parallel();
+		test.testStripPipeline_colorHistEq();
+		test.testMetrics_colorHistEq();
+		test.testColorHistEq_adaptive();
+		test.testPixelPipeline_grayEqualize();
+		test.testParallelHistogram();
+		test.testColorHistEq_rgb();
+		test.testColorHistEq_luma();
+		test.testVideoEqualizer();
+		test.testColorHistEq_channels_equalized();
+		test.testAdaptiveHistEq_synthetic();
 	}
 
 
@@ -3,12 +3,33 @@
  */
 package cop5618;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
@@ -243,6 +264,769 @@ public class HW3TestGray {
 		assertTrue(HW3Utils.equals(serialGray, newImage));
 	}
 
+
+	/**
+	 * Test method for
+	 * {@link cop5618.Gray#gray_kernel_FJ(cop5618.FJBufferedImage, cop5618.FJBufferedImage)}
+	 * .
+	 * This test invokes the single pass gray scale conversion that runs directly over the rasters.
+	 * The speedup is compared to the duration from testGray_SS, or 0 if that test case has not run.
+	 * @throws IOException
+	 */
+	@Test
+	public void testGray_kernel_FJ() throws IOException {
+		System.out.println("****Running test case gray_kernel_FJ****");
+		String filename = addPrefixToFileName(sourceImageFilename, "gray_kernel_fj_");
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = Gray.gray_kernel_FJ(source, newImage);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = Gray.gray_kernel_FJ(source, newImage);
+		}
+		//write the last one
+		ImageIO.write(newImage, "jpg", output);
+		// print stats
+		System.out.println("printing stats for gray_kernel_FJ");
+		System.out.println(Timer.statsToString(timers,meanSerialDuration));
+		// check same as serial solution
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.Gray#gray_fused_SS(java.awt.image.BufferedImage, java.awt.image.BufferedImage, boolean)}
+	 * .
+	 * This test invokes the fused fixed point gray scale conversion with serial getRGB and setRGB and serial stream processing.
+	 * The speedup is compared to the duration from testGray_SS, or 0 if that test case has not run.
+	 * The fixed point result may differ from the serial solution by 1 in each component; the exact mode must match it.
+	 * @throws IOException
+	 */
+	@Test
+	public void testGray_fused_SS() throws IOException {
+		System.out.println("****Running test case gray_fused_SS****");
+		String filename = addPrefixToFileName(sourceImageFilename, "gray_fused_ss_");
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		BufferedImage source = sourceImage;
+		BufferedImage newImage = new BufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = Gray.gray_fused_SS(source, newImage, false);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = Gray.gray_fused_SS(source, newImage, false);
+		}
+		//write the last one
+		ImageIO.write(newImage, "jpg", output);
+		// print stats
+		System.out.println("printing stats for gray_fused_SS");
+		System.out.println(Timer.statsToString(timers,meanSerialDuration));
+		// check same as serial solution, within the fixed point tolerance
+		assertTrue(HW3Utils.equals(serialGray, newImage, 1));
+		Gray.gray_fused_SS(source, newImage, true);
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.Gray#gray_fused_PS(java.awt.image.BufferedImage, java.awt.image.BufferedImage, boolean)}
+	 * .
+	 * This test invokes the fused fixed point gray scale conversion with serial getRGB and setRGB and parallel stream processing.
+	 * The speedup is compared to the duration from testGray_SS, or 0 if that test case has not run.
+	 * The fixed point result may differ from the serial solution by 1 in each component; the exact mode must match it.
+	 * @throws IOException
+	 */
+	@Test
+	public void testGray_fused_PS() throws IOException {
+		System.out.println("****Running test case gray_fused_PS****");
+		String filename = addPrefixToFileName(sourceImageFilename, "gray_fused_ps_");
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		BufferedImage source = sourceImage;
+		BufferedImage newImage = new BufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = Gray.gray_fused_PS(source, newImage, false);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = Gray.gray_fused_PS(source, newImage, false);
+		}
+		//write the last one
+		ImageIO.write(newImage, "jpg", output);
+		// print stats
+		System.out.println("printing stats for gray_fused_PS");
+		System.out.println(Timer.statsToString(timers,meanSerialDuration));
+		// check same as serial solution, within the fixed point tolerance
+		assertTrue(HW3Utils.equals(serialGray, newImage, 1));
+		Gray.gray_fused_PS(source, newImage, true);
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.Gray#gray_fused_FJ(cop5618.FJBufferedImage, cop5618.FJBufferedImage, boolean)}
+	 * .
+	 * This test invokes the fused fixed point gray scale conversion with a fork/join pixel kernel directly over the rasters.
+	 * The speedup is compared to the duration from testGray_SS, or 0 if that test case has not run.
+	 * The fixed point result may differ from the serial solution by 1 in each component; the exact mode must match it.
+	 * @throws IOException
+	 */
+	@Test
+	public void testGray_fused_FJ() throws IOException {
+		System.out.println("****Running test case gray_fused_FJ****");
+		String filename = addPrefixToFileName(sourceImageFilename, "gray_fused_fj_");
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = Gray.gray_fused_FJ(source, newImage, false);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = Gray.gray_fused_FJ(source, newImage, false);
+		}
+		//write the last one
+		ImageIO.write(newImage, "jpg", output);
+		// print stats
+		System.out.println("printing stats for gray_fused_FJ");
+		System.out.println(Timer.statsToString(timers,meanSerialDuration));
+		// check same as serial solution, within the fixed point tolerance
+		assertTrue(HW3Utils.equals(serialGray, newImage, 1));
+		Gray.gray_fused_FJ(source, newImage, true);
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.Gray#gray_PS_FJ(cop5618.FJBufferedImage, cop5618.FJBufferedImage)}
+	 * .
+	 * Same as testGray_PS_FJ, but the images run getRGB and setRGB in the common pool used by the parallel stream,
+	 * split into leaves sized for the L2 cache, instead of in FJBufferedImage's own pool.
+	 * @throws IOException
+	 */
+	@Test
+	public void testGray_PS_FJ_commonPool() throws IOException {
+		System.out.println("****Running test case gray_PS_FJ with the common pool****");
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		for (FJBufferedImage image : new FJBufferedImage[] { source, newImage }) {
+			image.setPool(ForkJoinPool.commonPool());
+			image.setGranularity(Granularity.l2Sized());
+		}
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = Gray.gray_PS_FJ(source, newImage);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = Gray.gray_PS_FJ(source, newImage);
+		}
+		// print stats
+		System.out.println("printing stats for gray_PS_FJ with the common pool");
+		System.out.println(Timer.statsToString(timers,meanSerialDuration));
+		// check same as serial solution
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.StripPipeline#gray(java.io.File, java.io.File, int)}
+	 * .
+	 * Converts the source file in strips of 256 rows and checks the TIFF it writes against the serial solution, then
+	 * does the same with the BigTIFF writer, which the pipeline switches to for outputs of more than 4 GB.
+	 * @throws IOException
+	 */
+	@Test
+	public void testStripPipeline_gray() throws IOException {
+		System.out.println("****Running test case StripPipeline.gray****");
+		String filename = addPrefixToFileName(sourceImageFilename, "gray_strips_") + ".tiff";
+		System.out.println("writing file " + filename);
+		File output = new File(filename);
+		Timer[] timers = { StripPipeline.gray(new File(sourceImageFilename), output, 256) };
+		System.out.println("printing stats for StripPipeline.gray");
+		System.out.println(Timer.statsToString(timers,meanSerialDuration));
+		assertTrue(HW3Utils.equals(serialGray, ImageIO.read(output)));
+		// the BigTIFF writer, which outputs of more than 4 GB take
+		long maxClassicTiffBytes = StripPipeline.maxClassicTiffBytes;
+		StripPipeline.maxClassicTiffBytes = 0;
+		try {
+			File bigTiff = new File(addPrefixToFileName(sourceImageFilename, "gray_strips_big_") + ".tiff");
+			System.out.println("writing file " + bigTiff);
+			StripPipeline.gray(new File(sourceImageFilename), bigTiff, 256);
+			assertTrue(HW3Utils.equals(serialGray, BigTiffWriter.read(bigTiff)));
+		}
+		finally {
+			StripPipeline.maxClassicTiffBytes = maxClassicTiffBytes;
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.FJBufferedImage#createMapped(java.io.File, long, int, int, boolean)}
+	 * .
+	 * Copies the source into a memory mapped file and runs gray_PS_FJ from it into an off-heap image.
+	 * @throws IOException
+	 */
+	@Test
+	public void testGray_PS_FJ_offHeap() throws IOException {
+		System.out.println("****Running test case gray_PS_FJ on off-heap images****");
+		int w = sourceImage.getWidth();
+		int h = sourceImage.getHeight();
+		File file = File.createTempFile("gray_mapped_", ".raw");
+		file.deleteOnExit();
+		FJBufferedImage source = FJBufferedImage.createMapped(file, 0, w, h, true);
+		source.setRGB(0, 0, w, h, sourceImage.getRGB(0, 0, w, h, null, 0, w), 0, w);
+		FJBufferedImage newImage = FJBufferedImage.createOffHeap(w, h);
+		for (int rep = 0; rep < WARMUPREPS; rep++) {
+			Timer timerData = Gray.gray_PS_FJ(source, newImage);
+		}
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = Gray.gray_PS_FJ(source, newImage);
+		}
+		System.out.println("printing stats for gray_PS_FJ on off-heap images");
+		System.out.println(Timer.statsToString(timers,meanSerialDuration));
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.RawImageIO}
+	 * .
+	 * Saves the serial solution in the raw format and checks that reading it back and mapping it give the same image.
+	 * @throws IOException
+	 */
+	@Test
+	public void testRawImageIO() throws IOException {
+		System.out.println("****Running test case RawImageIO****");
+		String filename = addPrefixToFileName(sourceImageFilename, "gray_ss_") + ".argb";
+		System.out.println("writing file " + filename);
+		File file = new File(filename);
+		Timer timer = new Timer("write raw", "read raw");
+		timer.now();
+		RawImageIO.write(serialGray, file);
+		timer.now();
+		BufferedImage read = RawImageIO.read(file);
+		timer.now();
+		System.out.println(timer);
+		assertTrue(HW3Utils.equals(serialGray, read));
+		assertTrue(HW3Utils.equals(serialGray, RawImageIO.map(file, false)));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.ParallelImageIO}
+	 * .
+	 * Writes the serial solution as a JPEG in parallel bands and checks that the parallel decoder gives exactly the
+	 * pixels ImageIO.read does.
+	 * @throws IOException
+	 */
+	@Test
+	public void testParallelImageIO() throws IOException {
+		System.out.println("****Running test case ParallelImageIO****");
+		String filename = addPrefixToFileName(sourceImageFilename, "gray_parallel_io_");
+		System.out.println("writing file " + filename);
+		File file = new File(filename);
+		Timer timer = new Timer("parallel write", "ImageIO.read", "parallel read");
+		timer.now();
+		assertTrue(ParallelImageIO.write(serialGray, "jpg", file));
+		timer.now();
+		BufferedImage serialRead = ImageIO.read(file);
+		timer.now();
+		BufferedImage parallelRead = ParallelImageIO.read(file);
+		timer.now();
+		System.out.println(timer);
+		assertTrue(HW3Utils.equals(serialRead, parallelRead));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.PixelBufferPool}
+	 * .
+	 * Runs gray_PS repeatedly and checks that after the first call every pixel array comes from the pool.
+	 * @throws IOException
+	 */
+	@Test
+	public void testPixelBufferPool_reuse() throws IOException {
+		System.out.println("****Running test case PixelBufferPool with gray_PS****");
+		BufferedImage source = sourceImage;
+		BufferedImage newImage = new BufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		Gray.gray_PS(source, newImage);
+		PixelBufferPool.shared.resetStats();
+		for (int rep = 0; rep < REPS; rep++) {
+			Gray.gray_PS(source, newImage);
+		}
+		System.out.println(PixelBufferPool.shared.report());
+		assertTrue(PixelBufferPool.shared.getAllocations() == 0);
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.Metrics}
+	 * .
+	 * Records gray_PS_FJ in a Metrics, checks that it has a histogram for every stage in Gray.labels and the total,
+	 * and reads the run count back over JMX.
+	 * @throws Exception
+	 */
+	@Test
+	public void testMetrics_gray() throws Exception {
+		System.out.println("****Running test case Metrics with gray_PS_FJ****");
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		long pixels = (long) source.getWidth() * source.getHeight();
+		Metrics metrics = new Metrics();
+		metrics.registerMBeans();
+		for (int rep = 0; rep < REPS; rep++) {
+			metrics.measure("gray_PS_FJ", pixels, () -> Gray.gray_PS_FJ(source, newImage));
+		}
+		Metrics.OperationSnapshot snapshot = metrics.snapshot().get("gray_PS_FJ");
+		System.out.println(snapshot);
+		assertTrue(snapshot.getRuns() == REPS);
+		assertTrue(snapshot.getPixels() == REPS * pixels);
+		assertTrue(snapshot.getStages().size() == Gray.labels.length + 1);
+		for (String label : Gray.labels) {
+			Metrics.StageSnapshot stage = snapshot.getStage(label);
+			assertTrue(stage.getCount() == REPS);
+			assertTrue(stage.getP50() <= stage.getP99() && stage.getP99() <= stage.getMax());
+		}
+		Object runs = ManagementFactory.getPlatformMBeanServer().getAttribute(Metrics.objectName("gray_PS_FJ"), "Runs");
+		assertTrue(((Long) runs) == REPS);
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.TimerStats}
+	 * .
+	 * Feeds the timers of gray_PS_FJ to a TimerStats as they finish and checks that it agrees with
+	 * Timer.computeStats over the same timers, also when computeStats is given arrays that hold old values.
+	 * @throws IOException
+	 */
+	@Test
+	public void testTimerStats() throws IOException {
+		System.out.println("****Running test case TimerStats with gray_PS_FJ****");
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		TimerStats stats = new TimerStats(Gray.labels);
+		Timer[] timers = new Timer[REPS];
+		for (int rep = 0; rep < REPS; rep++) {
+			timers[rep] = Gray.gray_PS_FJ(source, newImage);
+			stats.add(timers[rep]);
+		}
+		System.out.println("printing stats for gray_PS_FJ");
+		System.out.println(stats.toString(meanSerialDuration));
+		int numValues = Gray.labels.length + 1;
+		double[] means = new double[numValues];
+		double[] percents = new double[numValues];
+		double[] stdDevs = new double[numValues];
+		Arrays.fill(stdDevs, -1);
+		Timer.computeStats(timers, means, percents, stdDevs);
+		for (int i = 0; i < numValues; i++) {
+			assertTrue(Math.abs(means[i] - stats.getMeanNanos(i)) <= 1e-6 * means[i]);
+			assertTrue(stdDevs[i] >= 0 && Math.abs(stdDevs[i] - stats.getStdDevNanos(i)) <= 1e-6 * means[i]);
+			assertTrue(stats.getPercentileNanos(i, 50) <= stats.getPercentileNanos(i, 99));
+		}
+		assertTrue(stats.getCount() == REPS);
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.ForkJoinProfiler}
+	 * .
+	 * Profiles gray_PS_FJ and checks that the leaves of its getRGB and setRGB calls cover the image exactly once.
+	 * @throws IOException
+	 */
+	@Test
+	public void testForkJoinProfiler() throws IOException {
+		System.out.println("****Running test case ForkJoinProfiler with gray_PS_FJ****");
+		FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage);
+		FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+		ForkJoinProfiler profiler = new ForkJoinProfiler();
+		source.setProfiler(profiler);
+		newImage.setProfiler(profiler);
+		Gray.gray_PS_FJ(source, newImage);
+		System.out.println(profiler.report());
+		assertTrue(profiler.getInvocations().size() == 2);
+		for (ForkJoinProfiler.Invocation invocation : profiler.getInvocations()) {
+			long pixels = 0;
+			for (ForkJoinProfiler.Leaf leaf : invocation.getLeaves()) {
+				pixels += (long) leaf.width * leaf.rows;
+			}
+			assertTrue(pixels == (long) source.getWidth() * source.getHeight());
+			assertTrue(invocation.getLeafCount() <= invocation.tasks);
+			assertTrue(invocation.getCriticalPathNanos() <= invocation.getWallNanos());
+		}
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.AdaptiveDispatcher}
+	 * .
+	 * Runs a dispatcher over the fused gray versions, planned for 4 processors so that it has a choice to learn on any
+	 * machine, on a thumbnail and on the source image, and checks that every mode was measured on the thumbnail, that
+	 * every result matches gray_SS and that the timers of all modes add up in Timer.statsToString.
+	 * @throws IOException
+	 */
+	@Test
+	public void testGray_adaptive() throws IOException {
+		System.out.println("****Running test case gray_adaptive****");
+		AdaptiveDispatcher dispatcher = new AdaptiveDispatcher("gray",
+				(image, newImage) -> Gray.gray_fused_SS(image, newImage, true),
+				(image, newImage) -> Gray.gray_fused_PS(image, newImage, true),
+				AdaptiveDispatcher.forkJoin((image, newImage) -> Gray.gray_fused_FJ(image, newImage, true)), 4, 2, 8);
+		int tw = 200;
+		int th = 150;
+		BufferedImage thumbnail = new BufferedImage(tw, th, sourceImage.getType());
+		thumbnail.setRGB(0, 0, tw, th, sourceImage.getRGB(0, 0, tw, th, null, 0, tw), 0, tw);
+		BufferedImage serialThumbnail = new BufferedImage(tw, th, sourceImage.getType());
+		Gray.gray_SS(thumbnail, serialThumbnail);
+		BufferedImage newThumbnail = new BufferedImage(tw, th, sourceImage.getType());
+		BufferedImage newImage = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), sourceImage.getType());
+		Timer[] timers = new Timer[REPS + 6];
+		for (int rep = 0; rep < REPS + 6; rep++) {
+			timers[rep] = dispatcher.apply(thumbnail, newThumbnail);
+			assertTrue(HW3Utils.equals(serialThumbnail, newThumbnail));
+		}
+		System.out.println(Timer.statsToString(timers, new double[1]));
+		for (int rep = 0; rep < 6; rep++) {
+			dispatcher.apply(sourceImage, newImage);
+		}
+		System.out.println(dispatcher.report());
+		for (AdaptiveDispatcher.Mode mode : AdaptiveDispatcher.Mode.values()) {
+			assertTrue(!Double.isNaN(dispatcher.getNanosPerPixel(mode, tw * th)));
+		}
+		assertTrue(HW3Utils.equals(serialGray, newImage));
+		BufferedImage entryPoint = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), sourceImage.getType());
+		Gray.gray_adaptive(sourceImage, entryPoint);
+		assertTrue(HW3Utils.equals(serialGray, entryPoint));
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.FJBufferedImage#getRGB(int, int, int, int, int[], int, int)} and
+	 * {@link cop5618.FJBufferedImage#setRGB(int, int, int, int, int[], int, int)}
+	 * .
+	 * Writes the same random pixels into an FJBufferedImage and a BufferedImage of every raster layout FJBufferedImage
+	 * copies directly (INT_RGB, INT_ARGB and 3BYTE_BGR) and of BYTE_GRAY and a TYPE_CUSTOM byte layout, which take the
+	 * BufferedImage path. Both must store and return the same pixels, for the whole image, for a rectangle given with
+	 * an offset and a scansize larger than its width, and through a subimage, whose raster doesn't start at (0,0).
+	 */
+	@Test
+	public void testFJBufferedImage_directAccess() {
+		System.out.println("****Running test case FJBufferedImage direct raster access****");
+		int w = 301;
+		int h = 203;
+		Random random = new Random(5618);
+		int[] pixels = new int[w * h];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextInt();
+		}
+		// a rectangle inside the image, stored in the middle of a larger array
+		int x = 17;
+		int y = 11;
+		int rw = 200;
+		int rh = 150;
+		int offset = 7;
+		int scansize = rw + 13;
+		int[] region = new int[offset + rh * scansize];
+		for (int i = 0; i < region.length; i++) {
+			region[i] = random.nextInt();
+		}
+		int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+				BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_CUSTOM };
+		for (int type : types) {
+			BufferedImage expected = createImage(type, w, h);
+			FJBufferedImage image = FJBufferedImage.BufferedImageToFJBufferedImage(createImage(type, w, h));
+			assertTrue(image.getType() == type);
+			expected.setRGB(0, 0, w, h, pixels, 0, w);
+			image.setRGB(0, 0, w, h, pixels, 0, w);
+			assertTrue(Arrays.equals(expected.getRGB(0, 0, w, h, null, 0, w), image.getRGB(0, 0, w, h, null, 0, w)));
+			expected.setRGB(x, y, rw, rh, region, offset, scansize);
+			image.setRGB(x, y, rw, rh, region, offset, scansize);
+			assertTrue(Arrays.equals(expected.getRGB(0, 0, w, h, null, 0, w), image.getRGB(0, 0, w, h, null, 0, w)));
+			int[] expectedRegion = new int[region.length];
+			int[] actualRegion = new int[region.length];
+			expected.getRGB(x, y, rw, rh, expectedRegion, offset, scansize);
+			image.getRGB(x, y, rw, rh, actualRegion, offset, scansize);
+			assertTrue(Arrays.equals(expectedRegion, actualRegion));
+			BufferedImage expectedSub = expected.getSubimage(x, y, rw, rh);
+			FJBufferedImage sub = FJBufferedImage.BufferedImageToFJBufferedImage(image.getSubimage(x, y, rw, rh));
+			expectedSub.setRGB(3, 5, rw / 2, rh / 2, pixels, offset, scansize);
+			sub.setRGB(3, 5, rw / 2, rh / 2, pixels, offset, scansize);
+			assertTrue(Arrays.equals(expectedSub.getRGB(0, 0, rw, rh, null, 0, rw), sub.getRGB(0, 0, rw, rh, null, 0, rw)));
+			assertTrue(HW3Utils.equals(expected, image));
+		}
+	}
+
+	/**
+	 * Creates an image of the given type, or for TYPE_CUSTOM an opaque sRGB image with the bytes of a pixel in red,
+	 * green, blue order, which BufferedImage has no type for.
+	 */
+	private static BufferedImage createImage(int type, int w, int h) {
+		if (type != BufferedImage.TYPE_CUSTOM) {
+			return new BufferedImage(w, h, type);
+		}
+		ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false,
+				Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, w, h, w * 3, 3,
+				new int[] { 0, 1, 2 }, null);
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.RowKernels}
+	 * .
+	 * Runs the gray and largest channel row kernels on random pixels, for row lengths that leave every possible partial
+	 * vector at the end and in place as well as into another array. The row kernels must give the per pixel results,
+	 * the exact gray kernel must give the gray value of gray_SS, and the fixed point one must be at most 1 away. The
+	 * kernels of RowKernels must give the same pixels as the scalar ones, whichever backend is in use.
+	 */
+	@Test
+	public void testRowKernels() {
+		System.out.println("****Running test case RowKernels with backend " + RowKernels.backendName() + "****");
+		Random random = new Random(5618);
+		for (int length = 0; length < 4100; length += length < 70 ? 1 : 1011) {
+			int[] src = new int[length];
+			for (int i = 0; i < length; i++) {
+				src[i] = random.nextInt();
+			}
+			int[] fixed = new int[length];
+			int[] exact = new int[length];
+			int[] fixedKernel = new int[length];
+			int[] maxChannel = new int[length];
+			Gray.grayRowFixed(src, fixed, length);
+			Gray.grayRowExact(src, exact, length);
+			RowKernels.grayRowFixed.apply(src, fixedKernel, length);
+			RowKernels.maxChannelRow.apply(src, maxChannel, length);
+			for (int i = 0; i < length; i++) {
+				int pixel = src[i];
+				int red = (pixel >> 16) & 0xFF;
+				int green = (pixel >> 8) & 0xFF;
+				int blue = pixel & 0xFF;
+				int grayVal = (int) ((red * .299) + (green * .587) + (blue * .114));
+				assertTrue(exact[i] == HW3Utils.makeRGBPixel(grayVal, grayVal, grayVal));
+				assertTrue(exact[i] == Gray.grayPixelExact(pixel));
+				assertTrue(fixed[i] == Gray.grayPixelFixed(pixel));
+				assertTrue(Math.abs((fixed[i] & 0xFF) - grayVal) <= 1);
+				assertTrue(maxChannel[i] == Math.max(Math.max(red, green), blue));
+			}
+			assertTrue(Arrays.equals(fixed, fixedKernel));
+			int[] inPlace = src.clone();
+			RowKernels.grayRowFixed.apply(inPlace, inPlace, length);
+			assertTrue(Arrays.equals(fixed, inPlace));
+			inPlace = src.clone();
+			RowKernels.maxChannelRow.apply(inPlace, inPlace, length);
+			assertTrue(Arrays.equals(maxChannel, inPlace));
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.FJBufferedImage#getRGB(int, int, int, int, int[], int, int)} and
+	 * {@link cop5618.FJBufferedImage#setRGB(int, int, int, int, int[], int, int)}
+	 * .
+	 * Copies pixels in and out of a wide and short image whose width is not a power of two, split into 64 tasks, so
+	 * that the rectangles are split by columns into leaves of odd widths. The arrays have an offset and a scansize
+	 * larger than the rectangle, which the column splits have to carry over correctly. The results must be those of
+	 * BufferedImage, and the profiler must show that the leaves were narrower than the rectangle.
+	 */
+	@Test
+	public void testFJBufferedImage_columnSplits() {
+		System.out.println("****Running test case FJBufferedImage column splits****");
+		int w = 5003;
+		int h = 5;
+		Random random = new Random(5618);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		ForkJoinProfiler profiler = new ForkJoinProfiler();
+		int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+				BufferedImage.TYPE_BYTE_GRAY };
+		for (int type : types) {
+			BufferedImage expected = new BufferedImage(w, h, type);
+			FJBufferedImage image = new FJBufferedImage(w, h, type);
+			image.setPool(pool);
+			image.setGranularity(Granularity.fixedTasks(64));
+			image.setProfiler(profiler);
+			// a rectangle that leaves a border on every side, in the middle of an array with rows 101 ints apart
+			int x = 3;
+			int y = 1;
+			int rw = w - 10;
+			int rh = h - 2;
+			int offset = 37;
+			int scansize = rw + 101;
+			int[] pixels = new int[offset + rh * scansize];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = random.nextInt();
+			}
+			expected.setRGB(x, y, rw, rh, pixels, offset, scansize);
+			image.setRGB(x, y, rw, rh, pixels, offset, scansize);
+			int[] expectedPixels = new int[pixels.length];
+			int[] actualPixels = new int[pixels.length];
+			expected.getRGB(x, y, rw, rh, expectedPixels, offset, scansize);
+			image.getRGB(x, y, rw, rh, actualPixels, offset, scansize);
+			assertTrue(Arrays.equals(expectedPixels, actualPixels));
+			assertTrue(HW3Utils.equals(expected, image));
+		}
+		assertTrue(profiler.getInvocations().size() >= 2 * types.length);
+		for (ForkJoinProfiler.Invocation invocation : profiler.getInvocations()) {
+			for (ForkJoinProfiler.Leaf leaf : invocation.getLeaves()) {
+				assertTrue(leaf.width < invocation.width);
+			}
+		}
+		pool.shutdown();
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.BatchProcessor#run(java.io.File)}
+	 * .
+	 * Runs a directory of three small images and a file that is not an image through the pipeline, with an operation
+	 * that throws an Error on one of the images, and checks that both are reported as failures and that the other two
+	 * are written with the serial solution's pixels.
+	 * @throws Exception
+	 */
+	@Test
+	public void testBatchProcessor() throws Exception {
+		System.out.println("****Running test case BatchProcessor****");
+		File inputDirectory = Files.createTempDirectory("batch_in_").toFile();
+		File outputDirectory = Files.createTempDirectory("batch_out_").toFile();
+		int[][] sizes = { { 400, 300 }, { 300, 200 }, { 200, 100 } };
+		for (int[] size : sizes) {
+			BufferedImage image = sourceImage.getSubimage(0, 0, size[0], size[1]);
+			assertTrue(ImageIO.write(image, "jpg", new File(inputDirectory, "image" + size[0] + ".jpg")));
+		}
+		Files.write(new File(inputDirectory, "bad.jpg").toPath(), "not an image".getBytes());
+		BatchProcessor.Operation operation = (image, newImage) -> {
+			if (image.getWidth() == 300) {
+				throw new OutOfMemoryError("thrown by the test");
+			}
+			return Gray.gray_PS_FJ(image, newImage);
+		};
+		// one thread per stage and queues of one image, so that a dead thread would block the stage before it
+		BatchProcessor.Result result = new BatchProcessor(operation, outputDirectory, "gray_", "png", 1, 1, 1, 1)
+				.run(inputDirectory);
+		System.out.print(result);
+		assertEquals(2, result.images);
+		assertEquals(2, result.failures.size());
+		String failures = result.failures.toString();
+		assertTrue(failures.contains("bad.jpg"));
+		assertTrue(failures.contains("image300.jpg"));
+		for (int width : new int[] { 400, 200 }) {
+			BufferedImage input = ImageIO.read(new File(inputDirectory, "image" + width + ".jpg"));
+			BufferedImage expected = new BufferedImage(input.getWidth(), input.getHeight(), input.getType());
+			Gray.gray_SS(input, expected);
+			assertTrue(HW3Utils.equals(expected, ImageIO.read(new File(outputDirectory, "gray_image" + width + ".png"))));
+		}
+		assertFalse(new File(outputDirectory, "gray_image300.png").exists());
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.ImageJobRunner#submit(java.io.File, java.io.File, java.lang.String, cop5618.BatchProcessor.Operation)}
+	 * .
+	 * Submits three small images at once, in a compute pool of two workers that splits the largest one, and checks
+	 * their outputs against the serial solution. Then checks that a request for a file that is not an image fails
+	 * with an UncheckedIOException, and that close leaves a pool it was given running.
+	 * @throws Exception
+	 */
+	@Test
+	public void testImageJobRunner() throws Exception {
+		System.out.println("****Running test case ImageJobRunner****");
+		File directory = Files.createTempDirectory("jobs_").toFile();
+		int[] widths = { 400, 300, 200 };
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try (ImageJobRunner runner = new ImageJobRunner(pool, 300 * 200)) {
+			System.out.println("virtual threads: " + runner.usesVirtualThreads());
+			List<CompletableFuture<Timer>> futures = new ArrayList<CompletableFuture<Timer>>();
+			for (int width : widths) {
+				File input = new File(directory, "image" + width + ".png");
+				assertTrue(ImageIO.write(sourceImage.getSubimage(0, 0, width, width / 2), "png", input));
+				futures.add(runner.submit(input, new File(directory, "gray_image" + width + ".png"), "png",
+						Gray::gray_PS_FJ));
+			}
+			for (int i = 0; i < widths.length; i++) {
+				assertNotNull(futures.get(i).get());
+				BufferedImage input = ImageIO.read(new File(directory, "image" + widths[i] + ".png"));
+				BufferedImage expected = new BufferedImage(input.getWidth(), input.getHeight(), input.getType());
+				Gray.gray_SS(input, expected);
+				assertTrue(HW3Utils.equals(expected, ImageIO.read(new File(directory, "gray_image" + widths[i] + ".png"))));
+			}
+		}
+		assertFalse(pool.isShutdown());
+		pool.shutdown();
+		File bad = new File(directory, "bad.png");
+		Files.write(bad.toPath(), "not an image".getBytes());
+		try (ImageJobRunner runner = new ImageJobRunner()) {
+			CompletableFuture<Timer> future = runner.submit(bad, new File(directory, "gray_bad.png"), "png",
+					Gray::gray_PS_FJ);
+			try {
+				future.get();
+				fail("expected the request for " + bad + " to fail");
+			}
+			catch (ExecutionException e) {
+				System.out.println("failed as expected: " + e.getCause());
+				assertTrue(e.getCause() instanceof UncheckedIOException);
+			}
+			assertTrue(future.isCompletedExceptionally());
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link cop5618.ForkJoinProfiler}
+	 * .
+	 * Starts a profiled histogram of a small image from inside every row of a profiled filter, in a pool with a single
+	 * worker, and checks that neither blocks and that every call's leaves cover its own image exactly once.
+	 * @throws IOException
+	 */
+	@Test
+	public void testForkJoinProfiler_nested() throws IOException {
+		System.out.println("****Running test case ForkJoinProfiler with nested calls****");
+		ForkJoinPool pool = new ForkJoinPool(1);
+		try {
+			ForkJoinProfiler profiler = new ForkJoinProfiler();
+			FJBufferedImage source = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage.getSubimage(0, 0, 400, 300));
+			FJBufferedImage newImage = new FJBufferedImage(source.getWidth(), source.getHeight(), source.getType());
+			FJBufferedImage inner = FJBufferedImage.BufferedImageToFJBufferedImage(sourceImage.getSubimage(0, 0, 64, 48));
+			for (FJBufferedImage image : new FJBufferedImage[] { source, newImage, inner }) {
+				image.setPool(pool);
+				image.setGranularity(Granularity.fixedTasks(8));
+				image.setProfiler(profiler);
+			}
+			AtomicInteger innerCalls = new AtomicInteger();
+			source.filterRows((src, dst, length) -> {
+				inner.histogramRows(RowKernels.maxChannelRow, 256);
+				innerCalls.incrementAndGet();
+				RowKernels.grayRowFixed.apply(src, dst, length);
+			}, newImage);
+			System.out.print(profiler.report());
+			int filters = 0;
+			for (ForkJoinProfiler.Invocation invocation : profiler.getInvocations()) {
+				long pixels = 0;
+				for (ForkJoinProfiler.Leaf leaf : invocation.getLeaves()) {
+					pixels += (long) leaf.width * leaf.rows;
+				}
+				assertEquals((long) invocation.width * invocation.height, pixels);
+				if (invocation.operation.equals("filter")) {
+					filters++;
+				}
+			}
+			assertEquals(1, filters);
+			assertEquals(1 + innerCalls.get(), profiler.getInvocations().size());
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
 	
 	/**
 	 * Allows the test cases to be invoked as an application without the JUnit test framework in a controlled order.
@@ -257,6 +1041,26 @@ public class HW3TestGray {
 		test.testGray_PS();
 		test.testGray_SS_FJ();
 		test.testGray_PS_FJ();
+		test.testGray_kernel_FJ();
+		test.testGray_fused_SS();
+		test.testGray_fused_PS();
+		test.testGray_fused_FJ();
+		test.testGray_PS_FJ_commonPool();
+		test.testStripPipeline_gray();
+		test.testGray_PS_FJ_offHeap();
+		test.testRawImageIO();
+		test.testParallelImageIO();
+		test.testPixelBufferPool_reuse();
+		test.testMetrics_gray();
+		test.testTimerStats();
+		test.testForkJoinProfiler();
+		test.testGray_adaptive();
+		test.testFJBufferedImage_directAccess();
+		test.testRowKernels();
+		test.testFJBufferedImage_columnSplits();
+		test.testBatchProcessor();
+		test.testImageJobRunner();
+		test.testForkJoinProfiler_nested();
 	}
 
 }
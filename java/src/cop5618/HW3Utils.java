@@ -65,4 +65,33 @@ public class HW3Utils {
 		}
 		return true;
 	}
+
+	/**
+	 * Compare two images, allowing each color component of corresponding pixels to differ by up to tolerance.
+	 * @param image0
+	 * @param image1
+	 * @param tolerance
+	 * @return
+	 */
+	static boolean equals(BufferedImage image0, BufferedImage image1, int tolerance){
+		int w0 = image0.getWidth();
+		int w1 = image1.getWidth();
+		if (w0 != w1) return false;
+		int h0 = image0.getHeight();
+		int h1 = image1.getHeight();
+		if (h0 != h1) return false;
+		int nPixels = w0*h0;
+		int[] pixels0 = new int[nPixels];
+		image0.getRGB(0, 0, w0, h0, pixels0, 0, w0);
+		int[] pixels1 = new int[nPixels];
+		image1.getRGB(0, 0, w1, h1, pixels1, 0, w1);
+		for(int i=0; i<nPixels; i++){
+			for (int shift = 0; shift < 32; shift += 8) {
+				int c0 = (pixels0[i] >> shift) & 0xFF;
+				int c1 = (pixels1[i] >> shift) & 0xFF;
+				if (Math.abs(c0 - c1) > tolerance) return false;
+			}
+		}
+		return true;
+	}
 }
@@ -0,0 +1,166 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Runs many independent image conversion requests at once.
+ *
+ * Every request gets its own thread, which does the blocking file read and write, while the pixel work of all
+ * requests goes through one bounded compute pool, so there are never more threads computing than the pool has
+ * workers however many requests are waiting on disk. On JVMs that have virtual threads (Java 21 and later) the
+ * request threads are virtual, so thousands of requests cost little more than their images. On older JVMs they are
+ * ordinary threads from a cached pool.
+ *
+ * Images smaller than parallelPixels pixels are processed as a single task in the compute pool, since splitting a
+ * small image costs more than it saves when other requests are keeping the workers busy anyway. Larger images are
+ * split as usual, also in the compute pool.
+ */
+public class ImageJobRunner implements AutoCloseable {
+
+	static int defaultParallelPixels = 1 << 20;
+
+	private final ExecutorService requestExecutor;
+	private final boolean virtualThreads;
+	private final ForkJoinPool computePool;
+	// true if the runner created computePool, and so shuts it down in close
+	private final boolean ownsComputePool;
+	private final int parallelPixels;
+
+	/**
+	 * Creates a runner with a compute pool with a worker per processor, splitting images of a megapixel or more. The
+	 * compute pool is shut down by close.
+	 */
+	public ImageJobRunner() {
+		this(new ForkJoinPool(), defaultParallelPixels, true);
+	}
+
+	/**
+	 * @param computePool pool all pixel work runs in. It is not shut down by close.
+	 * @param parallelPixels images with at least this many pixels are split into parallel tasks
+	 */
+	public ImageJobRunner(ForkJoinPool computePool, int parallelPixels) {
+		this(computePool, parallelPixels, false);
+	}
+
+	private ImageJobRunner(ForkJoinPool computePool, int parallelPixels, boolean ownsComputePool) {
+		this.computePool = computePool;
+		this.ownsComputePool = ownsComputePool;
+		this.parallelPixels = parallelPixels;
+		ExecutorService executor = newVirtualThreadPerTaskExecutor();
+		virtualThreads = executor != null;
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "image-job");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		requestExecutor = executor;
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor() if this JVM has it, otherwise null. It is looked up reflectively so
+	 * that the class still compiles and runs on Java 17.
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * True if requests run on virtual threads.
+	 */
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Reads input, applies operation and writes the result to output in the given ImageIO format, on a request thread
+	 * of its own. The returned future completes with the operation's timer, or exceptionally with an
+	 * UncheckedIOException if the input can't be read or the output can't be written.
+	 *
+	 * @param input
+	 * @param output
+	 * @param format ImageIO format name, such as "jpg"
+	 * @param operation for example Gray::gray_kernel_FJ or ColorHistEq::colorHistEq_lut. Operations that use parallel
+	 *                  streams still run those in the common pool; the FJBufferedImage operations run in the compute
+	 *                  pool.
+	 */
+	public CompletableFuture<Timer> submit(File input, File output, String format, BatchProcessor.Operation operation) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				BufferedImage read = ImageIO.read(input);
+				if (read == null) {
+					throw new IOException("no ImageIO reader for " + input);
+				}
+				FJBufferedImage image = FJBufferedImage.BufferedImageToFJBufferedImage(read);
+				FJBufferedImage newImage = new FJBufferedImage(image.getWidth(), image.getHeight(),
+						BatchProcessor.outputType(image, format));
+				Granularity granularity = (long) image.getWidth() * image.getHeight() < parallelPixels
+						? Granularity.fixedTasks(1) : Granularity.DEFAULT;
+				for (FJBufferedImage fjImage : new FJBufferedImage[] { image, newImage }) {
+					fjImage.setPool(computePool);
+					fjImage.setGranularity(granularity);
+				}
+				// The request thread blocks in the compute pool's invoke while the pixel work runs there
+				Timer timer = operation.apply(image, newImage);
+				if (!ImageIO.write(newImage, format, output)) {
+					throw new IOException("no " + format + " writer for " + output);
+				}
+				return timer;
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, requestExecutor);
+	}
+
+	/**
+	 * Stops accepting requests, waits for the submitted ones to finish and shuts down the compute pool if the runner
+	 * created it.
+	 *
+	 * If the calling thread is interrupted while waiting, the request threads are interrupted too (like
+	 * ExecutorService.close in Java 19 and later), close still waits for them, and the calling thread's interrupt
+	 * status is set again before it returns.
+	 */
+	@Override
+	public void close() {
+		boolean interrupted = false;
+		requestExecutor.shutdown();
+		boolean terminated = false;
+		while (!terminated) {
+			try {
+				// requests are bounded by their image size
+				terminated = requestExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				if (!interrupted) {
+					requestExecutor.shutdownNow();
+					interrupted = true;
+				}
+			}
+		}
+		if (ownsComputePool) {
+			computePool.shutdown();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package cop5618;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds with log-linear buckets, in the style of HdrHistogram, for reporting
+ * percentiles of latencies that range from microseconds to minutes.
+ *
+ * Values below 64 get a bucket each. Above that, every power of two range [2^k, 2^(k+1)) is divided into 32 buckets
+ * of equal width, so a value is known to within 1/32 (about 3%) of itself however large it is. That takes 1888
+ * buckets for the whole range of a long, about 15 KB, and recording a value is a few shifts and one atomic increment.
+ *
+ * Any number of threads can record at once. A percentile read while values are being recorded may miss the values
+ * recorded during the read.
+ */
+public class LatencyHistogram {
+
+	// 2^SUB_BITS buckets for each power of two below 64, half as many for each one above
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+	private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * Index of the bucket that holds value, which must not be negative.
+	 */
+	static int bucket(long value) {
+		// shift is the number of low bits dropped so that what is left is below SUB_COUNT
+		int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return shift * HALF_COUNT + (int) (value >>> shift);
+	}
+
+	/**
+	 * Largest value that falls in bucket index.
+	 */
+	static long highestValue(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = index / HALF_COUNT - 1;
+		long lowest = (long) (index - shift * HALF_COUNT) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Records a duration. Negative durations, which only come from a timer used wrongly, are recorded as 0.
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		min.accumulateAndGet(value, Math::min);
+		max.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * Adds all values recorded in other to this histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if (c != 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		count.addAndGet(other.getCount());
+		sum.addAndGet(other.sum.get());
+		min.accumulateAndGet(other.min.get(), Math::min);
+		max.accumulateAndGet(other.max.get(), Math::max);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/** smallest value recorded, or 0 if there are none */
+	public long getMin() {
+		return getCount() == 0 ? 0 : min.get();
+	}
+
+	/** largest value recorded, or 0 if there are none */
+	public long getMax() {
+		return getCount() == 0 ? 0 : max.get();
+	}
+
+	/** exact mean of the values recorded, or 0 if there are none */
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns the value that percentile percent of the recorded values are at or below, for percent from 0 to 100,
+	 * to within the bucket width. The result is never above the largest value recorded, so getValueAtPercentile(100)
+	 * is exactly getMax(). Returns 0 if nothing has been recorded.
+	 */
+	public long getValueAtPercentile(double percent) {
+		long n = getCount();
+		if (n == 0) {
+			return 0;
+		}
+		// the rank of the value asked for, counting from 1
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percent)) / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Forgets all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(Long.MIN_VALUE);
+	}
+
+	/**
+	 * Count, mean, p50, p90, p99 and max in milliseconds.
+	 */
+	@Override
+	public String toString() {
+		return String.format("count=%d, mean=%.2f, p50=%.2f, p90=%.2f, p99=%.2f, max=%.2f msecs", getCount(),
+				getMean() / 1e6, getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6,
+				getValueAtPercentile(99) / 1e6, getMax() / 1e6);
+	}
+}
@@ -0,0 +1,449 @@
+package cop5618;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects the timers of operations that are run over and over, such as the conversions of a batch or of a server, as
+ * latency histograms, so that percentiles can be reported and not only the mean.
+ *
+ * Each operation is recorded under a name of the caller's choosing, such as "gray_fused_FJ", with the labels of its
+ * timer, which are the stage names in Gray.labels and ColorHistEq.labels. An operation gets a LatencyHistogram for
+ * every stage and one for the total, and counters of runs, pixels processed and bytes allocated. Recording a timer
+ * costs a few atomic increments per stage, so it can stay on in production.
+ *
+ * Nothing is recorded automatically: the operations in Gray and ColorHistEq only return their timers, and the caller
+ * that runs them repeatedly creates a Metrics and records to it, so each batch or server keeps its own numbers.
+ *
+ * The numbers can be read as an immutable snapshot, or over JMX once registerMBeans has been called: every operation
+ * is an MXBean named cop5618:type=Metrics,operation=NAME, which jconsole and other JMX clients show with its stages.
+ */
+public class Metrics {
+
+	/** label of the histogram of the whole operation, from the first call of Timer.now to the last */
+	public static final String TOTAL = "total";
+
+	private final ConcurrentHashMap<String, OperationMetrics> operations = new ConcurrentHashMap<String, OperationMetrics>();
+	private volatile MBeanServer server;
+
+	/**
+	 * Records a finished timer of operation. All timers of an operation must have the same labels.
+	 *
+	 * @param operation name to report the timer under
+	 * @param timer a timer on which now() was called once more than it has labels
+	 * @param pixels pixels processed, usually the image's width times height
+	 * @param allocatedBytes bytes allocated by the operation, or 0 if not known
+	 * @throws IllegalArgumentException if operation was recorded before with other labels
+	 */
+	public void record(String operation, Timer timer, long pixels, long allocatedBytes) {
+		operation(operation, timer.labels).record(timer, pixels, allocatedBytes);
+	}
+
+	/**
+	 * Runs an operation, measures what it allocates and records its timer. For example
+	 *
+	 * metrics.measure("gray_kernel_FJ", w * h, () -> Gray.gray_kernel_FJ(image, newImage));
+	 *
+	 * The allocation is the increase in bytes allocated by all threads of the JVM while the operation runs, so that
+	 * the fork/join workers are included; when several operations run at once, each is charged with the others'
+	 * allocations as well. It is 0 on JVMs that do not count allocations per thread.
+	 *
+	 * @return the operation's timer
+	 */
+	public Timer measure(String operation, long pixels, Supplier<Timer> run) {
+		long allocatedBefore = allocatedBytes();
+		Timer timer = run.get();
+		long allocated = allocatedBytes() - allocatedBefore;
+		// threads that ended during the run take their counts with them
+		record(operation, timer, pixels, Math.max(0, allocated));
+		return timer;
+	}
+
+	private static final com.sun.management.ThreadMXBean threadBean = threadBean();
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Bytes allocated so far by the threads that are alive, or 0 if the JVM doesn't count them.
+	 */
+	static long allocatedBytes() {
+		if (threadBean == null) {
+			return 0;
+		}
+		long total = 0;
+		for (long bytes : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+			// -1 for threads that ended after getAllThreadIds
+			total += Math.max(0, bytes);
+		}
+		return total;
+	}
+
+	private OperationMetrics operation(String name, String[] labels) {
+		OperationMetrics metrics = operations.get(name);
+		if (metrics == null) {
+			metrics = operations.computeIfAbsent(name, n -> new OperationMetrics(n, labels));
+			MBeanServer mbeanServer = server;
+			if (mbeanServer != null) {
+				register(mbeanServer, metrics);
+			}
+		}
+		if (!Arrays.equals(metrics.labels, labels)) {
+			throw new IllegalArgumentException(name + " was recorded with labels " + Arrays.toString(metrics.labels)
+					+ ", not " + Arrays.toString(labels));
+		}
+		return metrics;
+	}
+
+	/**
+	 * The histogram of one stage of operation, or of the whole operation if label is TOTAL. Returns null if the
+	 * operation has not been recorded or has no such stage.
+	 */
+	public LatencyHistogram getHistogram(String operation, String label) {
+		OperationMetrics metrics = operations.get(operation);
+		if (metrics == null) {
+			return null;
+		}
+		if (TOTAL.equals(label)) {
+			return metrics.stages[metrics.labels.length];
+		}
+		int index = Arrays.asList(metrics.labels).indexOf(label);
+		return index < 0 ? null : metrics.stages[index];
+	}
+
+	/**
+	 * The numbers of all operations recorded so far, sorted by name.
+	 */
+	public Snapshot snapshot() {
+		Map<String, OperationSnapshot> snapshots = new TreeMap<String, OperationSnapshot>();
+		for (OperationMetrics metrics : operations.values()) {
+			snapshots.put(metrics.name, metrics.snapshot());
+		}
+		return new Snapshot(snapshots);
+	}
+
+	/**
+	 * Forgets everything recorded. Operations stay registered with JMX, with their counts at 0.
+	 */
+	public void reset() {
+		for (OperationMetrics metrics : operations.values()) {
+			metrics.reset();
+		}
+	}
+
+	/**
+	 * Registers every operation, including those recorded from now on, with the platform MBean server. JMX names are
+	 * per JVM, so an operation name another Metrics has already registered is not registered again.
+	 */
+	public synchronized void registerMBeans() {
+		if (server != null) {
+			return;
+		}
+		server = ManagementFactory.getPlatformMBeanServer();
+		for (OperationMetrics metrics : operations.values()) {
+			register(server, metrics);
+		}
+	}
+
+	private static void register(MBeanServer server, OperationMetrics metrics) {
+		try {
+			ObjectName name = objectName(metrics.name);
+			// a race with registerMBeans can try to register an operation twice
+			if (!server.isRegistered(name)) {
+				server.registerMBean(metrics, name);
+			}
+		}
+		catch (JMException e) {
+			// metrics are not worth failing an operation for
+			System.err.println("could not register metrics for " + metrics.name + ": " + e);
+		}
+	}
+
+	/**
+	 * The JMX name operation is registered under.
+	 */
+	public static ObjectName objectName(String operation) throws JMException {
+		return new ObjectName("cop5618:type=Metrics,operation=" + ObjectName.quote(operation));
+	}
+
+	/**
+	 * What JMX shows for an operation.
+	 */
+	public interface OperationMXBean {
+		long getRuns();
+
+		long getPixels();
+
+		long getAllocatedBytes();
+
+		/** pixels per second of total time */
+		double getPixelsPerSecond();
+
+		/** the stages in order, followed by the total */
+		List<StageSnapshot> getStages();
+
+		void reset();
+	}
+
+	private static class OperationMetrics implements OperationMXBean {
+		final String name;
+		final String[] labels;
+		// one per label, then the total
+		final LatencyHistogram[] stages;
+		final LongAdder runs = new LongAdder();
+		final LongAdder pixels = new LongAdder();
+		final LongAdder allocatedBytes = new LongAdder();
+
+		OperationMetrics(String name, String[] labels) {
+			this.name = name;
+			this.labels = labels.clone();
+			stages = new LatencyHistogram[labels.length + 1];
+			for (int i = 0; i < stages.length; i++) {
+				stages[i] = new LatencyHistogram();
+			}
+		}
+
+		void record(Timer timer, long pixelCount, long allocated) {
+			for (int i = 0; i < labels.length; i++) {
+				stages[i].record(timer.elapsedNanos(i, i + 1));
+			}
+			stages[labels.length].record(timer.elapsedNanos(0, labels.length));
+			runs.increment();
+			pixels.add(pixelCount);
+			allocatedBytes.add(allocated);
+		}
+
+		OperationSnapshot snapshot() {
+			List<StageSnapshot> stageSnapshots = new ArrayList<StageSnapshot>();
+			for (int i = 0; i < stages.length; i++) {
+				stageSnapshots.add(StageSnapshot.of(i < labels.length ? labels[i] : TOTAL, stages[i]));
+			}
+			return new OperationSnapshot(name, runs.sum(), pixels.sum(), allocatedBytes.sum(), stageSnapshots);
+		}
+
+		@Override
+		public long getRuns() {
+			return runs.sum();
+		}
+
+		@Override
+		public long getPixels() {
+			return pixels.sum();
+		}
+
+		@Override
+		public long getAllocatedBytes() {
+			return allocatedBytes.sum();
+		}
+
+		@Override
+		public double getPixelsPerSecond() {
+			return snapshot().getPixelsPerSecond();
+		}
+
+		@Override
+		public List<StageSnapshot> getStages() {
+			return snapshot().getStages();
+		}
+
+		@Override
+		public void reset() {
+			for (LatencyHistogram stage : stages) {
+				stage.reset();
+			}
+			runs.reset();
+			pixels.reset();
+			allocatedBytes.reset();
+		}
+	}
+
+	/**
+	 * Latencies of one stage in nanoseconds.
+	 */
+	public static class StageSnapshot {
+		private final String label;
+		private final long count;
+		private final double mean;
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long p999;
+		private final long max;
+
+		@ConstructorProperties({ "label", "count", "mean", "p50", "p90", "p99", "p999", "max" })
+		public StageSnapshot(String label, long count, double mean, long p50, long p90, long p99, long p999, long max) {
+			this.label = label;
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.p999 = p999;
+			this.max = max;
+		}
+
+		static StageSnapshot of(String label, LatencyHistogram histogram) {
+			return new StageSnapshot(label, histogram.getCount(), histogram.getMean(),
+					histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+					histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMax());
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP90() {
+			return p90;
+		}
+
+		public long getP99() {
+			return p99;
+		}
+
+		public long getP999() {
+			return p999;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: mean=%.2f, p50=%.2f, p90=%.2f, p99=%.2f, p99.9=%.2f, max=%.2f msecs", label,
+					mean / 1e6, p50 / 1e6, p90 / 1e6, p99 / 1e6, p999 / 1e6, max / 1e6);
+		}
+	}
+
+	/**
+	 * The numbers of one operation at the time of the snapshot.
+	 */
+	public static class OperationSnapshot {
+		private final String name;
+		private final long runs;
+		private final long pixels;
+		private final long allocatedBytes;
+		private final List<StageSnapshot> stages;
+
+		OperationSnapshot(String name, long runs, long pixels, long allocatedBytes, List<StageSnapshot> stages) {
+			this.name = name;
+			this.runs = runs;
+			this.pixels = pixels;
+			this.allocatedBytes = allocatedBytes;
+			this.stages = Collections.unmodifiableList(stages);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getRuns() {
+			return runs;
+		}
+
+		public long getPixels() {
+			return pixels;
+		}
+
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		/** the stages in order, followed by the total */
+		public List<StageSnapshot> getStages() {
+			return stages;
+		}
+
+		/** the stage with the given label, or TOTAL, or null if there is none */
+		public StageSnapshot getStage(String label) {
+			for (StageSnapshot stage : stages) {
+				if (stage.getLabel().equals(label)) {
+					return stage;
+				}
+			}
+			return null;
+		}
+
+		/** pixels processed per second of total time, over all runs */
+		public double getPixelsPerSecond() {
+			StageSnapshot total = stages.get(stages.size() - 1);
+			double totalNanos = total.getMean() * total.getCount();
+			return totalNanos == 0 ? 0 : pixels / (totalNanos / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%s: runs=%d, %.1f Mpixels/sec, allocated=%.1f MB/run%n", name, runs,
+					getPixelsPerSecond() / 1e6, runs == 0 ? 0.0 : allocatedBytes / 1e6 / runs));
+			for (StageSnapshot stage : stages) {
+				sb.append("  ").append(stage).append(String.format("%n"));
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The numbers of all operations at one time.
+	 */
+	public static class Snapshot {
+		private final Map<String, OperationSnapshot> operations;
+
+		Snapshot(Map<String, OperationSnapshot> operations) {
+			this.operations = Collections.unmodifiableMap(new LinkedHashMap<String, OperationSnapshot>(operations));
+		}
+
+		/** operations by name, in name order */
+		public Map<String, OperationSnapshot> getOperations() {
+			return operations;
+		}
+
+		/** the named operation, or null if it was not recorded */
+		public OperationSnapshot get(String operation) {
+			return operations.get(operation);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (OperationSnapshot operation : operations.values()) {
+				sb.append(operation);
+			}
+			return sb.toString();
+		}
+	}
+}
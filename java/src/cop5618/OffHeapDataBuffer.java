@@ -0,0 +1,106 @@
+package cop5618;
+
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A DataBuffer of ints that live outside the Java heap, in a direct ByteBuffer or in a memory mapped file.
+ *
+ * Java2D only knows how to address the arrays of its own DataBuffer classes, so an image over this buffer is a
+ * TYPE_CUSTOM image whose pixels BufferedImage reads and writes one element at a time through getElem and setElem.
+ * FJBufferedImage recognizes this buffer and copies whole rows with the bulk IntBuffer methods instead, so the fork/join
+ * tasks run over it about as fast as over an int[].
+ *
+ * A buffer holds at most Integer.MAX_VALUE bytes, since that is all a ByteBuffer or a single mapping can address; that
+ * is an image of up to about 536 million pixels. Mapped buffers use little endian order so that a file written on one
+ * machine reads the same on any other; direct buffers use the native order.
+ */
+public class OffHeapDataBuffer extends DataBuffer {
+
+	private final ByteBuffer bytes;
+	private final IntBuffer ints;
+
+	/**
+	 * Wraps size ints starting at the current position of bytes, in bytes' byte order. This can be any ByteBuffer,
+	 * for instance a MemorySegment viewed with asByteBuffer() on JVMs that have the foreign memory API.
+	 */
+	public OffHeapDataBuffer(ByteBuffer bytes, int size) {
+		super(TYPE_INT, size);
+		if (size < 0 || (long) size * 4 > bytes.remaining()) {
+			throw new IllegalArgumentException(size + " ints do not fit in " + bytes.remaining() + " bytes");
+		}
+		this.bytes = bytes;
+		this.ints = bytes.asIntBuffer();
+	}
+
+	/**
+	 * Allocates a buffer of size ints outside the heap. The ints are 0.
+	 */
+	public static OffHeapDataBuffer allocate(int size) {
+		if (size > Integer.MAX_VALUE / 4) {
+			throw new IllegalArgumentException(size + " ints is more than a direct buffer can hold");
+		}
+		return new OffHeapDataBuffer(ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()), size);
+	}
+
+	/**
+	 * Maps size ints of file starting at byte position. A writable mapping creates the file or makes it longer if
+	 * needed, and writes to the buffer go to the file (see force); a read only mapping has to lie within the file, and
+	 * setElem on it throws ReadOnlyBufferException.
+	 */
+	public static OffHeapDataBuffer map(File file, long position, int size, boolean writable) throws IOException {
+		if (size > Integer.MAX_VALUE / 4) {
+			throw new IllegalArgumentException(size + " ints is more than a single mapping can hold");
+		}
+		try (FileChannel channel = writable
+				? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE)
+				: FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer mapped = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+					position, size * 4L);
+			return new OffHeapDataBuffer(mapped.order(ByteOrder.LITTLE_ENDIAN), size);
+		}
+	}
+
+	/**
+	 * The ints, as a view that shares the buffer's memory. Only the absolute get and put methods should be used on it,
+	 * since it is shared by every thread working on the image.
+	 */
+	public IntBuffer getIntBuffer() {
+		return ints;
+	}
+
+	/**
+	 * True if the ints are in a memory mapped file.
+	 */
+	public boolean isMapped() {
+		return bytes instanceof MappedByteBuffer;
+	}
+
+	/**
+	 * Writes changes to a mapped buffer out to the file. Does nothing for other buffers.
+	 */
+	public void force() {
+		if (bytes instanceof MappedByteBuffer) {
+			((MappedByteBuffer) bytes).force();
+		}
+	}
+
+	@Override
+	public int getElem(int bank, int i) {
+		return ints.get(getOffset() + i);
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val) {
+		ints.put(getOffset() + i, val);
+	}
+}
@@ -0,0 +1,197 @@
+package cop5618;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Counts how many of a range of indices fall in each of a number of bins, in parallel, with primitive counters.
+ *
+ * This replaces Collectors.groupingBy(..., counting()), which boxes every bin, merges one HashMap of Longs per
+ * stream split and then has to be turned back into an array. Here the range is split into fork/join leaves, and every
+ * thread that runs leaves counts into an int[] of its own, which is only added to the others once at the end. The
+ * memory used is bins ints per thread, however many leaves there are.
+ *
+ * With very many bins, an array per thread would take more memory than the counting is worth and spoil the caches,
+ * so once bins * threads ints would be more than perThreadBytes, the threads share a few stripes of atomic
+ * counters instead, like a LongAdder does: each thread increments the stripe it hashes to, and the stripes are added
+ * at the end. With that many bins two threads rarely hit the same counter at the same time.
+ *
+ * The bin functions for brightness, luma and the color channels cover the histograms the operations in this package
+ * use, but any function from index to bin can be counted.
+ */
+public class ParallelHistogram {
+
+	/** most bytes of per thread counters before switching to striped counters */
+	static long perThreadBytes = 8L * 1024 * 1024;
+
+	// smallest number of indices a leaf counts
+	private static final int MIN_LEAF = 4096;
+
+	/**
+	 * Counts the indices in [0, size) by bin in the common pool, where parallel streams run.
+	 *
+	 * @param size number of indices
+	 * @param binOf function from an index to its bin, in [0, bins). It is called from several threads at once.
+	 * @param bins number of bins
+	 * @return array where element i is the number of indices in bin i
+	 */
+	public static int[] count(int size, IntUnaryOperator binOf, int bins) {
+		return count(size, binOf, bins, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Same as count, running in the given pool.
+	 */
+	public static int[] count(int size, IntUnaryOperator binOf, int bins, ForkJoinPool pool) {
+		int threads = pool.getParallelism() + 1; // the caller can run leaves too
+		if ((long) bins * threads * 4 <= perThreadBytes) {
+			return countPerThread(size, binOf, bins, pool);
+		}
+		int stripes = (int) Math.max(1, Math.min(threads, perThreadBytes / 4 / bins));
+		return countStriped(size, binOf, bins, stripes, pool);
+	}
+
+	/**
+	 * Counts into an int[] per thread.
+	 */
+	static int[] countPerThread(int size, IntUnaryOperator binOf, int bins, ForkJoinPool pool) {
+		return countPerThread(size, bins, pool, (from, to, counts) -> {
+			for (int i = from; i < to; i++) {
+				counts[binOf.applyAsInt(i)]++;
+			}
+		});
+	}
+
+	/**
+	 * Counts the indices in [0, size) into an int[] of bins counters per thread, with counter adding the indices of
+	 * each leaf to the counters of the thread that runs it.
+	 */
+	private static int[] countPerThread(int size, int bins, ForkJoinPool pool, RangeHistogram counter) {
+		ConcurrentHashMap<Thread, int[]> counters = new ConcurrentHashMap<Thread, int[]>();
+		pool.invoke(new CountTask(0, size, leafSize(size, pool), (from, to) -> {
+			counter.count(from, to, counters.computeIfAbsent(Thread.currentThread(), t -> new int[bins]));
+		}));
+		int[] histogram = new int[bins];
+		for (int[] counts : counters.values()) {
+			for (int b = 0; b < bins; b++) {
+				histogram[b] += counts[b];
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Counts into stripes shared by the threads.
+	 */
+	static int[] countStriped(int size, IntUnaryOperator binOf, int bins, int stripes, ForkJoinPool pool) {
+		AtomicIntegerArray counters = new AtomicIntegerArray(Math.multiplyExact(stripes, bins));
+		pool.invoke(new CountTask(0, size, leafSize(size, pool), (from, to) -> {
+			int base = stripe(stripes) * bins;
+			for (int i = from; i < to; i++) {
+				counters.getAndIncrement(base + binOf.applyAsInt(i));
+			}
+		}));
+		int[] histogram = new int[bins];
+		for (int s = 0; s < stripes; s++) {
+			for (int b = 0; b < bins; b++) {
+				histogram[b] += counters.get(s * bins + b);
+			}
+		}
+		return histogram;
+	}
+
+	private static int stripe(int stripes) {
+		// spread the thread ids, which are usually consecutive numbers, the way HashMap spreads hash codes
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((hash >>> 16) & 0x7FFFFFFF) % stripes;
+	}
+
+	private static int leafSize(int size, ForkJoinPool pool) {
+		// several leaves per worker, so that work stealing can even out the load
+		return Math.max(MIN_LEAF, size / (pool.getParallelism() * 8));
+	}
+
+	@FunctionalInterface
+	private interface RangeCounter {
+		void count(int from, int to);
+	}
+
+	@FunctionalInterface
+	private interface RangeHistogram {
+		void count(int from, int to, int[] counts);
+	}
+
+	private static class CountTask extends RecursiveAction {
+		final int from;
+		final int to;
+		final int leafSize;
+		final RangeCounter counter;
+
+		CountTask(int from, int to, int leafSize, RangeCounter counter) {
+			this.from = from;
+			this.to = to;
+			this.leafSize = leafSize;
+			this.counter = counter;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= leafSize) {
+				counter.count(from, to);
+			}
+			else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new CountTask(from, middle, leafSize, counter), new CountTask(middle, to, leafSize, counter));
+			}
+		}
+	}
+
+	/**
+	 * Histogram of the HSB brightness of pixels in the default ARGB format, binned as in ColorHistEq.
+	 */
+	public static int[] brightness(int[] pixels, int bins) {
+		return count(pixels.length, i -> ColorHistEq.brightnessBin(pixels[i], bins), bins);
+	}
+
+	/**
+	 * Histogram of the luma of pixels in the default ARGB format, the gray value gray_SS would give them, in bins of
+	 * equal width over [0, 255].
+	 */
+	public static int[] luma(int[] pixels, int bins) {
+		return count(pixels.length, i -> (Gray.grayPixelExact(pixels[i]) & 0xFF) * bins / 256, bins);
+	}
+
+	/**
+	 * Histogram of one channel of pixels in the default ARGB format, in bins of equal width over [0, 255].
+	 *
+	 * @param shift 16 for red, 8 for green, 0 for blue and 24 for alpha
+	 */
+	public static int[] channel(int[] pixels, int shift, int bins) {
+		return count(pixels.length, i -> ((pixels[i] >>> shift) & 0xFF) * bins / 256, bins);
+	}
+
+	/**
+	 * Histograms of the blue, green and red channels of the first count pixels in the default ARGB format, counted
+	 * in pool in one pass, so every pixel is read once for all three. Bins [0, bins) count blue, [bins, 2 * bins)
+	 * green and [2 * bins, 3 * bins) red, each in bins of equal width over [0, 255].
+	 */
+	public static int[] channels(int[] pixels, int count, int bins, ForkJoinPool pool) {
+		return countPerThread(count, 3 * bins, pool, (from, to, counts) -> countChannels(pixels, from, to, bins, counts));
+	}
+
+	/**
+	 * Adds the blue, green and red channels of pixels [from, to) to counts, laid out as in channels.
+	 */
+	static void countChannels(int[] pixels, int from, int to, int bins, int[] counts) {
+		for (int i = from; i < to; i++) {
+			int pixel = pixels[i];
+			counts[(pixel & 0xFF) * bins >> 8]++;
+			counts[bins + (((pixel >> 8) & 0xFF) * bins >> 8)]++;
+			counts[2 * bins + (((pixel >> 16) & 0xFF) * bins >> 8)]++;
+		}
+	}
+}
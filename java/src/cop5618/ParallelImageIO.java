@@ -0,0 +1,569 @@
+package cop5618;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Decodes and encodes images with the work split into horizontal bands that run as fork/join tasks, falling back to
+ * ImageIO.read and ImageIO.write for files that can't be split.
+ *
+ * The entropy coded data of a JPEG can only be decoded from its start, except at restart markers: there the DC
+ * predictions start over and the data is byte aligned. When a baseline JPEG has restart markers at the start of MCU
+ * rows, read cuts it into bands of MCU rows at those markers and wraps each band in the file's own headers, with the
+ * height in the frame header changed and the restart markers renumbered from 0, making a small JPEG of its own that
+ * ImageIO decodes on a worker. The decoder smooths subsampled chroma across rows, so where the chroma is subsampled
+ * vertically each band is decoded with the restart interval of MCU rows above and below it, which is then dropped;
+ * that way the pixels are exactly those ImageIO.read produces. Files without restart markers, progressive files and
+ * files with more than one scan are read with ImageIO.read.
+ *
+ * write does the reverse. Bands whose heights are multiples of 16 rows, a whole number of MCU rows for any of the
+ * JPEG writer's subsamplings, are encoded on workers with the same tables and a restart marker after every MCU row,
+ * and their entropy coded data is joined under the headers of the first band with the markers numbered on. The file
+ * decodes to the same pixels as one written by ImageIO.write, is a few bytes per MCU row larger, and since it can be
+ * cut at any MCU row, read can decode it in parallel with only one MCU row of overlap between bands.
+ *
+ * TIFF files are read in bands too, each with its own reader and a source region, since the TIFF reader only decodes
+ * the strips or tiles a region covers. Other formats, such as PNG whose data is one deflate stream, go through
+ * ImageIO.
+ */
+public class ParallelImageIO {
+
+	// Bands per worker, so that a band that takes longer than the others doesn't leave the rest of the workers idle
+	static int bandsPerWorker = 2;
+	// Smallest band worth a decoder or encoder of its own, in rows
+	static int minBandRows = 64;
+
+	private static final int SOI = 0xD8;
+	private static final int EOI = 0xD9;
+	private static final int SOS = 0xDA;
+	private static final int DRI = 0xDD;
+	private static final int RST0 = 0xD0;
+
+	private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+
+	/**
+	 * Where the parts of a JPEG file are, found by walking its marker segments and scanning its entropy coded data.
+	 */
+	private static class Jpeg {
+
+		final byte[] bytes;
+		int sof;           // offset of the SOF marker
+		int sos;           // offset of the SOS marker, which is where the headers end
+		int scanStart;     // first byte of entropy coded data
+		int scanEnd;       // offset of the marker that ends the scan
+		int restartInterval;
+		List<Integer> restarts = new ArrayList<Integer>(); // offsets of the RST markers, in order
+		int width;
+		int height;
+		int components;
+		int vMax = 1;
+		int mcuWidth;
+		int mcuHeight;
+		int mcusPerRow;
+		int mcuRows;
+
+		Jpeg(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		int u8(int pos) {
+			return bytes[pos] & 0xFF;
+		}
+
+		int u16(int pos) {
+			return (u8(pos) << 8) | u8(pos + 1);
+		}
+
+		/**
+		 * Parses bytes, returning null if it is not a single scan baseline or extended sequential Huffman JPEG.
+		 */
+		static Jpeg parse(byte[] bytes) {
+			Jpeg jpeg = new Jpeg(bytes);
+			try {
+				return jpeg.parse() ? jpeg : null;
+			}
+			catch (ArrayIndexOutOfBoundsException e) {
+				// truncated
+				return null;
+			}
+		}
+
+		private boolean parse() {
+			if (u8(0) != 0xFF || u8(1) != SOI) {
+				return false;
+			}
+			int pos = 2;
+			int hMax = 1;
+			while (true) {
+				if (u8(pos) != 0xFF) {
+					return false;
+				}
+				int marker = u8(pos + 1);
+				if (marker == 0xFF) {
+					// fill byte
+					pos++;
+					continue;
+				}
+				int length = u16(pos + 2);
+				if (marker == 0xC0 || marker == 0xC1) {
+					sof = pos;
+					height = u16(pos + 5);
+					width = u16(pos + 7);
+					components = u8(pos + 9);
+					for (int c = 0; c < components; c++) {
+						int sampling = u8(pos + 11 + 3 * c);
+						hMax = Math.max(hMax, sampling >> 4);
+						vMax = Math.max(vMax, sampling & 0xF);
+					}
+				}
+				else if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+					// progressive, lossless or arithmetic coded
+					return false;
+				}
+				else if (marker == DRI) {
+					restartInterval = u16(pos + 4);
+				}
+				else if (marker == SOS) {
+					if (sof == 0 || height == 0 || u8(pos + 4) != components) {
+						// no frame yet, height given by a DNL marker, or a scan that doesn't have every component
+						return false;
+					}
+					sos = pos;
+					scanStart = pos + 2 + length;
+					break;
+				}
+				pos += 2 + length;
+			}
+			// A single component scan is not interleaved, and its MCU is one block whatever the sampling factors say
+			mcuWidth = components == 1 ? 8 : 8 * hMax;
+			mcuHeight = components == 1 ? 8 : 8 * vMax;
+			mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+			mcuRows = (height + mcuHeight - 1) / mcuHeight;
+			// Entropy coded data can't contain 0xFF followed by anything but a stuffed 0, so markers are easy to find
+			for (pos = scanStart;; pos++) {
+				if (u8(pos) == 0xFF) {
+					int marker = u8(pos + 1);
+					if (marker >= RST0 && marker <= RST0 + 7) {
+						restarts.add(pos);
+						pos++;
+					}
+					else if (marker != 0 && marker != 0xFF) {
+						scanEnd = pos;
+						return marker == EOI;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Offset of the first byte of restart interval i.
+		 */
+		int intervalStart(int i) {
+			return i == 0 ? scanStart : restarts.get(i - 1) + 2;
+		}
+
+		/**
+		 * Offset of the end of the data of the MCU rows before mcuRow, which starts a restart interval.
+		 */
+		int rowsEnd(int mcuRow) {
+			return mcuRow == mcuRows ? scanEnd : restarts.get(interval(mcuRow) - 1);
+		}
+
+		int interval(int mcuRow) {
+			return (int) ((long) mcuRow * mcusPerRow / restartInterval);
+		}
+
+		/**
+		 * A JPEG of its own with the MCU rows [first, last) of this one, which must both start restart intervals.
+		 */
+		byte[] band(int first, int last) {
+			int start = intervalStart(interval(first));
+			int end = rowsEnd(last);
+			int rows = Math.min(height, last * mcuHeight) - first * mcuHeight;
+			byte[] band = new byte[scanStart + (end - start) + 2];
+			System.arraycopy(bytes, 0, band, 0, scanStart);
+			band[sof + 5] = (byte) (rows >> 8);
+			band[sof + 6] = (byte) rows;
+			System.arraycopy(bytes, start, band, scanStart, end - start);
+			// the restart markers have to count from 0 again
+			for (int i = interval(first) + 1, n = 0; i < restarts.size() + 1 && restarts.get(i - 1) < end; i++, n++) {
+				band[scanStart + restarts.get(i - 1) - start + 1] = (byte) (RST0 + n % 8);
+			}
+			band[band.length - 2] = (byte) 0xFF;
+			band[band.length - 1] = (byte) EOI;
+			return band;
+		}
+	}
+
+	/**
+	 * Work on one band, which may throw IOException.
+	 */
+	@FunctionalInterface
+	private interface Band {
+		void run(int band) throws IOException;
+	}
+
+	/**
+	 * Runs bands [first, last) by halving the range, like the other fork/join tasks.
+	 */
+	private static class BandTask extends RecursiveAction {
+
+		final Band work;
+		final int first;
+		final int last;
+
+		BandTask(Band work, int first, int last) {
+			this.work = work;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first < 2) {
+				try {
+					work.run(first);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			else {
+				int middle = first + (last - first) / 2;
+				invokeAll(new BandTask(work, first, middle), new BandTask(work, middle, last));
+			}
+		}
+	}
+
+	private static void runBands(ForkJoinPool pool, int bands, Band work) throws IOException {
+		try {
+			pool.invoke(new BandTask(work, 0, bands));
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static int targetBands(ForkJoinPool pool) {
+		return pool.getParallelism() * bandsPerWorker;
+	}
+
+	/**
+	 * An image the bands are copied into, created with the color model of the first band that is decoded so that it
+	 * has the type ImageIO.read would give.
+	 */
+	private static class Destination {
+
+		final int width;
+		final int height;
+		private BufferedImage image;
+
+		Destination(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+
+		synchronized WritableRaster raster(BufferedImage band) {
+			if (image == null) {
+				// same sample model as the band, so that the image gets the same type as from ImageIO.read
+				ColorModel cm = band.getColorModel();
+				image = new FJBufferedImage(cm, band.getRaster().createCompatibleWritableRaster(width, height),
+						cm.isAlphaPremultiplied(), null);
+			}
+			return image.getRaster();
+		}
+
+		/**
+		 * Copies rows [skip, skip + rows) of band to row y.
+		 */
+		void copy(BufferedImage band, int skip, int y, int rows) {
+			Raster source = band.getRaster().createChild(0, skip, width, rows, 0, 0, null);
+			// different bands write different rows of the array, so they don't need to hold the lock
+			raster(band).setDataElements(0, y, source);
+		}
+	}
+
+	/**
+	 * Reads file in bands in the common pool when its format allows it, and with ImageIO.read otherwise.
+	 */
+	public static BufferedImage read(File file) throws IOException {
+		return read(file, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Reads file in bands in pool when its format allows it, and with ImageIO.read otherwise. Like ImageIO.read,
+	 * returns null if no reader recognizes the file.
+	 */
+	public static BufferedImage read(File file, ForkJoinPool pool) throws IOException {
+		String format = formatName(file);
+		if (format == null) {
+			return null;
+		}
+		if (format.equalsIgnoreCase("jpeg")) {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			BufferedImage image = readJpeg(bytes, pool);
+			return image != null ? image : ImageIO.read(new ByteArrayInputStream(bytes));
+		}
+		if (format.equalsIgnoreCase("tif") || format.equalsIgnoreCase("tiff")) {
+			return readTiff(file, pool);
+		}
+		return ImageIO.read(file);
+	}
+
+	private static String formatName(File file) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+			if (in == null) {
+				throw new IOException("cannot open " + file);
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			String format = reader.getFormatName();
+			reader.dispose();
+			return format;
+		}
+	}
+
+	/**
+	 * Decodes a JPEG in bands at its restart markers, or returns null if it can't be split.
+	 */
+	private static BufferedImage readJpeg(byte[] bytes, ForkJoinPool pool) throws IOException {
+		Jpeg jpeg = Jpeg.parse(bytes);
+		if (jpeg == null || jpeg.restartInterval == 0
+				|| jpeg.restarts.size() != ((long) jpeg.mcusPerRow * jpeg.mcuRows - 1) / jpeg.restartInterval) {
+			return null;
+		}
+		// MCU rows that start a restart interval are the multiples of step
+		int step = jpeg.restartInterval / gcd(jpeg.restartInterval, jpeg.mcusPerRow);
+		int bandMcuRows = ceilDiv(Math.max(ceilDiv(jpeg.mcuRows, targetBands(pool)),
+				ceilDiv(minBandRows, jpeg.mcuHeight)), step) * step;
+		int bands = ceilDiv(jpeg.mcuRows, bandMcuRows);
+		if (bands < 2) {
+			return null;
+		}
+		int overlap = jpeg.components > 1 && jpeg.vMax > 1 ? step : 0;
+		Destination destination = new Destination(jpeg.width, jpeg.height);
+		runBands(pool, bands, band -> {
+			int first = band * bandMcuRows;
+			int last = Math.min(jpeg.mcuRows, first + bandMcuRows);
+			int decodeFirst = Math.max(0, first - overlap);
+			int decodeLast = Math.min(jpeg.mcuRows, last + overlap);
+			BufferedImage decoded = decode(jpeg.band(decodeFirst, decodeLast));
+			int y = first * jpeg.mcuHeight;
+			destination.copy(decoded, y - decodeFirst * jpeg.mcuHeight, y,
+					Math.min(jpeg.height, last * jpeg.mcuHeight) - y);
+		});
+		return destination.image;
+	}
+
+	private static BufferedImage decode(byte[] jpeg) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+		if (image == null) {
+			throw new IOException("no JPEG reader");
+		}
+		return image;
+	}
+
+	/**
+	 * Reads a TIFF in bands of rows, each with its own reader.
+	 */
+	private static BufferedImage readTiff(File file, ForkJoinPool pool) throws IOException {
+		int width;
+		int height;
+		try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+			ImageReader reader = ImageIO.getImageReaders(in).next();
+			reader.setInput(in, true, true);
+			width = reader.getWidth(0);
+			height = reader.getHeight(0);
+			reader.dispose();
+		}
+		int bandRows = Math.max(minBandRows, ceilDiv(height, targetBands(pool)));
+		int bands = ceilDiv(height, bandRows);
+		if (bands < 2) {
+			return ImageIO.read(file);
+		}
+		Destination destination = new Destination(width, height);
+		runBands(pool, bands, band -> {
+			int y = band * bandRows;
+			int rows = Math.min(bandRows, height - y);
+			try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+				ImageReader reader = ImageIO.getImageReaders(in).next();
+				reader.setInput(in, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(new Rectangle(0, y, width, rows));
+				BufferedImage decoded = reader.read(0, param);
+				reader.dispose();
+				destination.copy(decoded, 0, y, rows);
+			}
+		});
+		return destination.image;
+	}
+
+	/**
+	 * Writes image in format to file, encoding JPEGs in bands in the common pool and everything else with
+	 * ImageIO.write. Returns false, like ImageIO.write, if there is no writer for the image in that format.
+	 */
+	public static boolean write(BufferedImage image, String format, File file) throws IOException {
+		return write(image, format, file, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Writes image in format to file, encoding JPEGs in bands in pool and everything else with ImageIO.write.
+	 */
+	public static boolean write(BufferedImage image, String format, File file, ForkJoinPool pool) throws IOException {
+		if (!(format.equalsIgnoreCase("jpg") || format.equalsIgnoreCase("jpeg")) || image.getColorModel().hasAlpha()) {
+			return ImageIO.write(image, format, file);
+		}
+		byte[] jpeg = writeJpeg(image, pool);
+		if (jpeg == null) {
+			return ImageIO.write(image, format, file);
+		}
+		Files.write(file.toPath(), jpeg);
+		return true;
+	}
+
+	/**
+	 * Encodes image as a JPEG in bands joined by restart markers, or returns null if it is too small to split or the
+	 * bands can't be joined.
+	 */
+	private static byte[] writeJpeg(BufferedImage image, ForkJoinPool pool) throws IOException {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int bandRows = ceilDiv(Math.max(minBandRows, ceilDiv(height, targetBands(pool))), 16) * 16;
+		if (height <= bandRows) {
+			return null;
+		}
+		int bands = ceilDiv(height, bandRows);
+		Jpeg[] encoded = new Jpeg[bands];
+		runBands(pool, bands, band -> {
+			int y = band * bandRows;
+			encoded[band] = Jpeg.parse(encode(image.getSubimage(0, y, width, Math.min(bandRows, height - y))));
+		});
+		Jpeg first = encoded[0];
+		if (first == null || bandRows % first.mcuHeight != 0) {
+			return null;
+		}
+		for (Jpeg band : encoded) {
+			if (band == null || !sameHeaders(first, band)) {
+				return null;
+			}
+		}
+		// Every band has a restart marker after each MCU row but the last, and gets one more in front of it, so the
+		// markers just have to be numbered on from one band to the next
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] headers = Arrays.copyOf(first.bytes, first.scanStart);
+		headers[first.sof + 5] = (byte) (height >> 8);
+		headers[first.sof + 6] = (byte) height;
+		out.write(headers);
+		int restart = 0;
+		for (int band = 0; band < bands; band++) {
+			Jpeg jpeg = encoded[band];
+			if (band > 0) {
+				out.write(0xFF);
+				out.write(RST0 + restart++ % 8);
+			}
+			int from = jpeg.scanStart;
+			for (int marker : jpeg.restarts) {
+				out.write(jpeg.bytes, from, marker - from);
+				out.write(0xFF);
+				out.write(RST0 + restart++ % 8);
+				from = marker + 2;
+			}
+			out.write(jpeg.bytes, from, jpeg.scanEnd - from);
+		}
+		out.write(0xFF);
+		out.write(EOI);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encodes image with ImageIO's JPEG writer and its default settings, with a restart marker after each MCU row.
+	 */
+	private static byte[] encode(BufferedImage image) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if (!writers.hasNext()) {
+			throw new IOException("no JPEG writer");
+		}
+		ImageWriter writer = writers.next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+		IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA);
+		// The MCU is as wide as the largest horizontal sampling factor, in blocks, or one block for gray images
+		NodeList components = root.getElementsByTagName("componentSpec");
+		int hMax = 1;
+		for (int c = 0; c < components.getLength(); c++) {
+			hMax = Math.max(hMax,
+					Integer.parseInt(((IIOMetadataNode) components.item(c)).getAttribute("HsamplingFactor")));
+		}
+		int mcuWidth = components.getLength() == 1 ? 8 : 8 * hMax;
+		IIOMetadataNode dri = new IIOMetadataNode("dri");
+		dri.setAttribute("interval", Integer.toString(ceilDiv(image.getWidth(), mcuWidth)));
+		Node markers = root.getElementsByTagName("markerSequence").item(0);
+		markers.insertBefore(dri, markers.getFirstChild());
+		metadata.setFromTree(JPEG_METADATA, root);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, metadata), param);
+		}
+		finally {
+			writer.dispose();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * True if the bands were encoded with the same headers, apart from the height in the frame header.
+	 */
+	private static boolean sameHeaders(Jpeg first, Jpeg band) {
+		if (band.sof != first.sof || band.scanStart != first.scanStart || band.restartInterval != first.mcusPerRow) {
+			return false;
+		}
+		for (int i = 0; i < first.scanStart; i++) {
+			if (first.bytes[i] != band.bytes[i] && i != first.sof + 5 && i != first.sof + 6) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int gcd(int a, int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	private static int ceilDiv(int a, int b) {
+		return (a + b - 1) / b;
+	}
+}
@@ -0,0 +1,198 @@
+package cop5618;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pool of image sized int[] and float[] buffers, so that operations that are run over and over on images of the
+ * same size don't allocate new pixel arrays every time.
+ *
+ * Buffers are kept by type and exact length. borrow returns a free buffer of that length if there is one and
+ * allocates a new one otherwise; the contents of a borrowed buffer are whatever the last user left in it. release
+ * gives the buffer back. The pool is shared by all threads, and borrowing and releasing only take a lock for a map
+ * lookup, which is nothing next to the pixel work an image sized buffer is used for.
+ *
+ * The free buffers are held on to until they add up to more than maxRetainedBytes. Then the buffers of the sizes
+ * that were used least recently are dropped for the garbage collector, so a run over images of many sizes doesn't
+ * keep one of each around forever. A buffer that is larger than maxRetainedBytes by itself is never kept.
+ *
+ * The pool counts what it does, and report() prints the counts, so a benchmark can show how many bytes it allocated.
+ */
+public class PixelBufferPool {
+
+	/**
+	 * The pool used by the Gray and ColorHistEq operations. By default it keeps up to a quarter of the maximum heap
+	 * size; that can be changed with -Dcop5618.bufferPoolBytes=...
+	 */
+	public static final PixelBufferPool shared = new PixelBufferPool(
+			Long.getLong("cop5618.bufferPoolBytes", Runtime.getRuntime().maxMemory() / 4));
+
+	// Buffer types, kept in the upper half of the keys
+	private static final long INTS = 0;
+	private static final long FLOATS = 1L << 32;
+
+	private final long maxRetainedBytes;
+
+	// free buffers by type and length, least recently used size first
+	private final LinkedHashMap<Long, ArrayDeque<Object>> free = new LinkedHashMap<Long, ArrayDeque<Object>>(16, 0.75f,
+			true);
+	private long retainedBytes;
+
+	private long borrows;
+	private long hits;
+	private long allocations;
+	private long allocatedBytes;
+	private long evictions;
+	private long evictedBytes;
+
+	/**
+	 * @param maxRetainedBytes most bytes of free buffers kept for reuse
+	 */
+	public PixelBufferPool(long maxRetainedBytes) {
+		this.maxRetainedBytes = maxRetainedBytes;
+	}
+
+	/**
+	 * Returns an int[] of exactly length elements with undefined contents.
+	 */
+	public int[] borrowInts(int length) {
+		Object buffer = take(INTS | length);
+		if (buffer != null) {
+			return (int[]) buffer;
+		}
+		allocated(4L * length);
+		return new int[length];
+	}
+
+	/**
+	 * Returns a float[] of exactly length elements with undefined contents.
+	 */
+	public float[] borrowFloats(int length) {
+		Object buffer = take(FLOATS | length);
+		if (buffer != null) {
+			return (float[]) buffer;
+		}
+		allocated(4L * length);
+		return new float[length];
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The caller must not use it afterwards.
+	 */
+	public void release(int[] buffer) {
+		put(INTS | buffer.length, buffer, 4L * buffer.length);
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The caller must not use it afterwards.
+	 */
+	public void release(float[] buffer) {
+		put(FLOATS | buffer.length, buffer, 4L * buffer.length);
+	}
+
+	private synchronized Object take(long key) {
+		borrows++;
+		ArrayDeque<Object> buffers = free.get(key);
+		if (buffers == null || buffers.isEmpty()) {
+			return null;
+		}
+		hits++;
+		Object buffer = buffers.pop();
+		retainedBytes -= bytes(key);
+		return buffer;
+	}
+
+	private synchronized void allocated(long bytes) {
+		allocations++;
+		allocatedBytes += bytes;
+	}
+
+	private synchronized void put(long key, Object buffer, long bytes) {
+		if (bytes > maxRetainedBytes) {
+			evictions++;
+			evictedBytes += bytes;
+			return;
+		}
+		free.computeIfAbsent(key, k -> new ArrayDeque<Object>()).push(buffer);
+		retainedBytes += bytes;
+		// drop buffers of the least recently used sizes, which does not include the one just released
+		Iterator<Map.Entry<Long, ArrayDeque<Object>>> sizes = free.entrySet().iterator();
+		while (retainedBytes > maxRetainedBytes && sizes.hasNext()) {
+			Map.Entry<Long, ArrayDeque<Object>> size = sizes.next();
+			long sizeBytes = bytes(size.getKey());
+			while (retainedBytes > maxRetainedBytes && !size.getValue().isEmpty()) {
+				size.getValue().pop();
+				retainedBytes -= sizeBytes;
+				evictions++;
+				evictedBytes += sizeBytes;
+			}
+			if (size.getValue().isEmpty()) {
+				sizes.remove();
+			}
+		}
+	}
+
+	private static long bytes(long key) {
+		// both types have 4 byte elements
+		return 4L * (int) key;
+	}
+
+	/**
+	 * Drops all free buffers.
+	 */
+	public synchronized void clear() {
+		free.clear();
+		retainedBytes = 0;
+	}
+
+	/**
+	 * Sets all counts to 0, so that the next report covers only what happens from now on. The free buffers are kept.
+	 */
+	public synchronized void resetStats() {
+		borrows = 0;
+		hits = 0;
+		allocations = 0;
+		allocatedBytes = 0;
+		evictions = 0;
+		evictedBytes = 0;
+	}
+
+	public synchronized long getBorrows() {
+		return borrows;
+	}
+
+	/** number of borrows that were served with a free buffer */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** number of borrows that allocated a new buffer */
+	public synchronized long getAllocations() {
+		return allocations;
+	}
+
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public synchronized long getRetainedBytes() {
+		return retainedBytes;
+	}
+
+	/**
+	 * One line with the counts since the pool was created or resetStats was last called.
+	 */
+	public synchronized String report() {
+		return String.format(
+				"buffer pool: borrows=%d, reused=%d (%.1f%%), allocated=%d (%.1f MB), evicted=%d (%.1f MB), retained=%.1f MB",
+				borrows, hits, borrows == 0 ? 0.0 : 100.0 * hits / borrows, allocations, allocatedBytes / 1e6,
+				evictions, evictedBytes / 1e6, retainedBytes / 1e6);
+	}
+
+	@Override
+	public String toString() {
+		return report();
+	}
+}
@@ -0,0 +1,237 @@
+package cop5618;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A chain of pixel operations on an FJBufferedImage that runs in as few passes over the image as the operations
+ * allow, without intermediate images.
+ *
+ * There are two kinds of step. A map is a row kernel that computes every pixel from the same pixel of the previous
+ * step, so any number of maps in a row fuse into one kernel that works on a row while it is in cache. A histogram
+ * step maps pixels through a kernel built from the histogram of all pixels of the previous step, like equalization,
+ * so it cannot map a single pixel until the whole image has been seen. Each histogram step therefore costs one pass
+ * that only reads the source, runs the steps before it and counts; the final pass runs every step and writes the
+ * destination. The steps before a histogram are computed again in the later passes rather than stored, since
+ * recomputing a few arithmetic operations per pixel is cheaper than writing and reading back a whole image.
+ *
+ * For example
+ *
+ * PixelPipeline.from(image).gray().equalize().run(newImage);
+ *
+ * reads image twice and writes newImage once, where Gray.gray_PS followed by ColorHistEq.colorHistEq_parallel write
+ * and read an intermediate image and several image sized arrays. All passes run in the source image's pool.
+ */
+public class PixelPipeline {
+
+	private final FJBufferedImage source;
+	private final List<Step> steps = new ArrayList<Step>();
+
+	/**
+	 * One step of the pipeline, which comes down to a row kernel once the steps before it are known.
+	 */
+	private interface Step {
+		/**
+		 * True if the step needs a pass over the source of its own before the final pass.
+		 */
+		boolean needsPass();
+
+		/**
+		 * The kernel of this step, given the kernels of the steps before it. Steps that need a pass run it here.
+		 */
+		FJBufferedImage.RowKernel kernel(FJBufferedImage source, List<FJBufferedImage.RowKernel> before);
+	}
+
+	private static class MapStep implements Step {
+		final FJBufferedImage.RowKernel kernel;
+
+		MapStep(FJBufferedImage.RowKernel kernel) {
+			this.kernel = kernel;
+		}
+
+		@Override
+		public boolean needsPass() {
+			return false;
+		}
+
+		@Override
+		public FJBufferedImage.RowKernel kernel(FJBufferedImage source, List<FJBufferedImage.RowKernel> before) {
+			return kernel;
+		}
+	}
+
+	private static class HistogramStep implements Step {
+		final FJBufferedImage.RowKernel binOf;
+		final int bins;
+		final Function<int[], FJBufferedImage.RowKernel> kernelOf;
+
+		HistogramStep(FJBufferedImage.RowKernel binOf, int bins, Function<int[], FJBufferedImage.RowKernel> kernelOf) {
+			this.binOf = binOf;
+			this.bins = bins;
+			this.kernelOf = kernelOf;
+		}
+
+		@Override
+		public boolean needsPass() {
+			return true;
+		}
+
+		/**
+		 * Counts the bins of the pixels the steps before produce, in a pass that only reads the source.
+		 */
+		@Override
+		public FJBufferedImage.RowKernel kernel(FJBufferedImage source, List<FJBufferedImage.RowKernel> before) {
+			List<FJBufferedImage.RowKernel> counting = new ArrayList<FJBufferedImage.RowKernel>(before);
+			counting.add(binOf);
+			return kernelOf.apply(source.histogramRows(compose(counting), bins));
+		}
+	}
+
+	private PixelPipeline(FJBufferedImage source) {
+		this.source = source;
+	}
+
+	/**
+	 * Starts a pipeline that reads source.
+	 */
+	public static PixelPipeline from(FJBufferedImage source) {
+		return new PixelPipeline(source);
+	}
+
+	/**
+	 * Adds a map step.
+	 *
+	 * @param kernel row kernel from the pixels of the previous step to the pixels of this one, in the default ARGB
+	 *               format. It is called from several threads at once, and with src and dst the same array.
+	 */
+	public PixelPipeline map(FJBufferedImage.RowKernel kernel) {
+		steps.add(new MapStep(kernel));
+		return this;
+	}
+
+	/**
+	 * Adds a histogram step.
+	 *
+	 * @param binOf row kernel that sets dst[i] to the bin of pixel src[i], in [0, bins)
+	 * @param bins number of bins
+	 * @param kernelOf makes the kernel of this step from the counts of the pixels of the previous step in each bin
+	 */
+	public PixelPipeline histogramMap(FJBufferedImage.RowKernel binOf, int bins,
+			Function<int[], FJBufferedImage.RowKernel> kernelOf) {
+		steps.add(new HistogramStep(binOf, bins, kernelOf));
+		return this;
+	}
+
+	/**
+	 * Adds the gray conversion of Gray.gray_SS.
+	 */
+	public PixelPipeline gray() {
+		return map(Gray::grayRowExact);
+	}
+
+	/**
+	 * Adds the brightness equalization of ColorHistEq, which gives the same pixels as colorHistEq_serial on the
+	 * image the previous steps produce.
+	 */
+	public PixelPipeline equalize() {
+		return histogramMap(RowKernels.maxChannelRow, 256, ColorHistEq::equalizeKernel);
+	}
+
+	/**
+	 * Number of passes over the source run will make: one per histogram step, plus the one that writes.
+	 */
+	public int passes() {
+		int passes = 1;
+		for (Step step : steps) {
+			if (step.needsPass()) {
+				passes++;
+			}
+		}
+		return passes;
+	}
+
+	/**
+	 * Labels of the timer returned by run: "histogram pass" for each histogram step, then "final pass".
+	 */
+	public String[] labels() {
+		String[] labels = new String[passes()];
+		for (int i = 0; i < labels.length - 1; i++) {
+			labels[i] = "histogram pass " + (i + 1);
+		}
+		labels[labels.length - 1] = "final pass";
+		return labels;
+	}
+
+	/**
+	 * Runs the steps over the source and writes the result to dest, which may be the source itself.
+	 *
+	 * @param dest image with the same width and height as the source
+	 * @return timer with a duration per pass
+	 */
+	public Timer run(FJBufferedImage dest) {
+		Timer time = new Timer(labels());
+		run(dest, time);
+		return time;
+	}
+
+	/**
+	 * Runs the steps into a new image and writes it to file with ParallelImageIO.
+	 *
+	 * @return timer of run, with a last "write" duration added
+	 */
+	public Timer write(File file, String format) throws IOException {
+		String[] runLabels = labels();
+		String[] labels = Arrays.copyOf(runLabels, runLabels.length + 1);
+		labels[runLabels.length] = "write";
+		Timer time = new Timer(labels);
+		FJBufferedImage dest = new FJBufferedImage(source.getWidth(), source.getHeight(),
+				BatchProcessor.outputType(source, format));
+		dest.setPool(source.getPool());
+		run(dest, time);
+		if (!ParallelImageIO.write(dest, format, file, source.getPool())) {
+			throw new IOException("no " + format + " writer for " + file);
+		}
+		time.now();
+		return time;
+	}
+
+	/**
+	 * Runs the passes, calling time.now() before the first and after each.
+	 */
+	private void run(FJBufferedImage dest, Timer time) {
+		time.now();
+		// the kernels of the steps that are known so far, in order
+		List<FJBufferedImage.RowKernel> kernels = new ArrayList<FJBufferedImage.RowKernel>();
+		for (Step step : steps) {
+			kernels.add(step.kernel(source, kernels));
+			if (step.needsPass()) {
+				time.now();
+			}
+		}
+		source.filterRows(compose(kernels), dest);
+		time.now();
+	}
+
+	/**
+	 * One kernel that applies kernels in order to a row.
+	 */
+	private static FJBufferedImage.RowKernel compose(List<FJBufferedImage.RowKernel> kernels) {
+		if (kernels.isEmpty()) {
+			return (src, dst, length) -> System.arraycopy(src, 0, dst, 0, length);
+		}
+		FJBufferedImage.RowKernel[] array = kernels.toArray(new FJBufferedImage.RowKernel[0]);
+		if (array.length == 1) {
+			return array[0];
+		}
+		return (src, dst, length) -> {
+			array[0].apply(src, dst, length);
+			for (int k = 1; k < array.length; k++) {
+				array[k].apply(dst, dst, length);
+			}
+		};
+	}
+}
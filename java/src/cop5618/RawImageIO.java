@@ -0,0 +1,126 @@
+package cop5618;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads and writes images in an uncompressed raw ARGB format, for intermediate results that are read back by a later
+ * stage. Unlike JPEG it is lossless, and unlike any compressed format it costs no more than the disk bandwidth to
+ * write and read.
+ *
+ * A file is a 64 byte header followed by the pixels:
+ *
+ * bytes 0-7    the ASCII magic "ARGBRAW1"
+ * bytes 8-11   width, little endian int
+ * bytes 12-15  height, little endian int
+ * bytes 16-63  zero
+ * bytes 64-    width * height pixels in the default ARGB format as little endian ints, row after row
+ *
+ * The pixels start on a 64 byte boundary, so they can be mapped straight into an image with
+ * FJBufferedImage.createMapped. map and create do that, and the image then reads and writes the file itself, without
+ * a copy on the heap. read and write copy between the file and an ordinary image in parallel, a strip of rows per
+ * fork/join task.
+ */
+public class RawImageIO {
+
+	static final byte[] MAGIC = "ARGBRAW1".getBytes(StandardCharsets.US_ASCII);
+	static final int HEADER_BYTES = 64;
+
+	/**
+	 * Maps the pixels of a raw image file as an image, so that no pixels are read until they are used.
+	 *
+	 * @param file
+	 * @param writable true if changes to the image should go to the file
+	 * @return
+	 * @throws IOException if the file is not a raw image file or is shorter than its header says
+	 */
+	public static FJBufferedImage map(File file, boolean writable) throws IOException {
+		int[] size = readHeader(file);
+		return FJBufferedImage.createMapped(file, HEADER_BYTES, size[0], size[1], writable);
+	}
+
+	/**
+	 * Creates a raw image file of the given size, replacing any file of that name, and maps it as a writable image
+	 * whose pixels start out 0. An operation can write its result straight into the file through the image.
+	 */
+	public static FJBufferedImage create(File file, int width, int height) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC).putInt(width).putInt(height).rewind();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+		}
+		return FJBufferedImage.createMapped(file, HEADER_BYTES, width, height, true);
+	}
+
+	/**
+	 * Writes image to file in the raw format. The rows are copied into the mapped file in parallel in the image's
+	 * pool, or in the shared pool if it is not an FJBufferedImage, and then forced to disk.
+	 */
+	public static void write(BufferedImage image, File file) throws IOException {
+		FJBufferedImage source = image instanceof FJBufferedImage ? (FJBufferedImage) image
+				: FJBufferedImage.BufferedImageToFJBufferedImage(image);
+		FJBufferedImage mapped = create(file, image.getWidth(), image.getHeight());
+		copy(source, mapped);
+		((OffHeapDataBuffer) mapped.getRaster().getDataBuffer()).force();
+	}
+
+	/**
+	 * Reads a raw image file into a TYPE_INT_ARGB image on the heap. The file is mapped and copied in parallel, so a
+	 * file in the page cache is read at memory bandwidth.
+	 */
+	public static FJBufferedImage read(File file) throws IOException {
+		FJBufferedImage mapped = map(file, false);
+		FJBufferedImage image = new FJBufferedImage(mapped.getWidth(), mapped.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		copy(mapped, image);
+		return image;
+	}
+
+	/**
+	 * Copies source to dest with a filter that leaves the pixels as they are: each leaf reads a row of source into its
+	 * buffer and writes it to dest.
+	 */
+	private static void copy(FJBufferedImage source, FJBufferedImage dest) {
+		source.filterRows((src, dst, length) -> {
+		}, dest);
+	}
+
+	/**
+	 * Returns { width, height } from the header of file, after checking that the file is long enough to hold them.
+	 */
+	static int[] readHeader(File file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		long length;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			length = channel.size();
+			while (header.hasRemaining() && channel.read(header) >= 0) {
+				// a file channel normally fills the buffer in one read
+			}
+		}
+		if (header.hasRemaining()) {
+			throw new IOException(file + " is not a raw image file");
+		}
+		header.flip();
+		byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException(file + " is not a raw image file");
+		}
+		int width = header.getInt();
+		int height = header.getInt();
+		if (width <= 0 || height <= 0 || length < HEADER_BYTES + 4L * width * height) {
+			throw new IOException(file + " is truncated or has a bad header (" + width + "x" + height + ", " + length
+					+ " bytes)");
+		}
+		return new int[] { width, height };
+	}
+}
@@ -0,0 +1,66 @@
+package cop5618;
+
+/**
+ * The row kernels of the gray conversion and the brightness histogram, from an explicit SIMD backend when one can be
+ * loaded and from the scalar loops of Gray and ColorHistEq otherwise.
+ *
+ * The scalar loops are written so that C2 vectorizes them on its own, but whether it does depends on the JIT's
+ * heuristics and has changed between JDK versions. The vector backend, VectorRowKernels in java/vector, says which
+ * SIMD operations to use with the jdk.incubator.vector API, so it vectorizes regardless. That API is an incubator
+ * module in JDK 17: the backend has to be compiled and run with --add-modules jdk.incubator.vector (the jmh module
+ * does both), and the rest of the package must not depend on it. So the backend is looked up by name once, and used
+ * only if its class is on the class path, the module is in the boot layer and the processor has vectors of at least
+ * 128 bits. Otherwise, or with -Dcop5618.scalarKernels=true, the scalar loops are used. Both give the same pixels.
+ */
+public class RowKernels {
+
+	/**
+	 * What a SIMD backend provides. Its kernels must give exactly the results of the scalar ones.
+	 */
+	interface Backend {
+		/** true if the processor has vector registers the backend can use, so that it is faster than scalar code */
+		boolean isAccelerated();
+
+		String name();
+
+		/** same as Gray.grayRowFixed */
+		FJBufferedImage.RowKernel grayRowFixed();
+
+		/** same as ColorHistEq.maxChannelRow */
+		FJBufferedImage.RowKernel maxChannelRow();
+	}
+
+	static final String VECTOR_BACKEND = "cop5618.VectorRowKernels";
+
+	private static final Backend backend = load();
+
+	/** Gray.grayRowFixed, vectorized explicitly if possible */
+	public static final FJBufferedImage.RowKernel grayRowFixed = backend != null ? backend.grayRowFixed()
+			: Gray::grayRowFixed;
+
+	/** ColorHistEq.maxChannelRow, vectorized explicitly if possible */
+	public static final FJBufferedImage.RowKernel maxChannelRow = backend != null ? backend.maxChannelRow()
+			: ColorHistEq::maxChannelRow;
+
+	private static Backend load() {
+		if (Boolean.getBoolean("cop5618.scalarKernels")
+				|| !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			return null;
+		}
+		try {
+			Backend vector = (Backend) Class.forName(VECTOR_BACKEND).getDeclaredConstructor().newInstance();
+			return vector.isAccelerated() ? vector : null;
+		}
+		catch (ReflectiveOperationException | LinkageError e) {
+			// not compiled into this build
+			return null;
+		}
+	}
+
+	/**
+	 * Name of the backend in use, "scalar" if it is the loops of Gray and ColorHistEq.
+	 */
+	public static String backendName() {
+		return backend != null ? backend.name() : "scalar";
+	}
+}
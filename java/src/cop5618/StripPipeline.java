@@ -0,0 +1,239 @@
+package cop5618;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Grayscale conversion and histogram equalization of images that are too large to hold in memory.
+ *
+ * The image is decoded, processed and encoded in horizontal strips of stripRows rows, so only one strip of pixels
+ * is on the heap at a time. Each strip is processed in parallel in FJBufferedImage's pool, in place. Equalization
+ * needs the histogram of the whole image before any pixel can be remapped, so it reads the input twice: once to
+ * build the histogram and once to equalize and write.
+ *
+ * The output is always written as TIFF, because the TIFF writer is the only one in the JDK that can write an image
+ * a region at a time (ImageWriter.prepareWriteEmpty and replacePixels). That writer only writes classic TIFF, whose
+ * 32 bit offsets limit a file to 4 GB, about 1.4 gigapixels of uncompressed RGB. Outputs with more than
+ * maxClassicTiffBytes of pixels are therefore written as uncompressed RGB or RGBA BigTIFF with BigTiffWriter, which
+ * has 64 bit offsets; libtiff based tools read those, ImageIO doesn't. The input can be anything ImageIO reads, but
+ * how well strip reads work depends on the format: TIFF strips and tiles are read directly, while JPEG and PNG
+ * readers have to decode everything above the strip again on every read. With those formats memory stays bounded
+ * but decoding time grows with the number of strips, so use tall strips or convert the input to TIFF first.
+ *
+ * The results are identical to Gray.gray_SS and ColorHistEq.colorHistEq_serial.
+ */
+public class StripPipeline {
+
+	static String[] grayLabels = { "gray strips" };
+	static String[] equalizeLabels = { "histogram pass", "probability array", "equalize pass" };
+
+	// strips are sized to hold about this many bytes of pixels when stripRows isn't given
+	static long defaultStripBytes = 64L * 1024 * 1024;
+
+	// outputs with more bytes of pixels than this are written as BigTIFF. Classic TIFF offsets are 32 bits; the margin
+	// leaves room for the header and the directory.
+	static long maxClassicTiffBytes = 0xFFFFFFFFL - 1024 * 1024;
+
+	/**
+	 * A strip reader on an input file and a region writer on an output file.
+	 */
+	private static class Strips implements AutoCloseable {
+
+		final ImageInputStream in;
+		final ImageReader reader;
+		final int w;
+		final int h;
+		final int stripRows;
+		ImageOutputStream out;
+		ImageWriter writer;
+		BigTiffWriter bigTiff;
+
+		Strips(File input, int stripRows) throws IOException {
+			in = ImageIO.createImageInputStream(input);
+			if (in == null) {
+				throw new IOException("cannot open " + input);
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				in.close();
+				throw new IOException("no ImageIO reader for " + input);
+			}
+			reader = readers.next();
+			// not seekForwardOnly, since equalization goes over the image twice
+			reader.setInput(in, false, true);
+			w = reader.getWidth(0);
+			h = reader.getHeight(0);
+			this.stripRows = stripRows > 0 ? stripRows
+					: (int) Math.max(1, Math.min(h, defaultStripBytes / Granularity.BYTES_PER_PIXEL / w));
+		}
+
+		/**
+		 * Decodes rows [y, y + rows) as an FJBufferedImage so that it can be processed in parallel.
+		 */
+		FJBufferedImage read(int y, int rows) throws IOException {
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(new Rectangle(0, y, w, rows));
+			return FJBufferedImage.BufferedImageToFJBufferedImage(reader.read(0, param));
+		}
+
+		/**
+		 * Writes the strip at row y of the output, starting the output with the strip's pixel layout the first time.
+		 * The first strip also decides between classic TIFF and BigTIFF, from the size of the whole output.
+		 */
+		void write(File output, BufferedImage strip, int y) throws IOException {
+			if (writer == null && bigTiff == null) {
+				long outputBytes = (long) w * h * ((strip.getColorModel().getPixelSize() + 7) / 8);
+				if (outputBytes > maxClassicTiffBytes) {
+					bigTiff = new BigTiffWriter(output, w, h, strip.getColorModel().hasAlpha(), stripRows);
+				}
+			}
+			if (bigTiff != null) {
+				bigTiff.write(strip, y);
+				return;
+			}
+			if (writer == null) {
+				Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tiff");
+				if (!writers.hasNext()) {
+					throw new IOException("no TIFF writer available");
+				}
+				writer = writers.next();
+				output.delete();
+				out = ImageIO.createImageOutputStream(output);
+				writer.setOutput(out);
+				writer.prepareWriteEmpty(null, ImageTypeSpecifier.createFromRenderedImage(strip), w, h, null, null,
+						null);
+			}
+			writer.prepareReplacePixels(0, new Rectangle(0, y, strip.getWidth(), strip.getHeight()));
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setDestinationOffset(new Point(0, y));
+			writer.replacePixels(strip, param);
+			writer.endReplacePixels();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (writer != null) {
+					writer.endWriteEmpty();
+					writer.dispose();
+					out.close();
+				}
+				if (bigTiff != null) {
+					bigTiff.close();
+				}
+			}
+			finally {
+				reader.dispose();
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Converts input to grayscale in strips of about 64 MB and writes it to output as TIFF, or BigTIFF over 4 GB.
+	 */
+	public static Timer gray(File input, File output) throws IOException {
+		return gray(input, output, 0);
+	}
+
+	/**
+	 * Converts input to grayscale in strips of stripRows rows and writes it to output as TIFF, or BigTIFF over 4 GB.
+	 *
+	 * @param input
+	 * @param output
+	 * @param stripRows rows per strip, or 0 to size strips to about 64 MB
+	 * @return times
+	 * @throws IOException
+	 */
+	public static Timer gray(File input, File output, int stripRows) throws IOException {
+		Timer times = new Timer(grayLabels);
+		try (Strips strips = new Strips(input, stripRows)) {
+			times.now();
+			for (int y = 0; y < strips.h; y += strips.stripRows) {
+				FJBufferedImage strip = strips.read(y, Math.min(strips.stripRows, strips.h - y));
+				strip.filterRows(Gray::grayRowExact, strip);
+				strips.write(output, strip, y);
+			}
+			times.now();
+		}
+		return times;
+	}
+
+	/**
+	 * Equalizes the brightness of input in strips of about 64 MB and writes it to output as TIFF, or BigTIFF over
+	 * 4 GB.
+	 */
+	public static Timer colorHistEq(File input, File output) throws IOException {
+		return colorHistEq(input, output, 0);
+	}
+
+	/**
+	 * Equalizes the brightness of input in strips of stripRows rows and writes it to output as TIFF, or BigTIFF over
+	 * 4 GB. The histogram is collected by largest channel value as in ColorHistEq.colorHistEq_lut, and pixels are
+	 * remapped with the same lookup table.
+	 *
+	 * @param input
+	 * @param output
+	 * @param stripRows rows per strip, or 0 to size strips to about 64 MB
+	 * @return times
+	 * @throws IOException
+	 */
+	public static Timer colorHistEq(File input, File output, int stripRows) throws IOException {
+		Timer times = new Timer(equalizeLabels);
+		try (Strips strips = new Strips(input, stripRows)) {
+			long pixelCount = (long) strips.w * strips.h;
+			int bins = (int) Math.min(ColorHistEq.binNum, pixelCount);
+			times.now();
+			long[] channelCounts = new long[256];
+			for (int y = 0; y < strips.h; y += strips.stripRows) {
+				FJBufferedImage strip = strips.read(y, Math.min(strips.stripRows, strips.h - y));
+				int[] stripCounts = strip.histogramRows(RowKernels.maxChannelRow, 256);
+				for (int cmax = 0; cmax < 256; cmax++) {
+					channelCounts[cmax] += stripCounts[cmax];
+				}
+			}
+			times.now();
+			// same calculation as in ColorHistEq, with long counts since the image can have more than 2^31 pixels
+			double[] probArray = new double[bins];
+			for (int cmax = 0; cmax < 256; cmax++) {
+				probArray[ColorHistEq.channelBin(cmax, bins)] += channelCounts[cmax];
+			}
+			for (int i = 0; i < bins; i++) {
+				probArray[i] = probArray[i] / (double) pixelCount;
+			}
+			Arrays.parallelPrefix(probArray, (x, y) -> x + y);
+			float[] brightnessTable = new float[256];
+			for (int cmax = 0; cmax < 256; cmax++) {
+				brightnessTable[cmax] = (float) probArray[ColorHistEq.channelBin(cmax, bins)];
+			}
+			times.now();
+			for (int y = 0; y < strips.h; y += strips.stripRows) {
+				FJBufferedImage strip = strips.read(y, Math.min(strips.stripRows, strips.h - y));
+				strip.filter(pixel -> {
+					int red = (pixel >> 16) & 0xFF;
+					int green = (pixel >> 8) & 0xFF;
+					int blue = pixel & 0xFF;
+					return ColorHistEq.hsbWithBrightness(red, green, blue,
+							brightnessTable[Math.max(Math.max(red, green), blue)]);
+				}, strip);
+				strips.write(output, strip, y);
+			}
+			times.now();
+		}
+		return times;
+	}
+}
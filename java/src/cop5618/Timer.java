@@ -1,5 +1,7 @@
 package cop5618;
 
+import java.util.Arrays;
+
 public class Timer {
 
 	/** array of raw times from System.nanoTime(); */
@@ -26,8 +28,13 @@ public class Timer {
 	/**
 	 * Invoked to record the start or end of a time duration
 	 * This must be called labels.length+1 times in the timed code.
+	 *
+	 * @throws IllegalStateException if it has already been called labels.length+1 times
 	 */
 	public void now() {
+		if (index == numValues) {
+			throw new IllegalStateException("now() called more than " + numValues + " times for " + Arrays.toString(labels));
+		}
 		rawNanoTimes[index++] = System.nanoTime();
 	}
 
@@ -78,6 +85,8 @@ public class Timer {
      * Computes statistics for the given arrray of timers.
      * If instantiated arrays are passed in, they are filled in.  If not,
      * a temporary array is created in this method.
+     * The timers are added one by one to a TimerStats, which uses Welford's method for the standard deviation;
+     * use a TimerStats directly to gather statistics without keeping the timers.
      * 
      * @param timers
      * @param meanDurations
@@ -85,48 +94,11 @@ public class Timer {
      * @param stdDev
      */
 	public static void computeStats(Timer[] timers, double[] meanDurationsNanos, double [] meanPercentOfTotal, double[] stdDevNanos){
-		int numTimers = timers.length;
-		int numValues = (timers[0]).numValues;
-		int totalIndex = numValues-1;	
-		//if array not passed in, create temp array for calculation.  It has an element for each label, plus the total.
-		//if passed in, initialize to zero
-		if (meanDurationsNanos == null){ meanDurationsNanos = new double[numValues];} 
-		else {for (int i=0; i < meanDurationsNanos.length; i++) meanDurationsNanos[i] = 0.0;}
-		if (meanPercentOfTotal == null) { meanPercentOfTotal = new double[numValues]; }
-		else {for (int i=0; i < meanPercentOfTotal.length; i++) meanPercentOfTotal[i] = 0.0;}
-		if (stdDevNanos == null){ stdDevNanos = new double[numValues]; }
-		else {for (int i=0; i < meanPercentOfTotal.length; i++) meanPercentOfTotal[i] = 0.0;}
-
-		
-		//compute total durations and durations squared
-		double[] meanDurationsSquared = new double[numValues];
-		for (int t = 0; t < numTimers; t++) {
-			double duration = timers[t].elapsedNanos(0, numValues - 1);
-			meanDurationsNanos[totalIndex] += duration;
-			meanDurationsSquared[totalIndex] += duration*duration;
-		}
-		meanDurationsNanos[totalIndex] /= numTimers;
-		meanDurationsSquared[totalIndex] /= numTimers;
-		stdDevNanos[totalIndex] = Math.sqrt(meanDurationsSquared[totalIndex] - meanDurationsNanos[totalIndex]*meanDurationsNanos[totalIndex]);
-		meanPercentOfTotal[totalIndex]=1.0;
-		//compute durations between timers
-		if (numValues > 2){//haven't already printed timers
-		for (int i = 0; i < numValues-1; i++) {
-			meanDurationsNanos[i] = 0;
-			for (int t = 0; t < numTimers; t++) {
-				double duration = timers[t].elapsedNanos(i, i + 1);
-				assert duration>0: "duration for " + timers[t].labels[i] + "<=0.  Probably missing a call to timer now() method";
-				meanDurationsNanos[i] += duration;
-				meanDurationsSquared[i] += duration*duration;
-				meanPercentOfTotal[i] += (double)duration/(double)timers[t].elapsedNanos(0, numValues - 1);
-			}
-			meanDurationsNanos[i] /= numTimers;
-			meanDurationsSquared[i] /= numTimers;
-			meanPercentOfTotal[i] /=numTimers;
-			stdDevNanos[i] = Math.sqrt(meanDurationsSquared[i] - meanDurationsNanos[i]*meanDurationsNanos[i]);
-	}
+		TimerStats stats = new TimerStats(timers[0].labels);
+		for (Timer timer : timers) {
+			stats.add(timer);
 		}
-		
+		stats.fill(meanDurationsNanos, meanPercentOfTotal, stdDevNanos);
 	}
 	
 
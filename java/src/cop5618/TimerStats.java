@@ -0,0 +1,173 @@
+package cop5618;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the stages of many timers, gathered one timer at a time so that the timers don't have to be kept.
+ * A soak run can add millions of timers in constant memory.
+ *
+ * Means and standard deviations are updated with Welford's method, which doesn't lose precision the way
+ * E[x^2] - E[x]^2 does when the deviation is small next to the mean. Percentiles come from a LatencyHistogram per
+ * stage and are accurate to about 3%. Standard deviations are of the population, as Timer.computeStats has always
+ * reported them.
+ *
+ * Timers can be added from several threads.
+ */
+public class TimerStats {
+
+	final String[] labels;
+	// one element per label, then the total
+	private final int numValues;
+	private long count;
+	private final double[] mean;
+	private final double[] m2;
+	private final double[] meanPercentOfTotal;
+	private final LatencyHistogram[] histograms;
+
+	/**
+	 * @param labels the labels of the timers that will be added
+	 */
+	public TimerStats(String... labels) {
+		this.labels = labels.clone();
+		numValues = labels.length + 1;
+		mean = new double[numValues];
+		m2 = new double[numValues];
+		meanPercentOfTotal = new double[numValues];
+		histograms = new LatencyHistogram[numValues];
+		for (int i = 0; i < numValues; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Adds a finished timer.
+	 *
+	 * @throws IllegalArgumentException if the timer's labels are not the ones these statistics were created with
+	 */
+	public synchronized void add(Timer timer) {
+		if (!Arrays.equals(timer.labels, labels)) {
+			throw new IllegalArgumentException("timer with labels " + Arrays.toString(timer.labels)
+					+ " added to statistics of " + Arrays.toString(labels));
+		}
+		count++;
+		int totalIndex = numValues - 1;
+		long total = timer.elapsedNanos(0, totalIndex);
+		for (int i = 0; i < numValues; i++) {
+			long duration = i == totalIndex ? total : timer.elapsedNanos(i, i + 1);
+			assert duration > 0 : "duration for " + (i == totalIndex ? "total" : labels[i])
+					+ "<=0.  Probably missing a call to timer now() method";
+			double delta = duration - mean[i];
+			mean[i] += delta / count;
+			m2[i] += delta * (duration - mean[i]);
+			double percent = total == 0 ? 1.0 : (double) duration / total;
+			meanPercentOfTotal[i] += (percent - meanPercentOfTotal[i]) / count;
+			histograms[i].record(duration);
+		}
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Mean duration in nanoseconds of stage index, where index labels.length is the total.
+	 */
+	public synchronized double getMeanNanos(int index) {
+		return mean[index];
+	}
+
+	/**
+	 * Population standard deviation in nanoseconds of stage index, where index labels.length is the total.
+	 */
+	public synchronized double getStdDevNanos(int index) {
+		return count == 0 ? 0 : Math.sqrt(m2[index] / count);
+	}
+
+	/**
+	 * Mean fraction of the total that stage index took, from 0 to 1.
+	 */
+	public synchronized double getMeanPercentOfTotal(int index) {
+		return meanPercentOfTotal[index];
+	}
+
+	/**
+	 * Duration in nanoseconds that percent of the runs of stage index took at most, where index labels.length is the
+	 * total.
+	 */
+	public long getPercentileNanos(int index, double percent) {
+		return histograms[index].getValueAtPercentile(percent);
+	}
+
+	/**
+	 * The histogram of stage index, where index labels.length is the total.
+	 */
+	public LatencyHistogram getHistogram(int index) {
+		return histograms[index];
+	}
+
+	/**
+	 * Copies the means, percents of total and standard deviations into the arrays that are not null, in the layout
+	 * of Timer.computeStats.
+	 */
+	public synchronized void fill(double[] meanDurationsNanos, double[] meanPercentOfTotal, double[] stdDevNanos) {
+		for (int i = 0; i < numValues; i++) {
+			if (meanDurationsNanos != null) {
+				meanDurationsNanos[i] = mean[i];
+			}
+			if (meanPercentOfTotal != null) {
+				meanPercentOfTotal[i] = this.meanPercentOfTotal[i];
+			}
+			if (stdDevNanos != null) {
+				stdDevNanos[i] = getStdDevNanos(i);
+			}
+		}
+	}
+
+	/**
+	 * Forgets all timers added so far.
+	 */
+	public synchronized void reset() {
+		count = 0;
+		Arrays.fill(mean, 0);
+		Arrays.fill(m2, 0);
+		Arrays.fill(meanPercentOfTotal, 0);
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Formats the statistics like Timer.statsToString, with percentiles, followed by the speedup over the given serial
+	 * duration if it is positive.
+	 */
+	public synchronized String toString(double serialDurationNanos) {
+		StringBuffer sb = new StringBuffer();
+		int totalIndex = numValues - 1;
+		if (numValues > 2) {
+			for (int i = 0; i < totalIndex; i++) {
+				sb.append(String.format("%s mean duration=%.1f msecs, stddev=%.1f, mean percent of total=%.0f%n",
+						labels[i], mean[i] / 1e6, getStdDevNanos(i) / 1e6, meanPercentOfTotal[i] * 100));
+				sb.append(percentiles(i));
+			}
+		}
+		sb.append(String.format("total mean duration=%.0f msecs, stddev=%.1f, runs=%d%n", mean[totalIndex] / 1e6,
+				getStdDevNanos(totalIndex) / 1e6, count));
+		sb.append(percentiles(totalIndex));
+		if (serialDurationNanos > 0) {
+			sb.append(String.format("speedup=%.1f%n", serialDurationNanos / mean[totalIndex]));
+		}
+		return sb.toString();
+	}
+
+	private String percentiles(int index) {
+		LatencyHistogram histogram = histograms[index];
+		return String.format("    p50=%.1f, p90=%.1f, p99=%.1f, max=%.1f msecs%n", histogram.getValueAtPercentile(50) / 1e6,
+				histogram.getValueAtPercentile(90) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+				histogram.getMax() / 1e6);
+	}
+
+	@Override
+	public String toString() {
+		return toString(0);
+	}
+}
@@ -0,0 +1,169 @@
+package cop5618;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Equalizes the brightness of the frames of a video one after the other, like ColorHistEq does for a single image.
+ *
+ * Equalizing every frame on its own histogram makes the picture flicker: a bright object entering the scene changes
+ * the mapping of every other pixel from one frame to the next. So the equalizer keeps an exponentially smoothed
+ * histogram instead. Each frame's bin probabilities are mixed into it with weight alpha, and the mapping is the prefix
+ * sum of the smoothed probabilities, so it follows the scene over about 1/alpha frames. The first frame, and the first
+ * frame after reset or a change in width or height, starts the smoothing from its own histogram.
+ *
+ * Consecutive frames have nearly the same histogram, so it doesn't have to be exact either. The histogram is counted
+ * on a grid of every step-th row and column (see FJBufferedImage.histogramRows). Every step-th row is read in full
+ * and one in step * step pixels is binned, so for step 2 the count reads half the pixels of a frame and bins a
+ * quarter of them.
+ *
+ * In background mode the equalizer doesn't wait for a frame's histogram before mapping it. Each call takes the
+ * histogram of the previous frame, which was counted while that frame was mapped, updates the mapping with it, starts
+ * counting the current frame in the frame's pool, and maps the current frame with the updated mapping right away. The
+ * mapping then lags one frame behind, which the smoothing already does to a much larger extent, and a frame costs
+ * about one pass over the pixels instead of two. The frame must not be changed until the next call has returned,
+ * since its histogram may still be counted until then.
+ *
+ * Calls on one equalizer run one at a time.
+ */
+public class VideoEqualizer {
+
+	//For use with Timer class. There are labels.length+1 calls to the Timer instance' now method. In background mode
+	//"histogram" is the time spent waiting for the previous frame's histogram.
+	public static String[] labels = { "histogram", "update mapping", "equalize pixels" };
+
+	private final double alpha;
+	private final int step;
+	private final boolean background;
+
+	// smoothed probability of each brightness bin, or null before the first frame
+	private double[] smoothed;
+	// size of the frames smoothed has been collected from
+	private int width;
+	private int height;
+	private float[] brightnessTable;
+	// histogram of the previous frame, still being counted, in background mode
+	private CompletableFuture<double[]> pending;
+	private long frames;
+
+	/**
+	 * Creates an equalizer that mixes in each frame with weight 0.25, counts every 2nd row and column and counts in
+	 * the background.
+	 */
+	public VideoEqualizer() {
+		this(0.25, 2, true);
+	}
+
+	/**
+	 * @param alpha weight of a new frame's histogram, in (0, 1]. 1 equalizes every frame on its own histogram.
+	 * @param step distance between the rows and columns counted, 1 to count every pixel
+	 * @param background true to map each frame with the mapping of the frames before it while it is being counted
+	 */
+	public VideoEqualizer(double alpha, int step, boolean background) {
+		if (!(alpha > 0 && alpha <= 1)) {
+			throw new IllegalArgumentException("alpha must be in (0, 1]: " + alpha);
+		}
+		if (step < 1) {
+			throw new IllegalArgumentException("step must be at least 1: " + step);
+		}
+		this.alpha = alpha;
+		this.step = step;
+		this.background = background;
+	}
+
+	/**
+	 * Equalizes frame into newFrame, which may be frame itself only when not in background mode. All passes run in
+	 * frame's pool.
+	 *
+	 * @param frame the next frame of the video
+	 * @param newFrame image with the same width and height as frame
+	 * @return timer with the labels of this class
+	 * @throws IllegalArgumentException if newFrame is frame in background mode, where frame is still being counted
+	 *                                  while newFrame is written
+	 */
+	public synchronized Timer equalize(FJBufferedImage frame, FJBufferedImage newFrame) {
+		if (background && frame == newFrame) {
+			throw new IllegalArgumentException("in background mode newFrame must not be frame");
+		}
+		Timer time = new Timer(labels);
+		int bins = Math.min(ColorHistEq.binNum, frame.getWidth() * frame.getHeight());
+		time.now();
+		double[] probArray = null;
+		if (pending != null) {
+			probArray = pending.join();
+			pending = null;
+		}
+		boolean restart = smoothed == null || frame.getWidth() != width || frame.getHeight() != height;
+		if (!background || restart) {
+			// the first frame has no mapping to reuse, so it is counted before it is mapped
+			probArray = histogram(frame, bins);
+		}
+		time.now();
+		update(probArray, restart);
+		width = frame.getWidth();
+		height = frame.getHeight();
+		time.now();
+		if (background) {
+			pending = CompletableFuture.supplyAsync(() -> histogram(frame, bins), frame.getPool());
+		}
+		frame.filterRows(ColorHistEq.equalizeKernel(brightnessTable), newFrame);
+		time.now();
+		frames++;
+		return time;
+	}
+
+	private double[] histogram(FJBufferedImage frame, int bins) {
+		int[] channelCounts = frame.histogramRows(RowKernels.maxChannelRow, 256, step);
+		return ColorHistEq.brightnessProbabilities(channelCounts, bins);
+	}
+
+	/**
+	 * Mixes probArray into the smoothed histogram and rebuilds the mapping from it.
+	 */
+	private void update(double[] probArray, boolean restart) {
+		if (restart) {
+			smoothed = probArray.clone();
+		}
+		else {
+			for (int i = 0; i < smoothed.length; i++) {
+				smoothed[i] += alpha * (probArray[i] - smoothed[i]);
+			}
+		}
+		brightnessTable = ColorHistEq.brightnessTable(smoothed);
+	}
+
+	/**
+	 * Waits until the histogram of the last frame, if it is still being counted, is done, after which the frame may be
+	 * changed. Its histogram is still used for the next frame.
+	 */
+	public synchronized void await() {
+		if (pending != null) {
+			pending.join();
+		}
+	}
+
+	/**
+	 * Forgets the frames so far, as at a cut to a new scene; the next frame starts the smoothing again.
+	 */
+	public synchronized void reset() {
+		await();
+		pending = null;
+		smoothed = null;
+		brightnessTable = null;
+		frames = 0;
+	}
+
+	/**
+	 * Brightness the last frame's pixels were given for each value of their largest channel, or null before the first
+	 * frame.
+	 */
+	public synchronized float[] getBrightnessTable() {
+		return brightnessTable == null ? null : brightnessTable.clone();
+	}
+
+	/**
+	 * Number of frames equalized since creation or the last reset.
+	 */
+	public synchronized long getFrames() {
+		return frames;
+	}
+}
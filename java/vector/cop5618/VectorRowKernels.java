@@ -0,0 +1,73 @@
+package cop5618;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The vector backend of RowKernels, written with the jdk.incubator.vector API. It is kept out of ../src because it
+ * only compiles with --add-modules jdk.incubator.vector; RowKernels loads it by name when it is on the class path.
+ *
+ * Each kernel processes as many pixels per step as the processor's preferred int vector holds, 8 with AVX2 and 16
+ * with AVX-512, and finishes the last partial vector with the scalar code, so the results are those of the scalar
+ * kernels.
+ */
+public class VectorRowKernels implements RowKernels.Backend {
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+	@Override
+	public boolean isAccelerated() {
+		return SPECIES.vectorBitSize() >= 128;
+	}
+
+	@Override
+	public String name() {
+		return "jdk.incubator.vector " + SPECIES.vectorBitSize() + " bit";
+	}
+
+	@Override
+	public FJBufferedImage.RowKernel grayRowFixed() {
+		return VectorRowKernels::grayRowFixed;
+	}
+
+	@Override
+	public FJBufferedImage.RowKernel maxChannelRow() {
+		return VectorRowKernels::maxChannelRow;
+	}
+
+	/**
+	 * Gray.grayRowFixed: the fixed point luma of every pixel, as an opaque gray pixel.
+	 */
+	static void grayRowFixed(int[] src, int[] dst, int length) {
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			IntVector pixel = IntVector.fromArray(SPECIES, src, i);
+			IntVector red = pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+			IntVector green = pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+			IntVector blue = pixel.and(0xFF);
+			IntVector gray = red.mul(Gray.RED_WEIGHT).add(green.mul(Gray.GREEN_WEIGHT)).add(blue.mul(Gray.BLUE_WEIGHT))
+					.lanewise(VectorOperators.LSHR, 16);
+			gray.mul(0x010101).or(0xFF000000).intoArray(dst, i);
+		}
+		for (; i < length; i++) {
+			dst[i] = Gray.grayPixelFixed(src[i]);
+		}
+	}
+
+	/**
+	 * ColorHistEq.maxChannelRow: the largest of the red, green and blue channels of every pixel.
+	 */
+	static void maxChannelRow(int[] src, int[] dst, int length) {
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			IntVector pixel = IntVector.fromArray(SPECIES, src, i);
+			IntVector red = pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+			IntVector green = pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+			red.max(green).max(pixel.and(0xFF)).intoArray(dst, i);
+		}
+		for (; i < length; i++) {
+			dst[i] = ColorHistEq.maxChannel(src[i]);
+		}
+	}
+}